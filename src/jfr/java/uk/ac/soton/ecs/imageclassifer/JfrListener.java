@@ -0,0 +1,53 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits each recorded pipeline stage as a JFR event, so that stage timings line up with GC,
+ * allocation and thread events in a flight recording. Events only cost anything while a
+ * recording with imageclassifier.Stage enabled is running.
+ *
+ * This is the only class that uses jdk.jfr, so it lives in src/jfr/java, which is only
+ * compiled by the jfr profile on JDK 11 and later. {@link Metrics} loads it by name, and
+ * carries on without JFR events if it wasn't built or can't be loaded.
+ *
+ * @author Sam Lavers
+ */
+public class JfrListener implements Metrics.Listener
+{
+	@Name("imageclassifier.Stage")
+	@Label("Classification Stage")
+	@Category("Image Classifier")
+	@Description("A stage of the classification pipeline")
+	static class StageEvent extends Event
+	{
+		@Label("Component")
+		String component;
+
+		@Label("Stage")
+		String stage;
+
+		@Label("Duration")
+		@Timespan(Timespan.NANOSECONDS)
+		long nanos;
+	}
+
+	@Override
+	public void stage(String component, Metrics.Stage stage, long nanos)
+	{
+		StageEvent event = new StageEvent();
+
+		if(event.isEnabled())
+		{
+			event.component = component;
+			event.stage = stage.label();
+			event.nanos = nanos;
+			event.commit();
+		}
+	}
+}
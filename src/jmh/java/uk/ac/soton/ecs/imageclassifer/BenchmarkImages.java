@@ -0,0 +1,104 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.vfs2.FileSystemException;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.ml.annotation.Annotated;
+import org.openimaj.ml.annotation.AnnotatedObject;
+
+/**
+ * Loads the images used by the benchmarks from the labelled training set, imagesets/training by
+ * default or wherever the benchmark.images property points. Images are taken in a fixed order,
+ * so every run and every benchmark sees the same ones.
+ *
+ * @author Sam Lavers
+ */
+public class BenchmarkImages
+{
+	final public static String PROPERTY = "benchmark.images";
+	final public static String DEFAULT_DIRECTORY = "imagesets/training";
+
+	final public static String MODELS_PROPERTY = "benchmark.models";
+	final public static String DEFAULT_MODELS_DIRECTORY = "cache/models";
+
+	private static VFSGroupDataset<FImage> dataset() throws FileSystemException
+	{
+		File directory = new File(System.getProperty(PROPERTY, DEFAULT_DIRECTORY));
+
+		return new VFSGroupDataset<>(directory.getAbsolutePath(), ImageUtilities.FIMAGE_READER);
+	}
+
+	/**
+	 * Take the first images of each class for training
+	 * @param perClass Number of images from each class
+	 * @return The annotated images
+	 * @throws FileSystemException
+	 */
+	public static List<Annotated<FImage, String>> training(int perClass) throws FileSystemException
+	{
+		List<Annotated<FImage, String>> images = new ArrayList<>();
+
+		for(Map.Entry<String, VFSListDataset<FImage>> group : dataset().entrySet())
+		{
+			VFSListDataset<FImage> list = group.getValue();
+
+			for(int i = 0; i < Math.min(perClass, list.size()); i++)
+			{
+				images.add(new AnnotatedObject<FImage, String>(list.get(i), group.getKey()));
+			}
+		}
+
+		return images;
+	}
+
+	/**
+	 * Take images that are not used for training, going round the classes in turn
+	 * @param count Number of images
+	 * @param skip Number of images at the start of each class to leave out
+	 * @return The images
+	 * @throws FileSystemException
+	 */
+	public static List<FImage> testing(int count, int skip) throws FileSystemException
+	{
+		List<VFSListDataset<FImage>> groups = new ArrayList<>(dataset().values());
+		List<FImage> images = new ArrayList<>();
+
+		for(int i = skip; images.size() < count; i++)
+		{
+			boolean found = false;
+
+			for(VFSListDataset<FImage> group : groups)
+			{
+				if(i < group.size() && images.size() < count)
+				{
+					images.add(group.get(i));
+					found = true;
+				}
+			}
+
+			if(!found)
+				break;
+		}
+
+		if(images.isEmpty())
+			throw new IllegalStateException("No benchmark images in " + System.getProperty(PROPERTY, DEFAULT_DIRECTORY));
+
+		return images;
+	}
+
+	/**
+	 * @param name Name of the model
+	 * @return Where a model trained for the benchmarks is kept between runs
+	 */
+	public static File modelFile(String name)
+	{
+		return new File(System.getProperty(MODELS_PROPERTY, DEFAULT_MODELS_DIRECTORY), "benchmark-" + name + ".bin");
+	}
+}
@@ -0,0 +1,100 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.image.FImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end time per image of classify() for each classifier, on images it wasn't trained on,
+ * and per batch of all the test images for classifyAll().
+ *
+ * Each classifier is trained on the first images of every class, then saved under the
+ * benchmark.models directory so that later runs only need to load it. Delete the model files
+ * after changing a classifier's training.
+ *
+ * @author Sam Lavers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassifyBenchmark
+{
+	@Param({ "KNearestNeighbour", "BoVW", "SIFTBoVW", "SURFBoVW", "PyramidSift", "RandomGuesser" })
+	public String algorithm;
+
+	@Param("20")
+	public int training;
+
+	@Param("30")
+	public int images;
+
+	private ClassificationAlgorithm classifier;
+	private List<FImage> data;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		classifier = (ClassificationAlgorithm) Class.forName("uk.ac.soton.ecs.imageclassifer." + algorithm).getDeclaredConstructor().newInstance();
+
+		File modelFile = BenchmarkImages.modelFile(algorithm + "-" + training);
+
+		if(modelFile.exists())
+		{
+			ModelFile.load(classifier, modelFile);
+		}
+		else
+		{
+			classifier.train(BenchmarkImages.training(training));
+
+			modelFile.getParentFile().mkdirs();
+			ModelFile.save(classifier, modelFile);
+		}
+
+		data = BenchmarkImages.testing(images, training);
+	}
+
+	/**
+	 * Classify the next test image
+	 */
+	@Benchmark
+	public ClassificationResult<String> classify()
+	{
+		FImage image;
+
+		// Shared between benchmark threads
+		synchronized(this)
+		{
+			image = data.get(next);
+			next = (next + 1) % data.size();
+		}
+
+		return classifier.classify(image);
+	}
+
+	/**
+	 * Classify every test image as one batch, on a single thread
+	 */
+	@Benchmark
+	public List<ClassificationResult<String>> classifyAll()
+	{
+		return classifier.classifyAll(data, 1);
+	}
+}
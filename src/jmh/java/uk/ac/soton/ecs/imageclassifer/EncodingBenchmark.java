@@ -0,0 +1,183 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.ml.kernel.HomogeneousKernelMap.KernelType;
+import org.openimaj.ml.kernel.HomogeneousKernelMap.WindowType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * Time per image of the stages after feature extraction: quantising SIFT keypoints into a
+ * visual word histogram, applying the Chi2 kernel map, and scoring with the linear model.
+ *
+ * The codebook is made of keypoints sampled from the images rather than trained with k-means,
+ * and the linear model is trained on the histograms of the same images with made up classes.
+ * Neither is a good classifier, but both have the same shape and cost as the real ones.
+ *
+ * @author Sam Lavers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodingBenchmark
+{
+	@Param("16")
+	public int images;
+
+	@Param("500")
+	public int codebookSize;
+
+	@Param("15")
+	public int classes;
+
+	private List<LocalFeatureList<Keypoint>> features = new ArrayList<>();
+	private List<SparseIntFV> counts = new ArrayList<>();
+	private List<DoubleFV> histograms = new ArrayList<>();
+	private List<FloatFV> mapped = new ArrayList<>();
+	private int next;
+
+	private BagOfVisualWords<byte[]> quantiser;
+	private HomogeneousKernelMap kernelMap;
+	private Chi2KernelMap tableMap;
+	private LinearModel annotator;
+	private SparseKernelScorer scorer;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		SIFTBoVW sift = new SIFTBoVW();
+
+		List<byte[]> descriptors = new ArrayList<>();
+
+		for(FImage image : BenchmarkImages.testing(images, 0))
+		{
+			LocalFeatureList<Keypoint> keypoints = sift.extractFeatures(image);
+			features.add(keypoints);
+
+			for(Keypoint keypoint : keypoints)
+			{
+				descriptors.add(keypoint.ivec);
+			}
+		}
+
+		Random random = new Random(0);
+		ByteCentroidsResult codebook = new ByteCentroidsResult();
+		codebook.centroids = new byte[codebookSize][];
+
+		for(int i = 0; i < codebookSize; i++)
+		{
+			codebook.centroids[i] = descriptors.get(random.nextInt(descriptors.size()));
+		}
+
+		quantiser = new BagOfVisualWords<byte[]>(codebook.defaultHardAssigner());
+		kernelMap = new HomogeneousKernelMap(KernelType.Chi2, WindowType.Rectangular);
+		tableMap = new Chi2KernelMap(kernelMap);
+
+		List<String> annotations = new ArrayList<>();
+
+		for(int i = 0; i < features.size(); i++)
+		{
+			SparseIntFV count = quantiser.aggregate(features.get(i));
+			DoubleFV histogram = count.normaliseFV();
+
+			counts.add(count);
+			histograms.add(histogram);
+			mapped.add(tableMap.evaluate(count));
+			annotations.add("class" + (i % classes));
+		}
+
+		annotator = LinearModel.train(mapped, annotations, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+		scorer = new SparseKernelScorer(annotator, tableMap);
+	}
+
+	private int nextIndex()
+	{
+		int index = next;
+		next = (next + 1) % features.size();
+
+		return index;
+	}
+
+	/**
+	 * Nearest codeword assignment of an image's SIFT keypoints
+	 */
+	@Benchmark
+	public SparseIntFV bagOfVisualWords()
+	{
+		return quantiser.aggregate(features.get(nextIndex()));
+	}
+
+	/**
+	 * Chi2 kernel map of a normalised histogram
+	 */
+	@Benchmark
+	public DoubleFV kernelMap()
+	{
+		return kernelMap.evaluate(histograms.get(nextIndex()));
+	}
+
+	/**
+	 * Normalisation and table driven Chi2 kernel map of a histogram's non-zero bins
+	 */
+	@Benchmark
+	public FloatFV tableKernelMap()
+	{
+		return tableMap.evaluate(counts.get(nextIndex()));
+	}
+
+	/**
+	 * Linear model scoring of a mapped histogram
+	 */
+	@Benchmark
+	public List<ScoredAnnotation<String>> annotate()
+	{
+		return annotator.annotate(mapped.get(nextIndex()));
+	}
+
+	/**
+	 * Linear model scoring of every mapped histogram as one batch
+	 */
+	@Benchmark
+	public List<List<ScoredAnnotation<String>>> annotateAll()
+	{
+		return annotator.annotateAll(mapped);
+	}
+
+	/**
+	 * Normalisation, kernel map and scoring of the non-zero bins of a histogram together, to
+	 * compare with the sum of the three dense steps
+	 */
+	@Benchmark
+	public List<ScoredAnnotation<String>> sparseScore()
+	{
+		return scorer.annotate(counts.get(nextIndex()));
+	}
+}
@@ -0,0 +1,129 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.stromberglabs.jopensurf.SURFInterestPoint;
+import com.stromberglabs.jopensurf.Surf;
+
+/**
+ * Time per image of each classifier's feature extraction, without any caching. Each call takes
+ * the next of a fixed set of images so that the result is an average over differently sized
+ * and textured images.
+ *
+ * @author Sam Lavers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeatureBenchmark
+{
+	@Param("16")
+	public int images;
+
+	private List<FImage> data;
+	private int next;
+
+	private KNearestNeighbour knn;
+	private DensePatches patches;
+	private SIFTBoVW sift;
+	private SURFBoVW surf;
+	private PyramidDenseSIFT<FImage> pdsift;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		data = BenchmarkImages.testing(images, 0);
+
+		knn = new KNearestNeighbour();
+		patches = new DensePatches(8, 4);
+		sift = new SIFTBoVW();
+		surf = new SURFBoVW();
+		pdsift = new PyramidSift().createEngine();
+	}
+
+	private FImage nextImage()
+	{
+		FImage image = data.get(next);
+		next = (next + 1) % data.size();
+
+		return image;
+	}
+
+	/**
+	 * KNearestNeighbour's tiny image vector
+	 */
+	@Benchmark
+	public FloatFV knnFeatureVector()
+	{
+		return knn.getFeatureVector(nextImage());
+	}
+
+	/**
+	 * BoVW's normalised 8x8 patches
+	 */
+	@Benchmark
+	public float[] bovwPatches()
+	{
+		return patches.extractAll(nextImage());
+	}
+
+	/**
+	 * Difference of Gaussian SIFT keypoints, as used by SIFTBoVW
+	 */
+	@Benchmark
+	public LocalFeatureList<Keypoint> siftExtraction()
+	{
+		return sift.extractFeatures(nextImage());
+	}
+
+	/**
+	 * Upright SURF interest points, as used by SURFBoVW
+	 */
+	@Benchmark
+	public DescriptorStore.Descriptors surfExtraction()
+	{
+		return surf.extractFeatures(nextImage());
+	}
+
+	/**
+	 * Upright SURF interest points from jopensurf, by way of a BufferedImage, for comparison
+	 */
+	@Benchmark
+	public List<SURFInterestPoint> jopensurfExtraction()
+	{
+		return new Surf(ImageUtilities.createBufferedImage(nextImage())).getUprightInterestPoints();
+	}
+
+	/**
+	 * Pyramid dense SIFT analysis, as used by PyramidSift
+	 */
+	@Benchmark
+	public PyramidDenseSIFT<FImage> pyramidDenseSift()
+	{
+		pdsift.analyseImage(nextImage());
+
+		return pdsift;
+	}
+}
@@ -2,21 +2,14 @@ package uk.ac.soton.ecs.imageclassifer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Map.Entry;
 
 import org.apache.commons.vfs2.FileSystemException;
-import org.openimaj.data.dataset.GroupedDataset;
-import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.data.dataset.VFSGroupDataset;
-import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
-import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
-import org.openimaj.ml.annotation.AnnotatedObject;
-import org.openimaj.util.function.Operation;
-import org.openimaj.util.parallel.Parallel;
 
 import uk.ac.soton.ecs.imageclassifer.*;
 
@@ -24,6 +17,11 @@ import uk.ac.soton.ecs.imageclassifer.*;
  * 
  * Tests classification algorithms on a subset of the training data
  * 
+ * The split is decoded once and every algorithm is trained and tested on the same images, one
+ * algorithm at a time so that timings and heap use aren't affected by the others. Training
+ * time, classification throughput, latency percentiles and peak heap are reported alongside
+ * accuracy.
+ * 
  * @author cw17g12
  *
  */
@@ -32,36 +30,50 @@ public class AccuracyTest
 	public static void main(String[] args) throws FileSystemException
 	{
 		if(args.length < 2)
-			throw new IllegalArgumentException("Usage: AccuracyTest <num training> <num testing>");
+			throw new IllegalArgumentException("Usage: AccuracyTest <num training> <num testing> [seed]");
 		
 		int numTraining = Integer.parseInt(args[0]), numTesting = Integer.parseInt(args[1]);
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : System.currentTimeMillis();
+		
+		// Decode the split once for every algorithm
+		File trainingFile = new File("imagesets/training");
+
+		VFSGroupDataset<FImage> data = new VFSGroupDataset<>(
+			trainingFile.getAbsolutePath(),
+			ImageUtilities.FIMAGE_READER);
+		
+		System.out.println("Decoding split with seed " + seed + "...");
+		DecodedCorpus corpus = new DecodedCorpus(data, numTraining, numTesting, seed);
+		System.out.println("Decoded " + (corpus.getTraining().size() + corpus.getTesting().size()) + " images, " + (corpus.getBytes() >> 20) + "MB");
 		
 		ArrayList<AccuracyTest> tests = new ArrayList<>();
 		
 		// Initialise accuracy testers
-		tests.add(new AccuracyTest(new RandomGuesser(), numTraining, numTesting));
-		tests.add(new AccuracyTest(new BoVW(), numTraining, numTesting));
-		tests.add(new AccuracyTest(new SURFBoVW(), numTraining, numTesting));
-		tests.add(new AccuracyTest(new SIFTBoVW(), numTraining, numTesting));
-		tests.add(new AccuracyTest(new PyramidSift(), numTraining, numTesting));
+		tests.add(new AccuracyTest(new RandomGuesser(), corpus));
+		tests.add(new AccuracyTest(new BoVW(), corpus));
+		tests.add(new AccuracyTest(new SURFBoVW(), corpus));
+		tests.add(new AccuracyTest(new SIFTBoVW(), corpus));
+		tests.add(new AccuracyTest(new PyramidSift(), corpus));
 		
-		// Run
-		Parallel.forEach(tests, new Operation<AccuracyTest>() {
-
-			@Override
-			public void perform(AccuracyTest test)
-			{
-				test.run();
-			}
-			
-		});
+		// Run one at a time
+		for(AccuracyTest test : tests)
+		{
+			test.run();
+		}
+		
+		System.out.println(ClassifierEvaluation.header());
+		for(AccuracyTest test : tests)
+		{
+			System.out.println(test.evaluation);
+		}
 		
 		// Save results
 		File saveDir = new File("results/accuracy");
+		saveDir.mkdirs();
 		for (AccuracyTest t : tests) {
 			try
 			{
-				PrintWriter pw = new PrintWriter(new File(saveDir + t.alg.getClass().getSimpleName()));
+				PrintWriter pw = new PrintWriter(new File(saveDir, t.alg.getClass().getSimpleName()));
 				pw.write(t.getResults());
 				pw.close();
 			}
@@ -70,26 +82,30 @@ public class AccuracyTest
 				ex.printStackTrace();
 			}
 		}
+		
+		if(Metrics.ENABLED)
+		{
+			try
+			{
+				Metrics.export(new File("results/metrics"), "accuracy");
+			}
+			catch(IOException ex)
+			{
+				ex.printStackTrace();
+			}
+		}
 	
 	}
 	
-	private GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet, testingSet;
+	private DecodedCorpus corpus;
 	private ClassificationAlgorithm alg;
+	private ClassifierEvaluation evaluation;
 	private String testname;
 	private StringBuilder results;
 
-	public AccuracyTest(ClassificationAlgorithm alg, int numTraining, int numTesting) throws FileSystemException
+	public AccuracyTest(ClassificationAlgorithm alg, DecodedCorpus corpus)
 	{
-		File trainingFile = new File("imagesets/training");
-
-		VFSGroupDataset<FImage> data = new VFSGroupDataset<>(
-			trainingFile.getAbsolutePath(),
-			ImageUtilities.FIMAGE_READER);
-
-		GroupedRandomSplitter<String, FImage> splits = new GroupedRandomSplitter<>(data, numTraining, 0, numTesting);
-
-		trainingSet = splits.getTrainingDataset();
-		testingSet = splits.getTestDataset();
+		this.corpus = corpus;
 		this.alg = alg;
 		this.testname = "[" + alg.getClass().getSimpleName() + "] ";
 	}
@@ -103,67 +119,34 @@ public class AccuracyTest
 	
 	private void run(boolean quiet) {
 		if (!quiet) {
-			System.out.println(testname + "Performing Training...");
+			System.out.println(testname + "Performing Training and Tests...");
 		}
 		
-		alg.train(AnnotatedObject.createList(trainingSet));
-
-		if (!quiet) {
-			System.out.println(testname + "Running Tests...");
-		}
+		evaluation = new ClassifierEvaluation(alg);
+		evaluation.run(corpus);
 		
-		/*
-		 * Iterate over each image in the group dataset and check that the
-		 * classified result is the same as the group name
-		 */
-		int correct = 0;
-		for(Entry<String, ListDataset<FImage>> e : testingSet.entrySet())
-		{
-			for(FImage image : e.getValue())
-			{
-				ClassificationResult<String> c = alg.classify(image);
-
-				/*
-				 * Iterate over results to find the one with the highest confidence
-				 */
-				double confidence = 0;
-				String mostLikely = "unknown";
-				for(String clazz : c.getPredictedClasses())
-				{
-					double conf = c.getConfidence(clazz);
-					if(conf > confidence)
-					{
-						mostLikely = clazz;
-						confidence = conf;
-					}
-				}
-
-				/*
-				 * Show expected and classified values
-				 */
-				String expected = "Expected: " + e.getKey() + ", Returned: " + mostLikely;
-				results.append(expected);
-				results.append('\n');
-				
-				if (!quiet) {
-					System.out.println(testname + expected);
-				}
-				
-				if(mostLikely.equals(e.getKey()))
-					correct++;
-			}
+		results = new StringBuilder();
+		results.append(evaluation.getLog());
+		
+		if (!quiet) {
+			System.out.print(evaluation.getLog().replaceAll("(?m)^", testname));
 		}
 
 		/*
-		 * Show percentage error
+		 * Show accuracy and costs
 		 */
-		String accuracy = "Accuracy: " + correct * 100f / testingSet.numInstances();
+		String accuracy = "Accuracy: " + evaluation.getAccuracy() * 100f;
 		results.append("=============================");
 		results.append(accuracy);
 		results.append('\n');
+		results.append(ClassifierEvaluation.header());
+		results.append('\n');
+		results.append(evaluation);
+		results.append('\n');
 		
 		if (!quiet) {
 			System.out.println(testname + accuracy);
+			System.out.println(testname + evaluation);
 		}
 	}
 	
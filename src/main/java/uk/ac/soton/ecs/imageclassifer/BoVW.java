@@ -1,42 +1,29 @@
 package uk.ac.soton.ecs.imageclassifer;
 
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.vfs2.FileSystemException;
-import org.openimaj.data.DataSource;
 import org.openimaj.data.dataset.VFSGroupDataset;
 import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.feature.FeatureExtractor;
-import org.openimaj.feature.FloatFV;
 import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.LocalFeature;
-import org.openimaj.feature.local.LocalFeatureVectorProvider;
-import org.openimaj.feature.local.SpatialLocation;
-import org.openimaj.feature.local.data.LocalFeatureListDataSource;
-import org.openimaj.feature.local.list.LocalFeatureList;
-import org.openimaj.feature.local.list.MemoryLocalFeatureList;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
-import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
-import org.openimaj.math.geometry.shape.Rectangle;
 import org.openimaj.ml.annotation.Annotated;
 import org.openimaj.ml.annotation.AnnotatedObject;
 import org.openimaj.ml.annotation.ScoredAnnotation;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator.Mode;
 import org.openimaj.ml.clustering.FloatCentroidsResult;
-import org.openimaj.ml.clustering.kmeans.FloatKMeans;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
 import de.bwaldvogel.liblinear.SolverType;
 
+import uk.ac.soton.ecs.imageclassifer.Metrics.Stage;
+
 /**
  * Bag of Visual Words classifier Given a grouped dataset of training images, and a list dataset of testing images, BoVW
  * will use K-means on overlapping 8x8 image patches in each image to generate a 'codebook' for the quantiser, then
@@ -45,15 +32,27 @@ import de.bwaldvogel.liblinear.SolverType;
  * @author cw17g12
  * 
  */
-public class BoVW implements ClassificationAlgorithm
+public class BoVW implements IncrementalClassificationAlgorithm
 {
 
 	protected int codebookSize = 500;
+	// k-means implementation used to train the codebook
+	protected CodebookTrainer codebookTrainer = CodebookTrainer.getDefault();
 	protected int patchSize = 8;
 	protected int patchSeparation = patchSize / 2;
 
-	protected BagOfVisualWords<float[]> quantiser;
-	protected LiblinearAnnotator<FImage, String> annotator;
+	protected FloatCentroidsResult centroids;
+	protected DensePatches patches;
+	// Centroids packed row after row, and their squared lengths, for nearest centroid search
+	protected float[] codebook;
+	protected float[] codebookNorms;
+	protected FeatureExtractor<SparseIntFV, FImage> extractor;
+	protected LinearModel annotator;
+	// Stage timings of classify()
+	protected Metrics.Recorder metrics = Metrics.recorder(getClass().getSimpleName());
+	// Memory budget and per-image cap of the descriptor sample the codebook is trained on
+	protected long sampleBudget = DescriptorReservoir.DEFAULT_BUDGET;
+	protected int samplesPerImage = DescriptorReservoir.DEFAULT_PER_IMAGE;
 
 	public static void main(String[] args) throws FileSystemException, FileNotFoundException
 	{
@@ -61,85 +60,66 @@ public class BoVW implements ClassificationAlgorithm
 	}
 
 	/**
-	 * Represents a small image patch as a feature vector and a spatial location.
-	 * 
-	 * @author cw17g12
-	 *
+	 * Bound the sample of training descriptors the codebook is trained on. Takes effect at the
+	 * next training.
+	 * @param budget Memory budget of the sample in bytes
+	 * @param perImage Maximum number of descriptors to draw from each image
 	 */
-	protected class ImagePatch
-		implements
-		LocalFeature<SpatialLocation, FloatFV>,
-		LocalFeatureVectorProvider<SpatialLocation, FloatFV>
+	public void setSampling(long budget, int perImage)
 	{
+		this.sampleBudget = budget;
+		this.samplesPerImage = perImage;
+	}
 
-		private FloatFV fv;
-		private SpatialLocation location;
-
-		public ImagePatch(int x, int y, FImage patch)
-		{
-			this.fv = new FloatFV(patch.getFloatPixelVector());
-			this.location = new SpatialLocation(x, y);
-		}
-
-		@Override
-		public void readASCII(Scanner in) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public String asciiHeader()
-		{
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public void readBinary(DataInput in) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public byte[] binaryHeader()
-		{
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public void writeASCII(PrintWriter out) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public void writeBinary(DataOutput out) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * Train the classifier
+	 * @param data The training set
+	 */
+	@Override
+	public void train(final List<? extends Annotated<FImage, String>> data)
+	{
+		patches = new DensePatches(patchSize, patchSeparation);
 
-		@Override
-		public FloatFV getFeatureVector()
-		{
-			return fv;
-		}
+		// Extract each image's patches in parallel, keeping only the sample of them that the
+		// codebook is trained on. The histograms extract the patches again and assign them as
+		// they go, which costs far less than the assignment itself and keeps memory from growing
+		// with the training set.
+		final DescriptorReservoir<float[]> sample = new DescriptorReservoir.Floats(patches.numDimensions(), sampleBudget, samplesPerImage);
 
-		@Override
-		public SpatialLocation getLocation()
+		Parallel.forIndex(0, data.size(), 1, new Operation<Integer>()
 		{
-			return location;
-		}
+			@Override
+			public void perform(Integer i)
+			{
+				sample.offer(data.get(i).getAnnotations().iterator().next(), patches.extractAll(data.get(i).getObject()));
+			}
+		});
 
+		System.out.println("Codebook sample: " + sample);
+		trainQuantiser(sample);
+		trainAnnotator(data);
 	}
 
 	/**
-	 * Train the classifier
-	 * @param data The training set
+	 * Update the linear model with more images, keeping the codebook
+	 * @param data The new images
+	 * @return What the update changed
 	 */
 	@Override
-	public void train(List<? extends Annotated<FImage, String>> data)
+	public UpdateReport update(List<? extends Annotated<FImage, String>> data)
 	{
-		trainQuantiser(data);
-		trainAnnotator(data);
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		long start = System.nanoTime();
+		List<SparseIntFV> encoded = Utilities.extractAll(extractor, Utilities.objects(data));
+		List<String> annotations = Utilities.annotations(data);
+		LinearModel updated = annotator.update(encoded, annotations, 1.0, LinearModel.UPDATE_EPOCHS);
+		UpdateReport report = UpdateReport.compare(annotator, updated, encoded, annotations, start);
+
+		annotator = updated;
+
+		return report;
 	}
 
 	/**
@@ -150,109 +130,239 @@ public class BoVW implements ClassificationAlgorithm
 	@Override
 	public ClassificationResult<String> classify(FImage image)
 	{
-		if(quantiser == null)
+		if(codebook == null)
 			throw new IllegalStateException("Classifier is not trained");
 		if(annotator == null)
 			throw new IllegalStateException("Annotator is not trained");
 
+		// Patches are assigned to visual words as they are extracted, so extraction and
+		// quantisation are timed as one stage
+		long start = Metrics.start();
+		SparseIntFV histogram = encode(image);
+		long time = metrics.record(Stage.FEATURES, start);
+		List<ScoredAnnotation<String>> annotations = annotator.annotate(histogram);
+		metrics.record(Stage.SCORING, time);
+
 		PrintableClassificationResult<String> result = new PrintableClassificationResult<>(PrintableClassificationResult.BEST_RESULT);
 		
-		for (ScoredAnnotation<String> a : annotator.annotate(image)) {
+		for (ScoredAnnotation<String> a : annotations) {
 			result.put(a.annotation, a.confidence);
 		}
+
+		metrics.record(Stage.CLASSIFY, start);
 		return result;
 	}
 
 	/**
-	 * Trains the Bag of Visual Words with a K-means-generated codebook.
-	 * 
-	 * @param trainingData
+	 * Classify a batch of images in parallel
+	 * @param images The images
+	 * @param threads The number of threads to use
+	 * @return The results, in input order
 	 */
-	protected void trainQuantiser(List<? extends Annotated<FImage, String>> data)
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads)
 	{
-		List<LocalFeatureList<ImagePatch>> allFeatures = new ArrayList<>();
+		return Utilities.classifyAll(this, images, threads);
+	}
 
-		// Load a list of ImagePatch features
-		for(Annotated<FImage, String> image : data)
-		{
-			allFeatures.add(getPatches(image.getObject()));
-		}
+	/**
+	 * Classify a batch of images on an existing pool of threads
+	 * @param images The images
+	 * @param pool The threads to classify on
+	 * @param threads The most images to classify at once
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads)
+	{
+		return Utilities.classifyAll(this, images, pool, threads);
+	}
 
-		// Populate a DataSource with the ImagePatches
-		DataSource<float[]> datasource = new LocalFeatureListDataSource<ImagePatch, float[]>(
-			allFeatures);
+	/**
+	 * Write the codebook and linear model to a model file
+	 * @param out The model file writer
+	 */
+	@Override
+	public void writeModel(ModelFile.Writer out) throws IOException
+	{
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		out.writeInt(codebookSize);
+		out.writeInt(patchSize);
+		out.writeInt(patchSeparation);
+		out.writeFloatMatrix(centroids.centroids);
+		annotator.write(out);
+	}
+
+	/**
+	 * Restore the codebook and linear model from a model file
+	 * @param in The model file reader
+	 */
+	@Override
+	public void readModel(ModelFile.Reader in) throws IOException
+	{
+		codebookSize = in.readInt();
+		patchSize = in.readInt();
+		patchSeparation = in.readInt();
 
+		centroids = new FloatCentroidsResult();
+		centroids.centroids = in.readFloatMatrix();
+		setCodebook(centroids);
+		patches = new DensePatches(patchSize, patchSeparation);
+
+		extractor = createExtractor();
+		annotator = LinearModel.read(in);
+	}
+
+	/**
+	 * Trains the Bag of Visual Words with a K-means-generated codebook.
+	 * 
+	 * @param sample A sample of the training images' patches
+	 */
+	protected void trainQuantiser(DescriptorReservoir<float[]> sample)
+	{
 		// Create n centroids to act as a codebook for the bag of visual words
-		FloatKMeans km = FloatKMeans.createKDTreeEnsemble(codebookSize);
-		FloatCentroidsResult centroids = km.cluster(datasource);
+		centroids = codebookTrainer.clusterFloats(sample.dataSource(), codebookSize);
 
-		// Any inputs will be quantised to the nearest ImagePatch centroid
-		quantiser = new BagOfVisualWords<float[]>(centroids.defaultHardAssigner());
+		// Any inputs will be quantised to the nearest centroid
+		setCodebook(centroids);
 	}
 
 	/**
-	 * Trains the liblinear annotator with the trained quantiser.
+	 * Trains the liblinear annotator with the trained quantiser, extracting each image's patches
+	 * again and assigning them as they are extracted.
 	 * 
-	 * @param trainingData
+	 * @param data The training set
 	 */
 	protected void trainAnnotator(List<? extends Annotated<FImage, String>> data)
 	{
-		if(quantiser == null)
+		if(codebook == null)
 			throw new IllegalStateException("Quantiser is not trained");
 
-		FeatureExtractor<SparseIntFV, FImage> extractor = new FeatureExtractor<SparseIntFV, FImage>() {
+		extractor = createExtractor();
+
+		List<SparseIntFV> encoded = Utilities.extractAll(extractor, Utilities.objects(data));
+
+		// Train the annotator to make associations between certain "words" and image classes
+		annotator = LinearModel.train(encoded, Utilities.annotations(data), SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+	}
+
+	/**
+	 * Creates the feature extractor which quantises an image's patches with the trained quantiser.
+	 * 
+	 * @return The extractor
+	 */
+	protected FeatureExtractor<SparseIntFV, FImage> createExtractor()
+	{
+		return new FeatureExtractor<SparseIntFV, FImage>() {
 
 			@Override
 			public SparseIntFV extractFeature(FImage image)
 			{
-				// Quantise the ImagePatches in the input to the nearest centroid
-				LocalFeatureList<ImagePatch> patches = getPatches(image);
-				SparseIntFV test = quantiser.aggregate(patches);
-				return test;
+				return encode(image);
 			}
 
 		};
-
-		// Train the annotator to make associations between certain "words" and image classes
-		annotator = new LiblinearAnnotator<>(extractor, Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
-		annotator.train(data);
 	}
 
 	/**
-	 * Segments an image into centre-meaned, normalised patches. Will crop any pixels from the right and bottom of the
-	 * image that do not divide into {@link #patchSeparation}.
-	 * 
-	 * @param image
-	 * @return list of {@link #patchSize} by {@link #patchSize} patches
+	 * Builds an image's visual word histogram, assigning each patch to its nearest centroid as
+	 * soon as it is extracted
+	 * @param image The image
+	 * @return The visual word histogram
 	 */
-	public LocalFeatureList<ImagePatch> getPatches(FImage image)
+	protected SparseIntFV encode(FImage image)
 	{
-		int patchesX = (image.width / patchSeparation) - 1;
-		int patchesY = (image.height / patchSeparation) - 1;
+		final int[] counts = new int[codebookSize()];
+
+		patches.extract(image, new DensePatches.Consumer()
+		{
+			@Override
+			public void patch(int x, int y, float[] patch)
+			{
+				counts[assign(patch, 0)]++;
+			}
+		});
 
-		// Image size must be a multiple of patchSeparation
-		Rectangle crop = new Rectangle(0, 0, patchSeparation * patchesX + 1, patchSeparation * patchesY + 1);
+		return toHistogram(counts);
+	}
+
+	/**
+	 * Set the centroids that patches are assigned to
+	 * @param centroids The centroids
+	 */
+	protected void setCodebook(FloatCentroidsResult centroids)
+	{
+		int k = centroids.centroids.length;
+		int dims = centroids.centroids[0].length;
 
-		image = image.extractROI(crop);
+		float[] flat = new float[k * dims];
+		float[] norms = new float[k];
 
-		// Extract patchesX * patchesY patches of size patchSize
-		LocalFeatureList<ImagePatch> patches = new MemoryLocalFeatureList<ImagePatch>(patchesX * patchesY);
-		FImage temp;
-		for(int y = 0; y < image.height; y += patchSeparation)
+		for(int j = 0; j < k; j++)
 		{
-			for(int x = 0; x < image.width; x += patchSeparation)
+			for(int d = 0; d < dims; d++)
 			{
+				float v = centroids.centroids[j][d];
+				flat[j * dims + d] = v;
+				norms[j] += v * v;
+			}
+		}
 
-				temp = image.extractROI(x, y, patchSize, patchSize);
+		codebookNorms = norms;
+		codebook = flat;
+	}
 
-				// Normalise and mean-centre the pixels
-				// Converts image to feature vector
-				patches.add(new ImagePatch(x, y, temp));
+	private int codebookSize()
+	{
+		return codebookNorms.length;
+	}
 
+	/**
+	 * Find the nearest centroid to a patch. The patch's own length is the same for every
+	 * centroid, so only |c|^2 - 2 p.c needs comparing.
+	 * @param data Array holding the patch
+	 * @param offset Start of the patch in the array
+	 * @return The index of the nearest centroid
+	 */
+	protected int assign(float[] data, int offset)
+	{
+		int dims = patches.numDimensions();
+		int best = 0;
+		float bestDistance = Float.POSITIVE_INFINITY;
+
+		for(int j = 0, c = 0; j < codebookNorms.length; j++, c += dims)
+		{
+			float dot = 0f;
+
+			for(int d = 0; d < dims; d++)
+			{
+				dot += data[offset + d] * codebook[c + d];
+			}
+
+			float distance = codebookNorms[j] - 2 * dot;
+
+			if(distance < bestDistance)
+			{
+				bestDistance = distance;
+				best = j;
 			}
 		}
 
-		return patches;
+		return best;
 	}
 
+	private static SparseIntFV toHistogram(int[] counts)
+	{
+		SparseIntFV histogram = new SparseIntFV(counts.length);
+
+		for(int j = 0; j < counts.length; j++)
+		{
+			if(counts[j] != 0)
+				histogram.values.set(j, counts[j]);
+		}
+
+		return histogram;
+	}
 }
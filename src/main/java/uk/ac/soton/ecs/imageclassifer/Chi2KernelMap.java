@@ -0,0 +1,179 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.Arrays;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.ml.kernel.HomogeneousKernelMap.KernelType;
+import org.openimaj.ml.kernel.HomogeneousKernelMap.WindowType;
+import org.openimaj.util.array.SparseIntArray;
+
+/**
+ * Single precision lookup table version of a {@link HomogeneousKernelMap}, by default the Chi2
+ * map with a rectangular window.
+ *
+ * OpenIMAJ's map finds each input's exponent and mantissa with frexp, in double precision, and
+ * interpolates linearly in a table with 16 subdivisions of each power of two. Here the table is
+ * indexed directly by the bits of a float: the exponent and the top {@link #MANTISSA_BITS} bits
+ * of the mantissa select a cell, and the remaining mantissa bits interpolate within it. Each
+ * cell holds the map's value at its start and its change across it, sampled from the original
+ * map at the start and middle of the cell, so wherever the original is linear across a cell
+ * the table reproduces it.
+ *
+ * For the default Chi2 map this leaves only single precision rounding: for inputs in [0, 1],
+ * the range of a normalised histogram, every output is within 1e-6 of the double precision map,
+ * and within 1e-5 up to the map's upper limit of 256. Zero, negative inputs, and any input
+ * outside the range covered by the table map to zeros, as they do in the original.
+ *
+ * @author Sam Lavers
+ */
+public class Chi2KernelMap
+{
+	/** Mantissa bits selecting the cell within each power of two */
+	final public static int MANTISSA_BITS = 4;
+
+	// Powers of two covered by the table, [2^MIN_EXPONENT, 2^MAX_EXPONENT)
+	final private static int MIN_EXPONENT = -32;
+	final private static int MAX_EXPONENT = 32;
+
+	final private static int FRACTION_BITS = 23 - MANTISSA_BITS;
+	final private static int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+	final private static float FRACTION_SCALE = 1f / (1 << FRACTION_BITS);
+	// Float bits shifted down to the cell, less this, give the index of the cell in the table
+	final private static int FIRST_CELL = (MIN_EXPONENT + 127) << MANTISSA_BITS;
+	final private static int CELLS = (MAX_EXPONENT - MIN_EXPONENT) << MANTISSA_BITS;
+
+	// Outputs per input value
+	protected final int width;
+	// Each cell's outputs at its start, followed by their change across the cell
+	protected final float[] table;
+
+	/**
+	 * Tabulate the Chi2 map with a rectangular window
+	 */
+	public Chi2KernelMap()
+	{
+		this(new HomogeneousKernelMap(KernelType.Chi2, WindowType.Rectangular));
+	}
+
+	/**
+	 * Tabulate a homogeneous kernel map
+	 * @param kernelMap The map
+	 */
+	public Chi2KernelMap(HomogeneousKernelMap kernelMap)
+	{
+		width = kernelMap.evaluate(new DoubleFV(1)).length();
+		table = new float[CELLS * 2 * width];
+
+		double[] start = new double[width];
+		double[] middle = new double[width];
+
+		for(int cell = 0; cell < CELLS; cell++)
+		{
+			int bits = (FIRST_CELL + cell) << FRACTION_BITS;
+
+			// The map only writes some outputs for inputs outside its own table
+			Arrays.fill(start, 0);
+			Arrays.fill(middle, 0);
+			kernelMap.evaluate(start, 1, 0, Float.intBitsToFloat(bits));
+			kernelMap.evaluate(middle, 1, 0, Float.intBitsToFloat(bits | (1 << (FRACTION_BITS - 1))));
+
+			int offset = cell * 2 * width;
+
+			for(int j = 0; j < width; j++)
+			{
+				table[offset + j] = (float) start[j];
+				table[offset + width + j] = (float) (2 * (middle[j] - start[j]));
+			}
+		}
+	}
+
+	/**
+	 * @return Number of outputs for each input value
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Map a single value
+	 * @param x The value
+	 * @param out Buffer for the outputs
+	 * @param offset Where in the buffer to write the {@link #getWidth()} outputs
+	 */
+	public void evaluate(float x, float[] out, int offset)
+	{
+		int bits = Float.floatToRawIntBits(x);
+		// The sign bit puts negative inputs out of range too
+		int cell = (bits >>> FRACTION_BITS) - FIRST_CELL;
+
+		if(cell < 0 || cell >= CELLS)
+		{
+			Arrays.fill(out, offset, offset + width, 0f);
+			return;
+		}
+
+		float fraction = (bits & FRACTION_MASK) * FRACTION_SCALE;
+		int t = cell * 2 * width;
+
+		for(int j = 0; j < width; j++)
+		{
+			out[offset + j] = table[t + j] + fraction * table[t + width + j];
+		}
+	}
+
+	/**
+	 * Map every value of an array
+	 * @param in The values
+	 * @param out Buffer for the outputs, {@link #getWidth()} per value, in the same layout as
+	 *        {@link HomogeneousKernelMap#evaluate(DoubleFV)}
+	 */
+	public void evaluate(float[] in, float[] out)
+	{
+		for(int i = 0; i < in.length; i++)
+		{
+			evaluate(in[i], out, i * width);
+		}
+	}
+
+	/**
+	 * L1 normalise a histogram and map it, like
+	 * <code>kernelMap.evaluate(histogram.normaliseFV())</code>. Only the non-zero bins are
+	 * mapped.
+	 * @param histogram The histogram
+	 * @return The mapped feature vector
+	 */
+	public FloatFV evaluate(SparseIntFV histogram)
+	{
+		FloatFV mapped = new FloatFV(histogram.length() * width);
+		long total = 0;
+
+		for(SparseIntArray.Entry e : histogram.values.entries())
+		{
+			total += e.value;
+		}
+
+		if(total == 0)
+			return mapped;
+
+		for(SparseIntArray.Entry e : histogram.values.entries())
+		{
+			evaluate(normalise(e.value, total), mapped.values, e.index * width);
+		}
+
+		return mapped;
+	}
+
+	/**
+	 * @param count A histogram bin
+	 * @param total The sum of the histogram
+	 * @return The bin's L1 normalised value, rounded as it is wherever a histogram is mapped
+	 */
+	public static float normalise(int count, long total)
+	{
+		return (float) (count / (double) total);
+	}
+}
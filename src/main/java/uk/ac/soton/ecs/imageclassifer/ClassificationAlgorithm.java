@@ -1,5 +1,10 @@
 package uk.ac.soton.ecs.imageclassifer;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.experiment.evaluation.classification.Classifier;
 import org.openimaj.image.FImage;
 import org.openimaj.ml.annotation.Annotated;
@@ -8,9 +13,47 @@ import org.openimaj.ml.training.BatchTrainer;
 /**
  * Represents a classification algorithm which can be trained on a set of images and classify an image.
  * All annotations are strings
+ *
+ * <p>Thread safety: once {@link #train} or {@link #readModel} has returned, {@link #classify} and
+ * {@link #classifyAll} may be called from any number of threads at once, provided the trained
+ * classifier was handed to those threads safely (e.g. through an executor or a final field).
+ * Implementations keep any mutable per-image state, such as feature extraction engines, per
+ * thread rather than serialising calls behind a lock. Training and loading a model must not
+ * run concurrently with anything else on the same instance.
+ *
  * @author Sam Lavers
  */
 public interface ClassificationAlgorithm extends Classifier<String, FImage>, BatchTrainer<Annotated<FImage, String>>
 {
+	/**
+	 * Classify a batch of images using several threads
+	 * @param images The images, which may be a lazily-loaded dataset
+	 * @param threads The number of threads to classify with
+	 * @return The results, in the same order as the images
+	 */
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads);
+
+	/**
+	 * Classify a batch of images on an existing pool of threads, for callers that classify
+	 * many batches and shouldn't start and stop threads for each one
+	 * @param images The images, which may be a lazily-loaded dataset
+	 * @param pool The threads to classify on, which the caller shuts down
+	 * @param threads The most images to classify at once
+	 * @return The results, in the same order as the images
+	 */
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads);
+
+	/**
+	 * Write the trained model to a model file
+	 * @param out The model file writer
+	 * @throws IOException
+	 */
+	public void writeModel(ModelFile.Writer out) throws IOException;
 
+	/**
+	 * Restore a trained model from a model file, replacing any existing training
+	 * @param in The model file reader
+	 * @throws IOException
+	 */
+	public void readModel(ModelFile.Reader in) throws IOException;
 }
@@ -0,0 +1,551 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.io.InputStreamObjectReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a trained classifier over HTTP, using the JDK's built in server.
+ *
+ * <ul>
+ * <li><code>POST /classify</code> with an image file as the body returns the classification as
+ * JSON, in the form written by {@link PrintableClassificationResult#toJSON()}</li>
+ * <li><code>GET /health</code> returns the classifier's name and the work in flight</li>
+ * <li><code>GET /metrics</code> returns {@link Metrics#toJSON()}</li>
+ * </ul>
+ *
+ * Uploads are decoded on the request threads and then queued for a single batching thread.
+ * That thread takes the first image waiting, gathers any more that arrive within the batch
+ * window, up to the batch size, and classifies them together with
+ * {@link ClassificationAlgorithm#classifyAll}. While a batch is being classified the next one
+ * builds up in the queue, so under load batches fill without waiting for the window. If a batch
+ * fails, its images are classified again one at a time, so an image that can't be classified
+ * fails only its own request.
+ *
+ * At most maxInFlight requests are accepted at once, counting from the upload to the response.
+ * Beyond that requests are turned away straight away with 503 Service Unavailable, so the queue
+ * and with it the latency of accepted requests stay bounded however much traffic arrives.
+ *
+ * @author Sam Lavers
+ */
+public class ClassificationServer
+{
+	final public static int DEFAULT_PORT = 8080;
+	final public static int DEFAULT_BATCH_SIZE = 16;
+	final public static long DEFAULT_BATCH_WINDOW_MILLIS = 5;
+	final public static int DEFAULT_MAX_UPLOAD = 16 << 20;
+
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+
+	protected final ClassificationAlgorithm classifier;
+	protected final int port;
+
+	protected int batchSize = DEFAULT_BATCH_SIZE;
+	protected long batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	protected int maxInFlight = 4 * DEFAULT_BATCH_SIZE;
+	protected int maxUpload = DEFAULT_MAX_UPLOAD;
+	protected InputStreamObjectReader<FImage> reader = ImageUtilities.FIMAGE_READER;
+
+	private HttpServer server;
+	private ExecutorService requestPool;
+	// Classifies every batch, so threads aren't started and stopped for each one
+	private ExecutorService classifyPool;
+	private Thread batcher;
+	private Semaphore inFlight;
+	private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+	final private static Metrics.Recorder metrics = Metrics.recorder(ClassificationServer.class.getSimpleName());
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 1)
+			throw new IllegalArgumentException("Usage: ClassificationServer <model file> [port] [batch size] [batch window ms] [max in flight]");
+
+		ClassificationAlgorithm classifier = ModelFile.load(new File(args[0]));
+		ClassificationServer server = new ClassificationServer(classifier, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+
+		if(args.length > 2)
+			server.setBatchSize(Integer.parseInt(args[2]));
+		if(args.length > 3)
+			server.setBatchWindowMillis(Long.parseLong(args[3]));
+		if(args.length > 4)
+			server.setMaxInFlight(Integer.parseInt(args[4]));
+
+		server.start();
+
+		System.out.println("Serving " + classifier.getClass().getSimpleName() + " on port " + server.getPort());
+	}
+
+	/**
+	 * @param classifier The trained classifier
+	 * @param port Port to listen on, or 0 for any free port
+	 */
+	public ClassificationServer(ClassificationAlgorithm classifier, int port)
+	{
+		this.classifier = classifier;
+		this.port = port;
+	}
+
+	/**
+	 * @param batchSize Most images to classify together
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @param batchWindowMillis Longest to wait for more images after the first of a batch arrives
+	 */
+	public void setBatchWindowMillis(long batchWindowMillis)
+	{
+		this.batchWindowMillis = Math.max(0, batchWindowMillis);
+	}
+
+	/**
+	 * @param threads Threads to classify each batch with
+	 */
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param maxInFlight Most requests accepted at once; the rest are refused with 503
+	 */
+	public void setMaxInFlight(int maxInFlight)
+	{
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/**
+	 * @param maxUpload Largest accepted upload in bytes
+	 */
+	public void setMaxUpload(int maxUpload)
+	{
+		this.maxUpload = maxUpload;
+	}
+
+	/**
+	 * @param reader Decodes uploaded images, for classifiers that read images in a particular way
+	 */
+	public void setReader(InputStreamObjectReader<FImage> reader)
+	{
+		this.reader = reader;
+	}
+
+	/**
+	 * Start listening
+	 * @throws IOException If the port can't be bound
+	 */
+	public synchronized void start() throws IOException
+	{
+		if(server != null)
+			throw new IllegalStateException("Server is already running");
+
+		inFlight = new Semaphore(maxInFlight);
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+
+		// One thread per accepted request; refused requests return without waiting
+		requestPool = Executors.newFixedThreadPool(maxInFlight + 1);
+		server.setExecutor(requestPool);
+		classifyPool = Executors.newFixedThreadPool(threads);
+
+		server.createContext("/classify", new ClassifyHandler());
+		server.createContext("/health", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				respond(exchange, 200, "{\"status\": \"ok\", \"classifier\": \"" + classifier.getClass().getSimpleName() + "\", \"inFlight\": " + (maxInFlight - inFlight.availablePermits()) + "}");
+			}
+		});
+		server.createContext("/metrics", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				respond(exchange, 200, Metrics.toJSON());
+			}
+		});
+
+		batcher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runBatches();
+			}
+		}, "classification-batcher");
+		batcher.setDaemon(true);
+		batcher.start();
+
+		server.start();
+	}
+
+	/**
+	 * Stop listening and fail any requests still waiting
+	 */
+	public synchronized void stop()
+	{
+		if(server == null)
+			return;
+
+		server.stop(0);
+		batcher.interrupt();
+		requestPool.shutdownNow();
+		classifyPool.shutdownNow();
+
+		Pending pending;
+
+		while((pending = queue.poll()) != null)
+		{
+			pending.fail(new IllegalStateException("Server stopped"));
+		}
+
+		server = null;
+	}
+
+	/**
+	 * @return The port the server is listening on
+	 */
+	public synchronized int getPort()
+	{
+		if(server == null)
+			throw new IllegalStateException("Server is not running");
+
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Classify queued images in batches until interrupted
+	 */
+	private void runBatches()
+	{
+		List<Pending> batch = new ArrayList<>(batchSize);
+		List<FImage> images = new ArrayList<>(batchSize);
+
+		while(!Thread.currentThread().isInterrupted())
+		{
+			batch.clear();
+			images.clear();
+
+			try
+			{
+				batch.add(queue.take());
+
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+
+				while(batch.size() < batchSize)
+				{
+					// Take whatever is already waiting, then wait out the window for more
+					Pending next = queue.poll();
+
+					if(next == null)
+					{
+						long remaining = deadline - System.nanoTime();
+
+						if(remaining <= 0)
+							break;
+
+						next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+
+						if(next == null)
+							break;
+					}
+
+					batch.add(next);
+				}
+			}
+			catch(InterruptedException e)
+			{
+				for(Pending pending : batch)
+				{
+					pending.fail(new IllegalStateException("Server stopped"));
+				}
+
+				return;
+			}
+
+			for(Pending pending : batch)
+			{
+				images.add(pending.image);
+			}
+
+			try
+			{
+				List<ClassificationResult<String>> results = classifier.classifyAll(images, classifyPool, Math.min(threads, images.size()));
+
+				for(int i = 0; i < batch.size(); i++)
+				{
+					batch.get(i).complete(results.get(i));
+				}
+			}
+			catch(Throwable e)
+			{
+				// One image that can't be classified fails the whole batch, so classify the
+				// images again one at a time and fail only the requests whose own image fails
+				if(batch.size() > 1)
+					classifyEach(batch);
+				else
+					batch.get(0).fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Classify each image of a batch separately, completing or failing each request on its own.
+	 * Even an Error only fails its own request, or every later request would wait forever.
+	 * @param batch The requests, none of which are done yet
+	 */
+	private void classifyEach(List<Pending> batch)
+	{
+		List<Future<ClassificationResult<String>>> futures = new ArrayList<>(batch.size());
+
+		try
+		{
+			for(final Pending pending : batch)
+			{
+				futures.add(classifyPool.submit(new Callable<ClassificationResult<String>>()
+				{
+					@Override
+					public ClassificationResult<String> call()
+					{
+						return classifier.classify(pending.image);
+					}
+				}));
+			}
+
+			for(int i = 0; i < futures.size(); i++)
+			{
+				try
+				{
+					batch.get(i).complete(futures.get(i).get());
+				}
+				catch(ExecutionException e)
+				{
+					batch.get(i).fail(e.getCause());
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			failRest(batch, new IllegalStateException("Server stopped"));
+		}
+		catch(Throwable e)
+		{
+			failRest(batch, e);
+		}
+		finally
+		{
+			for(Future<ClassificationResult<String>> future : futures)
+			{
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Fail the requests of a batch that aren't done yet
+	 */
+	private static void failRest(List<Pending> batch, Throwable error)
+	{
+		for(Pending pending : batch)
+		{
+			if(pending.done.getCount() > 0)
+				pending.fail(error);
+		}
+	}
+
+	/**
+	 * An image waiting for its batch to be classified
+	 */
+	private static class Pending
+	{
+		final FImage image;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile ClassificationResult<String> result;
+		volatile Throwable error;
+
+		Pending(FImage image)
+		{
+			this.image = image;
+		}
+
+		void complete(ClassificationResult<String> result)
+		{
+			this.result = result;
+			done.countDown();
+		}
+
+		void fail(Throwable error)
+		{
+			this.error = error;
+			done.countDown();
+		}
+	}
+
+	private class ClassifyHandler implements HttpHandler
+	{
+		@Override
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			if(!"POST".equals(exchange.getRequestMethod()))
+			{
+				exchange.getResponseHeaders().set("Allow", "POST");
+				respond(exchange, 405, error("POST an image to classify it"));
+				return;
+			}
+
+			if(!inFlight.tryAcquire())
+			{
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, error("Too many requests in flight"));
+				return;
+			}
+
+			try
+			{
+				long start = Metrics.start();
+				byte[] upload = readBody(exchange.getRequestBody());
+
+				if(upload == null)
+				{
+					respond(exchange, 413, error("Image is larger than " + maxUpload + " bytes"));
+					return;
+				}
+
+				FImage image;
+
+				try
+				{
+					image = reader.read(new ByteArrayInputStream(upload));
+				}
+				catch(IOException | RuntimeException e)
+				{
+					image = null;
+				}
+
+				if(image == null)
+				{
+					respond(exchange, 400, error("Can't decode the image"));
+					return;
+				}
+
+				metrics.record(Metrics.Stage.DECODE, start);
+
+				Pending pending = new Pending(image);
+				queue.add(pending);
+
+				try
+				{
+					pending.done.await();
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					respond(exchange, 503, error("Server stopped"));
+					return;
+				}
+
+				if(pending.error != null)
+				{
+					respond(exchange, 500, error("Classification failed: " + pending.error.getMessage()));
+					return;
+				}
+
+				metrics.record(Metrics.Stage.CLASSIFY, start);
+				respond(exchange, 200, toJSON(pending.result));
+			}
+			finally
+			{
+				inFlight.release();
+			}
+		}
+	}
+
+	/**
+	 * @return The whole body, or null if it's longer than the upload limit
+	 */
+	private byte[] readBody(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		int read;
+
+		while((read = in.read(buffer)) > 0)
+		{
+			if(body.size() + read > maxUpload)
+				return null;
+
+			body.write(buffer, 0, read);
+		}
+
+		return body.toByteArray();
+	}
+
+	/**
+	 * @param result A classification result
+	 * @return The result as JSON, whatever kind of result it is
+	 */
+	@SuppressWarnings("unchecked")
+	protected static String toJSON(ClassificationResult<String> result)
+	{
+		if(result instanceof PrintableClassificationResult)
+			return ((PrintableClassificationResult<String>) result).toJSON();
+
+		PrintableClassificationResult<String> printable = new PrintableClassificationResult<>();
+
+		for(String clazz : result.getPredictedClasses())
+		{
+			printable.put(clazz, result.getConfidence(clazz));
+		}
+
+		return printable.toJSON();
+	}
+
+	private static String error(String message)
+	{
+		return "{\"error\": \"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException
+	{
+		byte[] body = json.getBytes(UTF8);
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+
+		try(OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.annotation.AnnotatedObject;
+
+/**
+ * Trains a classifier on a {@link DecodedCorpus} and classifies its testing images one at a
+ * time, recording accuracy alongside the costs that decide whether the classifier can be
+ * deployed: training wall time, classification throughput and latency, and peak heap use.
+ *
+ * Peak heap is the highest heap use seen while training and classifying, after a garbage
+ * collection at the start. It includes the shared corpus, so compare classifiers against each
+ * other rather than reading it as the classifier's own footprint. Evaluations should run one
+ * after another, since concurrent ones would share the heap and the processors.
+ *
+ * @author Sam Lavers
+ */
+public class ClassifierEvaluation
+{
+	protected final ClassificationAlgorithm classifier;
+	protected final StringBuilder log = new StringBuilder();
+
+	protected long trainingNanos;
+	protected long[] latencies;
+	protected int correct;
+	protected long peakHeap;
+
+	/**
+	 * @param classifier The untrained classifier
+	 */
+	public ClassifierEvaluation(ClassificationAlgorithm classifier)
+	{
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Train the classifier and classify the testing images
+	 * @param corpus The images
+	 */
+	public void run(DecodedCorpus corpus)
+	{
+		List<AnnotatedObject<FImage, String>> testing = corpus.getTesting();
+
+		System.gc();
+		resetPeakHeap();
+
+		long start = System.nanoTime();
+		classifier.train(corpus.getTraining());
+		trainingNanos = System.nanoTime() - start;
+
+		latencies = new long[testing.size()];
+		correct = 0;
+
+		for(int i = 0; i < testing.size(); i++)
+		{
+			AnnotatedObject<FImage, String> image = testing.get(i);
+			String expected = image.getAnnotations().iterator().next();
+
+			start = System.nanoTime();
+			ClassificationResult<String> result = classifier.classify(image.object);
+			latencies[i] = System.nanoTime() - start;
+
+			String returned = mostLikely(result);
+
+			log.append("Expected: " + expected + ", Returned: " + returned);
+			log.append('\n');
+
+			if(returned.equals(expected))
+				correct++;
+		}
+
+		peakHeap = measurePeakHeap();
+
+		Arrays.sort(latencies);
+	}
+
+	/**
+	 * @param result A classification result
+	 * @return The class with the highest confidence, or "unknown" if there is none
+	 */
+	protected static String mostLikely(ClassificationResult<String> result)
+	{
+		double confidence = 0;
+		String mostLikely = "unknown";
+
+		for(String clazz : result.getPredictedClasses())
+		{
+			double conf = result.getConfidence(clazz);
+
+			if(conf > confidence)
+			{
+				mostLikely = clazz;
+				confidence = conf;
+			}
+		}
+
+		return mostLikely;
+	}
+
+	private static void resetPeakHeap()
+	{
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if(pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	private static long measurePeakHeap()
+	{
+		long peak = 0;
+
+		// The pools peak at different times, so the sum may slightly overstate the peak
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if(pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+
+		return peak;
+	}
+
+	public ClassificationAlgorithm getClassifier()
+	{
+		return classifier;
+	}
+
+	/**
+	 * @return Expected and returned class of each testing image, one per line
+	 */
+	public String getLog()
+	{
+		return log.toString();
+	}
+
+	/**
+	 * @return Fraction of testing images classified correctly
+	 */
+	public double getAccuracy()
+	{
+		return latencies.length == 0 ? 0 : correct / (double) latencies.length;
+	}
+
+	/**
+	 * @return Training wall time in milliseconds
+	 */
+	public double getTrainingMillis()
+	{
+		return trainingNanos / 1e6;
+	}
+
+	/**
+	 * @return Images classified per second by a single thread
+	 */
+	public double getImagesPerSecond()
+	{
+		long total = 0;
+
+		for(long latency : latencies)
+		{
+			total += latency;
+		}
+
+		return total == 0 ? 0 : latencies.length / (total / 1e9);
+	}
+
+	/**
+	 * @param percentile Percentile, from 0 to 100
+	 * @return The nearest rank latency of a single classification, in milliseconds
+	 */
+	public double getLatencyMillis(double percentile)
+	{
+		if(latencies.length == 0)
+			return 0;
+
+		int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+
+		return latencies[Math.min(latencies.length - 1, Math.max(0, rank - 1))] / 1e6;
+	}
+
+	/**
+	 * @return Peak heap use while training and classifying, in bytes
+	 */
+	public long getPeakHeap()
+	{
+		return peakHeap;
+	}
+
+	/**
+	 * @return Column headings matching {@link #toString()}
+	 */
+	public static String header()
+	{
+		return String.format("%-20s %8s %10s %10s %8s %8s %8s %10s", "Algorithm", "Accuracy", "Train (s)", "Images/s", "p50 (ms)", "p95 (ms)", "p99 (ms)", "Heap (MB)");
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%-20s %8.3f %10.1f %10.1f %8.2f %8.2f %8.2f %10d", classifier.getClass().getSimpleName(), getAccuracy(), getTrainingMillis() / 1000, getImagesPerSecond(), getLatencyMillis(50), getLatencyMillis(95), getLatencyMillis(99), peakHeap >> 20);
+	}
+}
@@ -0,0 +1,96 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.Locale;
+
+import org.openimaj.data.DataSource;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.ml.clustering.kmeans.ByteKMeans;
+import org.openimaj.ml.clustering.kmeans.FloatKMeans;
+
+/**
+ * The k-means implementations the classifiers can train their codebooks with. The default is
+ * picked by the imageclassifier.kmeans system property, e.g. -Dimageclassifier.kmeans=hamerly
+ *
+ * @author Sam Lavers
+ */
+public enum CodebookTrainer
+{
+	/**
+	 * OpenIMAJ's approximate k-means, assigning with an ensemble of KD-trees
+	 */
+	KDTREE
+	{
+		@Override
+		public FloatCentroidsResult clusterFloats(DataSource<float[]> data, int k)
+		{
+			checkSize(data, k);
+			return FloatKMeans.createKDTreeEnsemble(k).cluster(data);
+		}
+
+		@Override
+		public ByteCentroidsResult clusterBytes(DataSource<byte[]> data, int k)
+		{
+			checkSize(data, k);
+			return ByteKMeans.createKDTreeEnsemble(k).cluster(data);
+		}
+	},
+
+	/**
+	 * Exact multithreaded k-means with k-means++ seeding and Hamerly's bounds
+	 */
+	HAMERLY
+	{
+		@Override
+		public FloatCentroidsResult clusterFloats(DataSource<float[]> data, int k)
+		{
+			checkSize(data, k);
+			return new HamerlyKMeans(k).clusterFloats(data);
+		}
+
+		@Override
+		public ByteCentroidsResult clusterBytes(DataSource<byte[]> data, int k)
+		{
+			checkSize(data, k);
+			return new HamerlyKMeans(k).clusterBytes(data);
+		}
+	};
+
+	final public static String PROPERTY = "imageclassifier.kmeans";
+
+	/**
+	 * Train a codebook of float descriptors
+	 * @param data The descriptors
+	 * @param k Codebook size
+	 * @return The centroids
+	 */
+	public abstract FloatCentroidsResult clusterFloats(DataSource<float[]> data, int k);
+
+	/**
+	 * Train a codebook of byte descriptors
+	 * @param data The descriptors
+	 * @param k Codebook size
+	 * @return The centroids
+	 */
+	public abstract ByteCentroidsResult clusterBytes(DataSource<byte[]> data, int k);
+
+	/**
+	 * Fail before clustering if the sample can't seed a codebook of the requested size, rather
+	 * than part way through with an error from the k-means seeding
+	 * @param data The descriptors
+	 * @param k Codebook size
+	 */
+	private static void checkSize(DataSource<?> data, int k)
+	{
+		if(data.numRows() < k)
+			throw new IllegalArgumentException("Can't train a codebook of " + k + " words from a sample of " + data.numRows() + " descriptors; train on more images, raise the sampling budget or use a smaller codebook");
+	}
+
+	/**
+	 * @return The trainer named by the imageclassifier.kmeans property, or KDTREE if it isn't set
+	 */
+	public static CodebookTrainer getDefault()
+	{
+		return valueOf(System.getProperty(PROPERTY, KDTREE.name()).toUpperCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,530 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+/**
+ * Approximate K-nearest-neighbour index over vectors compressed to a byte per component.
+ *
+ * Each vector is projected onto the leading principal components of the indexed vectors, and
+ * each component is scalar quantised to a signed byte. The projection and the quantiser are
+ * fitted to a sample of the vectors when the index is built. Every component has its own centre
+ * and is clipped to its own range, but all components share one quantisation step. As a
+ * result, the integer sum of squared differences between two codes is the squared distance
+ * between their quantised projections, measured in steps. Components with little variance
+ * are left with only a few levels, which is all that their share of a distance needs.
+ *
+ * A search scans every code. It abandons a row once its partial distance passes the kth best
+ * found so far. The components come in order of decreasing variance, so most rows are
+ * abandoned early. Optionally the original vectors are kept too, and the best candidates
+ * from the codes are re-ranked by their exact distances. This restores exact distances and
+ * most of the lost accuracy, at the cost of storing the vectors.
+ *
+ * Searching does not modify the index, so one instance may be queried from any number of
+ * threads at once.
+ *
+ * @author Sam Lavers
+ */
+public class CompressedIndex implements NearestNeighbourIndex
+{
+	/** Maximum number of vectors sampled to fit the projection and the quantiser */
+	final public static int FIT_SAMPLES = 20000;
+
+	// Fraction of the sample clipped at each end of a component's range
+	final private static double CLIP = 0.001;
+	// Seed for the fitting sample, so that an index can be rebuilt identically
+	final private static long SEED = 0x1DE5;
+	// Components summed between checks against the kth best distance
+	final private static int ABANDON_BLOCK = 16;
+
+	protected final int dims;
+	protected final int components;
+	protected final int size;
+	// Mean of the vectors, and the principal components, each a row of dims values
+	protected final float[] mean;
+	protected final float[] basis;
+	// Centre of each component's range, and the quantisation step shared by every component
+	protected final float[] centres;
+	protected final float step;
+	// Code of each vector, a row of components bytes
+	protected final byte[] codes;
+	// The original vectors, or null if candidates aren't re-ranked
+	protected final float[] vectors;
+	// Number of candidates re-ranked by exact distance
+	protected final int rerank;
+
+	private CompressedIndex(int dims, int components, int size, float[] mean, float[] basis, float[] centres, float step, byte[] codes, float[] vectors, int rerank)
+	{
+		this.dims = dims;
+		this.components = components;
+		this.size = size;
+		this.mean = mean;
+		this.basis = basis;
+		this.centres = centres;
+		this.step = step;
+		this.codes = codes;
+		this.vectors = vectors;
+		this.rerank = rerank;
+	}
+
+	/**
+	 * Fit a projection and quantiser to a flat array of vectors, and compress them. If the
+	 * candidates are to be re-ranked the array is kept, and owned by the index from then on.
+	 *
+	 * @param data Row-major vectors
+	 * @param dims Number of dimensions per vector
+	 * @param components Number of principal components to keep, at most dims
+	 * @param rerank Number of candidates from the codes to re-rank by their exact distance, or
+	 *        0 to rank by the codes alone and not keep the vectors
+	 * @return The index
+	 */
+	public static CompressedIndex build(float[] data, int dims, int components, int rerank)
+	{
+		if(dims <= 0 || data.length % dims != 0)
+			throw new IllegalArgumentException("Data length must be a multiple of the dimensionality");
+		if(components <= 0 || components > dims)
+			throw new IllegalArgumentException("Number of components must be between 1 and " + dims);
+
+		int size = data.length / dims;
+		int[] sample = sample(size);
+
+		float[] mean = new float[dims];
+		double[] sums = new double[dims];
+
+		for(int row : sample)
+		{
+			for(int d = 0; d < dims; d++)
+			{
+				sums[d] += data[row * dims + d];
+			}
+		}
+
+		for(int d = 0; d < dims; d++)
+		{
+			mean[d] = (float) (sums[d] / Math.max(1, sample.length));
+		}
+
+		// Covariance of the sample, accumulated in the lower triangle
+		double[][] covariance = new double[dims][dims];
+		double[] centred = new double[dims];
+
+		for(int row : sample)
+		{
+			for(int d = 0; d < dims; d++)
+			{
+				centred[d] = data[row * dims + d] - mean[d];
+			}
+
+			for(int i = 0; i < dims; i++)
+			{
+				double[] line = covariance[i];
+
+				for(int j = 0; j <= i; j++)
+				{
+					line[j] += centred[i] * centred[j];
+				}
+			}
+		}
+
+		for(int i = 0; i < dims; i++)
+		{
+			for(int j = 0; j <= i; j++)
+			{
+				covariance[i][j] /= Math.max(1, sample.length);
+				covariance[j][i] = covariance[i][j];
+			}
+		}
+
+		// Jama returns the eigenvectors of a symmetric matrix in ascending order of eigenvalue
+		EigenvalueDecomposition eigen = new Matrix(covariance).eig();
+		Matrix v = eigen.getV();
+		float[] basis = new float[components * dims];
+
+		for(int c = 0; c < components; c++)
+		{
+			for(int d = 0; d < dims; d++)
+			{
+				basis[c * dims + d] = (float) v.get(d, dims - 1 - c);
+			}
+		}
+
+		// Fit each component's range to the projected sample, ignoring the extremes
+		float[] centres = new float[components];
+		float range = 0f;
+		float[] projected = new float[sample.length];
+
+		for(int c = 0; c < components; c++)
+		{
+			for(int s = 0; s < sample.length; s++)
+			{
+				projected[s] = project(data, sample[s] * dims, mean, basis, c * dims, dims);
+			}
+
+			Arrays.sort(projected);
+
+			int last = sample.length - 1;
+			float low = projected[(int) (CLIP * last)];
+			float high = projected[(int) ((1 - CLIP) * last)];
+
+			centres[c] = (low + high) / 2;
+			range = Math.max(range, high - low);
+		}
+
+		// Codes run from -127 to 127, so the widest range fills all 255 levels
+		float step = range > 0 ? range / 254 : 1f;
+
+		CompressedIndex index = new CompressedIndex(dims, components, size, mean, basis, centres, step, new byte[size * components], rerank > 0 ? data : null, rerank);
+
+		for(int row = 0; row < size; row++)
+		{
+			index.encode(data, row * dims, index.codes, row * components);
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return Rows to fit the projection and quantiser to
+	 */
+	private static int[] sample(int size)
+	{
+		int[] rows = new int[Math.min(size, FIT_SAMPLES)];
+
+		if(rows.length == size)
+		{
+			for(int i = 0; i < size; i++)
+			{
+				rows[i] = i;
+			}
+		}
+		else
+		{
+			Random random = new Random(SEED);
+
+			for(int i = 0; i < rows.length; i++)
+			{
+				rows[i] = random.nextInt(size);
+			}
+		}
+
+		return rows;
+	}
+
+	/**
+	 * @return The component of a vector along one row of the basis
+	 */
+	private static float project(float[] vector, int offset, float[] mean, float[] basis, int row, int dims)
+	{
+		float sum = 0f;
+
+		for(int d = 0; d < dims; d++)
+		{
+			sum += (vector[offset + d] - mean[d]) * basis[row + d];
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Project and quantise a vector
+	 * @param vector Array holding the vector
+	 * @param offset Start of the vector in the array
+	 * @param code Array to write the code into
+	 * @param at Start of the code in the array
+	 */
+	private void encode(float[] vector, int offset, byte[] code, int at)
+	{
+		for(int c = 0; c < components; c++)
+		{
+			float value = project(vector, offset, mean, basis, c * dims, dims);
+			int level = Math.round((value - centres[c]) / step);
+
+			code[at + c] = (byte) Math.max(-127, Math.min(127, level));
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return dims;
+	}
+
+	/**
+	 * @return Number of principal components each vector is compressed to
+	 */
+	public int numComponents()
+	{
+		return components;
+	}
+
+	/**
+	 * @return Approximate memory held by the index, in bytes
+	 */
+	public long getBytes()
+	{
+		return codes.length + 4L * (mean.length + basis.length + centres.length) + (vectors == null ? 0 : 4L * vectors.length);
+	}
+
+	/**
+	 * Find the K nearest neighbours of a query vector. Without re-ranking the distances are those
+	 * between the quantised projections, which approximate the squared distances.
+	 *
+	 * @param query The query vector
+	 * @param k Number of neighbours
+	 * @param indices Output for the row numbers of the neighbours, nearest first
+	 * @param distances Output for the squared distances of the neighbours
+	 * @return The number of neighbours found, which is less than k only if the index is smaller than k
+	 */
+	@Override
+	public int searchKNN(float[] query, int k, int[] indices, float[] distances)
+	{
+		if(query.length != dims)
+			throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + dims);
+
+		k = Math.min(k, size);
+
+		if(k <= 0)
+			return 0;
+
+		byte[] code = new byte[components];
+		encode(query, 0, code, 0);
+
+		int candidates = vectors == null ? k : Math.min(size, Math.max(k, rerank));
+
+		// Max-heap of the best candidates so far, keyed on distance
+		int[] heapIdx = new int[candidates];
+		int[] heapDist = new int[candidates];
+		int count = 0;
+
+		for(int row = 0, at = 0; row < size; row++, at += components)
+		{
+			if(count < candidates)
+			{
+				heapIdx[count] = row;
+				heapDist[count] = distance(code, at, Integer.MAX_VALUE);
+				siftUp(heapIdx, heapDist, count++);
+				continue;
+			}
+
+			int dist = distance(code, at, heapDist[0]);
+
+			if(dist < heapDist[0])
+			{
+				heapIdx[0] = row;
+				heapDist[0] = dist;
+				siftDown(heapIdx, heapDist, 0, candidates);
+			}
+		}
+
+		if(vectors == null)
+		{
+			float scale = step * step;
+
+			// Pop the heap into ascending order
+			for(int n = count; n > 0; n--)
+			{
+				indices[n - 1] = heapIdx[0];
+				distances[n - 1] = heapDist[0] * scale;
+
+				heapIdx[0] = heapIdx[n - 1];
+				heapDist[0] = heapDist[n - 1];
+				siftDown(heapIdx, heapDist, 0, n - 1);
+			}
+
+			return count;
+		}
+
+		// Re-rank the candidates by exact distance, inserting each into the sorted outputs
+		int found = 0;
+
+		for(int n = 0; n < count; n++)
+		{
+			float dist = exactDistance(query, heapIdx[n]);
+
+			if(found == k && dist >= distances[k - 1])
+				continue;
+
+			int at = found < k ? found++ : k - 1;
+
+			for(; at > 0 && distances[at - 1] > dist; at--)
+			{
+				indices[at] = indices[at - 1];
+				distances[at] = distances[at - 1];
+			}
+
+			indices[at] = heapIdx[n];
+			distances[at] = dist;
+		}
+
+		return found;
+	}
+
+	/**
+	 * Squared distance between a query's code and a row's, in quantisation steps
+	 * @param query The query's code
+	 * @param at Start of the row's code
+	 * @param bound Distance beyond which the row can be abandoned
+	 * @return The distance, or a partial distance of at least the bound
+	 */
+	private int distance(byte[] query, int at, int bound)
+	{
+		int sum = 0;
+
+		for(int from = 0; from < components; from += ABANDON_BLOCK)
+		{
+			int to = Math.min(components, from + ABANDON_BLOCK);
+
+			for(int c = from; c < to; c++)
+			{
+				int diff = query[c] - codes[at + c];
+				sum += diff * diff;
+			}
+
+			if(sum >= bound)
+				return sum;
+		}
+
+		return sum;
+	}
+
+	private float exactDistance(float[] query, int row)
+	{
+		float sum = 0f;
+		int offset = row * dims;
+
+		for(int d = 0; d < dims; d++)
+		{
+			float diff = query[d] - vectors[offset + d];
+			sum += diff * diff;
+		}
+
+		return sum;
+	}
+
+	private static void siftUp(int[] idx, int[] dist, int n)
+	{
+		while(n > 0)
+		{
+			int parent = (n - 1) / 2;
+
+			if(dist[parent] >= dist[n])
+				break;
+
+			swap(idx, dist, parent, n);
+			n = parent;
+		}
+	}
+
+	private static void siftDown(int[] idx, int[] dist, int n, int length)
+	{
+		while(true)
+		{
+			int child = 2 * n + 1;
+
+			if(child >= length)
+				break;
+
+			if(child + 1 < length && dist[child + 1] > dist[child])
+				child++;
+
+			if(dist[n] >= dist[child])
+				break;
+
+			swap(idx, dist, n, child);
+			n = child;
+		}
+	}
+
+	private static void swap(int[] idx, int[] dist, int a, int b)
+	{
+		int ti = idx[a];
+		idx[a] = idx[b];
+		idx[b] = ti;
+
+		int td = dist[a];
+		dist[a] = dist[b];
+		dist[b] = td;
+	}
+
+	/**
+	 * Compress more vectors with this index's projection and quantiser, which aren't fitted
+	 * again, and build an index over both
+	 * @param more Row-major vectors to add
+	 * @return The new index
+	 */
+	@Override
+	public CompressedIndex add(float[] more)
+	{
+		if(more.length % dims != 0)
+			throw new IllegalArgumentException("Data length must be a multiple of the dimensionality");
+
+		int added = more.length / dims;
+		byte[] allCodes = Arrays.copyOf(codes, (size + added) * components);
+		float[] allVectors = null;
+
+		if(vectors != null)
+		{
+			allVectors = Arrays.copyOf(vectors, (size + added) * dims);
+			System.arraycopy(more, 0, allVectors, size * dims, more.length);
+		}
+
+		CompressedIndex index = new CompressedIndex(dims, components, size + added, mean, basis, centres, step, allCodes, allVectors, rerank);
+
+		for(int row = 0; row < added; row++)
+		{
+			encode(more, row * dims, allCodes, (size + row) * components);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Write the index to a model file
+	 * @param out The model file writer
+	 * @throws IOException
+	 */
+	@Override
+	public void write(ModelFile.Writer out) throws IOException
+	{
+		out.writeInt(dims);
+		out.writeInt(components);
+		out.writeInt(rerank);
+		out.writeFloat(step);
+		out.writeFloats(mean);
+		out.writeFloats(basis);
+		out.writeFloats(centres);
+		out.writeBytes(codes);
+		out.writeFloats(vectors == null ? new float[0] : vectors);
+	}
+
+	/**
+	 * Read an index from a model file
+	 * @param in The model file reader
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static CompressedIndex read(ModelFile.Reader in) throws IOException
+	{
+		int dims = in.readInt();
+		int components = in.readInt();
+		int rerank = in.readInt();
+		float step = in.readFloat();
+		float[] mean = in.readFloats();
+		float[] basis = in.readFloats();
+		float[] centres = in.readFloats();
+		byte[] codes = in.readBytes();
+		float[] vectors = in.readFloats();
+
+		return new CompressedIndex(dims, components, codes.length / components, mean, basis, centres, step, codes, vectors.length == 0 ? null : vectors, rerank);
+	}
+}
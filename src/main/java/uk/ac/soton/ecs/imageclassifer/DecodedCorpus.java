@@ -0,0 +1,141 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.annotation.AnnotatedObject;
+
+/**
+ * A random training and testing split of a grouped image dataset, decoded once so that several
+ * classifiers can be evaluated on exactly the same images without decoding them again.
+ *
+ * Only the images in the split are decoded, in parallel. The lists are read only, and the
+ * images are shared between classifiers, so classifiers must not modify them.
+ *
+ * @author Sam Lavers
+ */
+public class DecodedCorpus
+{
+	protected final List<AnnotatedObject<FImage, String>> training;
+	protected final List<AnnotatedObject<FImage, String>> testing;
+
+	final private static Metrics.Recorder metrics = Metrics.recorder(DecodedCorpus.class.getSimpleName());
+
+	/**
+	 * Split and decode a dataset
+	 * @param data The dataset
+	 * @param numTraining Number of training images from each group
+	 * @param numTesting Number of testing images from each group
+	 * @param seed Seed for choosing the images, so that runs can be repeated
+	 */
+	public DecodedCorpus(GroupedDataset<String, ? extends ListDataset<FImage>, FImage> data, int numTraining, int numTesting, long seed)
+	{
+		Random random = new Random(seed);
+
+		final List<ListDataset<FImage>> sources = new ArrayList<>();
+		final List<Integer> indices = new ArrayList<>();
+		List<String> groups = new ArrayList<>();
+
+		for(Map.Entry<String, ? extends ListDataset<FImage>> group : data.entrySet())
+		{
+			ListDataset<FImage> images = group.getValue();
+
+			if(images.size() < numTraining + numTesting)
+				throw new IllegalArgumentException("Group " + group.getKey() + " only has " + images.size() + " images");
+
+			List<Integer> order = new ArrayList<>();
+			for(int i = 0; i < images.size(); i++)
+			{
+				order.add(i);
+			}
+			Collections.shuffle(order, random);
+
+			for(int i = 0; i < numTraining + numTesting; i++)
+			{
+				sources.add(images);
+				indices.add(order.get(i));
+				groups.add(group.getKey());
+			}
+		}
+
+		// Decode every chosen image once, in parallel
+		List<Integer> positions = new ArrayList<>();
+		for(int i = 0; i < indices.size(); i++)
+		{
+			positions.add(i);
+		}
+
+		List<FImage> images = Utilities.extractAll(new FeatureExtractor<FImage, Integer>()
+		{
+			@Override
+			public FImage extractFeature(Integer i)
+			{
+				long start = Metrics.start();
+				FImage image = sources.get(i).getInstance(indices.get(i));
+				metrics.record(Metrics.Stage.DECODE, start);
+
+				return image;
+			}
+		}, positions);
+
+		List<AnnotatedObject<FImage, String>> training = new ArrayList<>();
+		List<AnnotatedObject<FImage, String>> testing = new ArrayList<>();
+
+		for(int i = 0; i < images.size(); i++)
+		{
+			int position = i % (numTraining + numTesting);
+			AnnotatedObject<FImage, String> image = new AnnotatedObject<FImage, String>(images.get(i), groups.get(i));
+
+			if(position < numTraining)
+				training.add(image);
+			else
+				testing.add(image);
+		}
+
+		this.training = Collections.unmodifiableList(training);
+		this.testing = Collections.unmodifiableList(testing);
+	}
+
+	/**
+	 * @return The training images, group by group
+	 */
+	public List<AnnotatedObject<FImage, String>> getTraining()
+	{
+		return training;
+	}
+
+	/**
+	 * @return The testing images, group by group
+	 */
+	public List<AnnotatedObject<FImage, String>> getTesting()
+	{
+		return testing;
+	}
+
+	/**
+	 * @return Approximate memory held by the decoded pixels, in bytes
+	 */
+	public long getBytes()
+	{
+		return getBytes(training) + getBytes(testing);
+	}
+
+	private static long getBytes(List<AnnotatedObject<FImage, String>> images)
+	{
+		long bytes = 0;
+
+		for(AnnotatedObject<FImage, String> image : images)
+		{
+			bytes += 4L * image.object.width * image.object.height;
+		}
+
+		return bytes;
+	}
+}
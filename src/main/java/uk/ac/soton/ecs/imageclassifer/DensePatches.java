@@ -0,0 +1,180 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import org.openimaj.image.FImage;
+
+/**
+ * Dense, overlapping square patches read straight out of an image's pixel array.
+ *
+ * Patches start every {@link #getSeparation()} pixels. The image is first cropped so that its
+ * size is one more than a multiple of the separation, and the parts of the last row and
+ * column of patches that hang over the crop are zero. Each patch is mean-centred and scaled
+ * to unit length, using integral images of the pixels and squared pixels for the statistics.
+ *
+ * One scratch buffer is reused for every patch of an image, so nothing is allocated per patch.
+ *
+ * @author Sam Lavers
+ */
+public class DensePatches
+{
+	protected final int patchSize;
+	protected final int separation;
+
+	/**
+	 * Receives each patch as it is extracted
+	 */
+	public interface Consumer
+	{
+		/**
+		 * @param x Left of the patch
+		 * @param y Top of the patch
+		 * @param patch The normalised pixels in row order; only valid until this method returns
+		 */
+		void patch(int x, int y, float[] patch);
+	}
+
+	/**
+	 * @param patchSize Width and height of a patch
+	 * @param separation Distance between the corners of neighbouring patches
+	 */
+	public DensePatches(int patchSize, int separation)
+	{
+		this.patchSize = patchSize;
+		this.separation = separation;
+	}
+
+	public int getPatchSize()
+	{
+		return patchSize;
+	}
+
+	public int getSeparation()
+	{
+		return separation;
+	}
+
+	/**
+	 * @return Number of values in each patch
+	 */
+	public int numDimensions()
+	{
+		return patchSize * patchSize;
+	}
+
+	/**
+	 * @param image The image
+	 * @return The number of patches that will be extracted from it
+	 */
+	public int countPatches(FImage image)
+	{
+		return columns(image.width) * columns(image.height);
+	}
+
+	private int columns(int size)
+	{
+		// The crop is separation * (size / separation - 1) + 1 wide, with a patch starting at
+		// every multiple of the separation inside it
+		return Math.max(0, size / separation);
+	}
+
+	/**
+	 * Extract every patch of an image into one array
+	 * @param image The image
+	 * @return The patches, one after another
+	 */
+	public float[] extractAll(FImage image)
+	{
+		final int dims = numDimensions();
+		final float[] patches = new float[countPatches(image) * dims];
+
+		extract(image, new Consumer()
+		{
+			int offset = 0;
+
+			@Override
+			public void patch(int x, int y, float[] patch)
+			{
+				System.arraycopy(patch, 0, patches, offset, dims);
+				offset += dims;
+			}
+		});
+
+		return patches;
+	}
+
+	/**
+	 * Extract the patches of an image, passing each to a consumer in row order
+	 * @param image The image
+	 * @param consumer Receives the patches
+	 */
+	public void extract(FImage image, Consumer consumer)
+	{
+		int columns = columns(image.width);
+		int rows = columns(image.height);
+
+		if(columns == 0 || rows == 0)
+			return;
+
+		int cropWidth = separation * (columns - 1) + 1;
+		int cropHeight = separation * (rows - 1) + 1;
+
+		// Integral images of the crop and the zero border that patches hang over
+		int stride = cropWidth + patchSize + 1;
+		int height = cropHeight + patchSize + 1;
+		double[] sum = new double[stride * height];
+		double[] sumSq = new double[stride * height];
+
+		for(int y = 1; y < height; y++)
+		{
+			double rowSum = 0;
+			double rowSumSq = 0;
+			float[] row = y - 1 < cropHeight ? image.pixels[y - 1] : null;
+
+			for(int x = 1; x < stride; x++)
+			{
+				float v = row != null && x - 1 < cropWidth ? row[x - 1] : 0f;
+				rowSum += v;
+				rowSumSq += v * v;
+
+				sum[y * stride + x] = sum[(y - 1) * stride + x] + rowSum;
+				sumSq[y * stride + x] = sumSq[(y - 1) * stride + x] + rowSumSq;
+			}
+		}
+
+		float[] patch = new float[numDimensions()];
+		int n = numDimensions();
+
+		for(int y = 0; y < cropHeight; y += separation)
+		{
+			for(int x = 0; x < cropWidth; x += separation)
+			{
+				int a = y * stride + x;
+				int b = y * stride + x + patchSize;
+				int c = (y + patchSize) * stride + x;
+				int d = (y + patchSize) * stride + x + patchSize;
+
+				double total = sum[d] - sum[b] - sum[c] + sum[a];
+				double totalSq = sumSq[d] - sumSq[b] - sumSq[c] + sumSq[a];
+
+				float mean = (float) (total / n);
+				double variance = totalSq - total * total / n;
+				float scale = variance > 1e-12 ? (float) (1 / Math.sqrt(variance)) : 0f;
+
+				for(int py = 0; py < patchSize; py++)
+				{
+					int iy = y + py;
+					float[] row = iy < cropHeight ? image.pixels[iy] : null;
+
+					for(int px = 0; px < patchSize; px++)
+					{
+						int ix = x + px;
+						float v = row != null && ix < cropWidth ? row[ix] : 0f;
+
+						patch[py * patchSize + px] = (v - mean) * scale;
+					}
+				}
+
+				consumer.patch(x, y, patch);
+			}
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openimaj.data.DataSource;
+import org.openimaj.feature.local.LocalFeature;
+
+/**
+ * Bounded sample of the local descriptors of a training set, for codebook training.
+ *
+ * Images are offered one at a time as they are extracted, and never revisited. At most
+ * perImage descriptors are drawn from each image, so that images with very many keypoints
+ * don't dominate the codebook. The draws are kept in one reservoir per class, and the memory
+ * budget is split evenly between the classes seen so far: each reservoir holds a uniform
+ * sample of everything its class has offered, and when a new class turns up the existing
+ * reservoirs are thinned to a random subset of their new share. The sample therefore never
+ * holds more than the budget, however large the training set grows.
+ *
+ * Offering is synchronized, so images may be offered from the threads that extract them.
+ *
+ * @param <T> Array type of a descriptor, byte[] or float[]
+ * @author Sam Lavers
+ */
+public abstract class DescriptorReservoir<T>
+{
+	/** Default memory budget of the sample, in bytes */
+	final public static long DEFAULT_BUDGET = 64L << 20;
+
+	/** Default number of descriptors drawn from each image */
+	final public static int DEFAULT_PER_IMAGE = 1000;
+
+	protected final int dims;
+	protected final int perImage;
+	// Number of descriptors the budget can hold, over all classes
+	protected final int capacity;
+	protected Random random = new Random();
+
+	// Reservoir of each class, in the order the classes were first offered
+	private final Map<String, Reservoir> reservoirs = new LinkedHashMap<>();
+	private long images;
+	private long offered;
+
+	/**
+	 * Sample of byte descriptors, such as SIFT
+	 */
+	public static class Bytes extends DescriptorReservoir<byte[]>
+	{
+		/**
+		 * @param dims Length of a descriptor
+		 * @param budget Memory budget in bytes
+		 * @param perImage Maximum number of descriptors to draw from each image
+		 */
+		public Bytes(int dims, long budget, int perImage)
+		{
+			super(dims, 1, budget, perImage);
+		}
+
+		@Override
+		protected byte[] newArray(int length)
+		{
+			return new byte[length];
+		}
+
+		@Override
+		protected DataSource<byte[]> dataSource(List<byte[]> blocks)
+		{
+			return new FlatByteDataSource(blocks, dims);
+		}
+	}
+
+	/**
+	 * Sample of float descriptors, such as SURF or image patches
+	 */
+	public static class Floats extends DescriptorReservoir<float[]>
+	{
+		/**
+		 * @param dims Length of a descriptor
+		 * @param budget Memory budget in bytes
+		 * @param perImage Maximum number of descriptors to draw from each image
+		 */
+		public Floats(int dims, long budget, int perImage)
+		{
+			super(dims, 4, budget, perImage);
+		}
+
+		@Override
+		protected float[] newArray(int length)
+		{
+			return new float[length];
+		}
+
+		@Override
+		protected DataSource<float[]> dataSource(List<float[]> blocks)
+		{
+			return new FlatFloatDataSource(blocks, dims);
+		}
+	}
+
+	/**
+	 * One class's descriptors, packed row after row
+	 */
+	private class Reservoir
+	{
+		T rows = newArray(0);
+		int count;
+		// Descriptors of the class drawn from its images so far
+		long seen;
+
+		void offer(Object source, int sourceOffset)
+		{
+			seen++;
+
+			if(count < quota())
+			{
+				if(count * dims == length(rows))
+				{
+					T grown = newArray(Math.min(quota(), Math.max(16, count * 2)) * dims);
+					System.arraycopy(rows, 0, grown, 0, count * dims);
+					rows = grown;
+				}
+
+				System.arraycopy(source, sourceOffset, rows, count * dims, dims);
+				count++;
+			}
+			else
+			{
+				long slot = (long) (random.nextDouble() * seen);
+
+				if(slot < count)
+					System.arraycopy(source, sourceOffset, rows, (int) slot * dims, dims);
+			}
+		}
+
+		/**
+		 * Keep a random subset of the rows
+		 */
+		void shrink(int size)
+		{
+			if(count <= size)
+				return;
+
+			T kept = newArray(size * dims);
+			int[] order = shuffle(count, size);
+
+			for(int i = 0; i < size; i++)
+			{
+				System.arraycopy(rows, order[i] * dims, kept, i * dims, dims);
+			}
+
+			rows = kept;
+			count = size;
+		}
+
+		T trimmed()
+		{
+			if(count * dims == length(rows))
+				return rows;
+
+			T trimmed = newArray(count * dims);
+			System.arraycopy(rows, 0, trimmed, 0, count * dims);
+
+			return trimmed;
+		}
+	}
+
+	/**
+	 * @param dims Length of a descriptor
+	 * @param bytesPerValue Size of one element of a descriptor
+	 * @param budget Memory budget in bytes
+	 * @param perImage Maximum number of descriptors to draw from each image
+	 */
+	protected DescriptorReservoir(int dims, int bytesPerValue, long budget, int perImage)
+	{
+		if(perImage <= 0)
+			throw new IllegalArgumentException("perImage must be positive");
+
+		this.dims = dims;
+		this.perImage = perImage;
+		this.capacity = (int) Math.min(Integer.MAX_VALUE / dims, budget / ((long) dims * bytesPerValue));
+
+		if(capacity <= 0)
+			throw new IllegalArgumentException("A budget of " + budget + " bytes can't hold a descriptor");
+	}
+
+	/**
+	 * @param length Number of elements
+	 * @return A new descriptor array
+	 */
+	protected abstract T newArray(int length);
+
+	/**
+	 * @param blocks Arrays of whole descriptors
+	 * @return A data source over the descriptors
+	 */
+	protected abstract DataSource<T> dataSource(List<T> blocks);
+
+	/**
+	 * @param seed Seed for the sampling, so that runs can be repeated
+	 */
+	public void setSeed(long seed)
+	{
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Offer the descriptors of an image, packed row after row
+	 * @param clazz The image's class
+	 * @param descriptors The descriptors
+	 */
+	public synchronized void offer(String clazz, T descriptors)
+	{
+		Reservoir reservoir = reservoir(clazz);
+		int[] rows = shuffle(length(descriptors) / dims, perImage);
+
+		for(int row : rows)
+		{
+			reservoir.offer(descriptors, row * dims);
+		}
+
+		offered += rows.length;
+	}
+
+	/**
+	 * Offer the local features of an image
+	 * @param clazz The image's class
+	 * @param features The features, whose feature vectors are backed by arrays of type T
+	 */
+	public synchronized void offer(String clazz, List<? extends LocalFeature<?, ?>> features)
+	{
+		Reservoir reservoir = reservoir(clazz);
+		int[] rows = shuffle(features.size(), perImage);
+
+		for(int row : rows)
+		{
+			reservoir.offer(features.get(row).getFeatureVector().getVector(), 0);
+		}
+
+		offered += rows.length;
+	}
+
+	/**
+	 * @return The sampled descriptors, as one data source over every class
+	 */
+	public synchronized DataSource<T> dataSource()
+	{
+		List<T> blocks = new ArrayList<>();
+
+		for(Reservoir reservoir : reservoirs.values())
+		{
+			if(reservoir.count > 0)
+				blocks.add(reservoir.trimmed());
+		}
+
+		return dataSource(blocks);
+	}
+
+	/**
+	 * @return Number of descriptors held
+	 */
+	public synchronized int size()
+	{
+		int size = 0;
+
+		for(Reservoir reservoir : reservoirs.values())
+		{
+			size += reservoir.count;
+		}
+
+		return size;
+	}
+
+	/**
+	 * @return Number of descriptors the budget can hold
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return reservoirs.size() + " classes, " + images + " images, " + size() + " of " + offered + " drawn descriptors kept, capacity " + capacity;
+	}
+
+	/**
+	 * Find a class's reservoir, adding it and thinning the others to their new share if the
+	 * class is new
+	 */
+	private Reservoir reservoir(String clazz)
+	{
+		images++;
+
+		Reservoir reservoir = reservoirs.get(clazz);
+
+		if(reservoir == null)
+		{
+			reservoir = new Reservoir();
+			reservoirs.put(clazz, reservoir);
+
+			for(Reservoir other : reservoirs.values())
+			{
+				other.shrink(quota());
+			}
+		}
+
+		return reservoir;
+	}
+
+	/**
+	 * @return Number of descriptors each class may hold
+	 */
+	private int quota()
+	{
+		return Math.max(1, capacity / Math.max(1, reservoirs.size()));
+	}
+
+	/**
+	 * @param n Number of rows
+	 * @param count Number of rows wanted
+	 * @return min(n, count) distinct random rows, by partial Fisher-Yates shuffle
+	 */
+	private int[] shuffle(int n, int count)
+	{
+		int[] rows = new int[n];
+
+		for(int i = 0; i < n; i++)
+		{
+			rows[i] = i;
+		}
+
+		if(n <= count)
+			return rows;
+
+		for(int i = 0; i < count; i++)
+		{
+			int j = i + random.nextInt(n - i);
+			int t = rows[i];
+			rows[i] = rows[j];
+			rows[j] = t;
+		}
+
+		int[] chosen = new int[count];
+		System.arraycopy(rows, 0, chosen, 0, count);
+
+		return chosen;
+	}
+
+	private static int length(Object array)
+	{
+		return Array.getLength(array);
+	}
+}
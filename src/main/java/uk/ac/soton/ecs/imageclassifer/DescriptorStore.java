@@ -0,0 +1,237 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.openimaj.image.FImage;
+
+/**
+ * Persistent store of extracted local descriptors, so that extraction is skipped for images
+ * that have been seen on a previous run.
+ *
+ * Entries are keyed by a SHA-1 hash of the image's pixels together with a string describing
+ * the extractor and its parameters, so an entry is only reused for the same content passed
+ * through the same extractor. Each entry is a small file made of {@link ModelFile} sections,
+ * read back through a memory mapping.
+ *
+ * The store is off unless the imageclassifier.descriptors system property names its
+ * directory. It is only consulted when training and updating; classify() always extracts, so
+ * that classifying new images doesn't hash them and fill the disk with their descriptors.
+ *
+ * @author Sam Lavers
+ */
+public class DescriptorStore
+{
+	final public static String PROPERTY = "imageclassifier.descriptors";
+
+	final public static int MAGIC = 0x49434453; // "ICDS"
+	final public static int VERSION = 1;
+
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+	final private static char[] HEX = "0123456789abcdef".toCharArray();
+
+	protected final File directory;
+
+	/**
+	 * @param directory Root directory of the store, created if it doesn't exist
+	 */
+	public DescriptorStore(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * @return The store in the directory named by the imageclassifier.descriptors property, or
+	 *         null if the property isn't set
+	 */
+	public static DescriptorStore getDefault()
+	{
+		String path = System.getProperty(PROPERTY, "");
+
+		return path.isEmpty() ? null : new DescriptorStore(new File(path));
+	}
+
+	/**
+	 * Compute the key of an image's descriptors
+	 * @param image The image
+	 * @param extractor Name and parameters of the extractor
+	 * @return Hex encoded key
+	 */
+	public static String key(FImage image, String extractor)
+	{
+		MessageDigest digest;
+
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		digest.update(extractor.getBytes(UTF8));
+
+		byte[] row = new byte[4 * image.width];
+		putInt(row, 0, image.width);
+		putInt(row, 4, image.height);
+		digest.update(row, 0, 8);
+
+		for(float[] pixels : image.pixels)
+		{
+			for(int x = 0; x < image.width; x++)
+			{
+				putInt(row, 4 * x, Float.floatToIntBits(pixels[x]));
+			}
+
+			digest.update(row);
+		}
+
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+
+		for(int i = 0; i < hash.length; i++)
+		{
+			hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value)
+	{
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Look up the descriptors stored under a key
+	 * @param key The key
+	 * @return The descriptors, or null if there are none or the entry can't be read
+	 */
+	public Descriptors get(String key)
+	{
+		File file = getFile(key);
+
+		if(!file.isFile())
+			return null;
+
+		try
+		{
+			ModelFile.Reader in = new ModelFile.Reader(file, MAGIC, VERSION);
+
+			int count = in.readInt();
+			int dims = in.readInt();
+			int locationFields = in.readInt();
+			boolean bytes = in.readInt() != 0;
+			float[] locations = in.readFloats();
+
+			if(bytes)
+				return new Descriptors(count, dims, locationFields, locations, in.readBytes());
+			else
+				return new Descriptors(count, dims, locationFields, locations, in.readFloats());
+		}
+		catch(IOException | RuntimeException e)
+		{
+			// A damaged entry is treated as missing and will be overwritten
+			return null;
+		}
+	}
+
+	/**
+	 * Store descriptors under a key. The entry is written to a temporary file and moved into
+	 * place, so concurrent readers never see a partial entry.
+	 * @param key The key
+	 * @param descriptors The descriptors
+	 * @throws IOException
+	 */
+	public void put(String key, Descriptors descriptors) throws IOException
+	{
+		File file = getFile(key);
+		File parent = file.getParentFile();
+
+		if(!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Can't create " + parent);
+
+		File temp = File.createTempFile(key, ".tmp", parent);
+
+		try
+		{
+			ModelFile.Writer out = new ModelFile.Writer(temp);
+
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(descriptors.count);
+				out.writeInt(descriptors.dims);
+				out.writeInt(descriptors.locationFields);
+				out.writeInt(descriptors.byteVectors != null ? 1 : 0);
+				out.writeFloats(descriptors.locations);
+
+				if(descriptors.byteVectors != null)
+					out.writeBytes(descriptors.byteVectors);
+				else
+					out.writeFloats(descriptors.floatVectors);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			temp.delete();
+		}
+	}
+
+	protected File getFile(String key)
+	{
+		return new File(new File(directory, key.substring(0, 2)), key + ".desc");
+	}
+
+	/**
+	 * The descriptors of one image in flat arrays: for point i, its location is
+	 * locations[i * locationFields ...] and its vector is at [i * dims ...] in whichever of
+	 * the vector arrays is not null
+	 */
+	public static class Descriptors
+	{
+		public final int count;
+		public final int dims;
+		public final int locationFields;
+		public final float[] locations;
+		public final float[] floatVectors;
+		public final byte[] byteVectors;
+
+		public Descriptors(int count, int dims, int locationFields, float[] locations, float[] vectors)
+		{
+			this.count = count;
+			this.dims = dims;
+			this.locationFields = locationFields;
+			this.locations = locations;
+			this.floatVectors = vectors;
+			this.byteVectors = null;
+		}
+
+		public Descriptors(int count, int dims, int locationFields, float[] locations, byte[] vectors)
+		{
+			this.count = count;
+			this.dims = dims;
+			this.locationFields = locationFields;
+			this.locations = locations;
+			this.floatVectors = null;
+			this.byteVectors = vectors;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe LRU cache with a budget in bytes rather than entries. Each value's size is
+ * estimated by a {@link Weigher}, and the least recently used entries are evicted once the
+ * total goes over the budget. Hit, miss and eviction counts are kept so the budget can be
+ * sized from real runs.
+ *
+ * @author Sam Lavers
+ */
+public class FeatureCache<K, V>
+{
+	final public static String PROPERTY = "imageclassifier.featurecache";
+	final public static long DEFAULT_MEGABYTES = 512;
+
+	/**
+	 * Estimates the memory held by a cached value
+	 */
+	public interface Weigher<V>
+	{
+		/**
+		 * @param value The value
+		 * @return Its approximate size in bytes
+		 */
+		long weigh(V value);
+	}
+
+	protected final long maxBytes;
+	protected final Weigher<? super V> weigher;
+
+	// Access-ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes Memory budget in bytes
+	 * @param weigher Estimates the size of each value
+	 */
+	public FeatureCache(long maxBytes, Weigher<? super V> weigher)
+	{
+		this.maxBytes = maxBytes;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Create a cache with the budget given in megabytes by the imageclassifier.featurecache
+	 * property, 512MB by default
+	 * @param weigher Estimates the size of each value
+	 */
+	public FeatureCache(Weigher<? super V> weigher)
+	{
+		this(Long.getLong(PROPERTY, DEFAULT_MEGABYTES) << 20, weigher);
+	}
+
+	/**
+	 * Look up a value, marking it as recently used
+	 * @param key The key
+	 * @return The value, or null if it isn't cached
+	 */
+	public V get(K key)
+	{
+		Entry<V> entry;
+
+		synchronized(entries)
+		{
+			entry = entries.get(key);
+		}
+
+		if(entry == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Add a value, evicting least recently used values to stay within the budget. Values
+	 * bigger than the whole budget are not cached.
+	 * @param key The key
+	 * @param value The value
+	 */
+	public void put(K key, V value)
+	{
+		long weight = weigher.weigh(value);
+
+		if(weight > maxBytes)
+			return;
+
+		synchronized(entries)
+		{
+			Entry<V> previous = entries.put(key, new Entry<V>(value, weight));
+
+			if(previous != null)
+				bytes -= previous.weight;
+
+			bytes += weight;
+
+			Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+
+			while(bytes > maxBytes && it.hasNext())
+			{
+				Entry<V> eldest = it.next().getValue();
+				it.remove();
+				bytes -= eldest.weight;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Remove every value. The counters are kept.
+	 */
+	public void clear()
+	{
+		synchronized(entries)
+		{
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * @return Number of cached values
+	 */
+	public int size()
+	{
+		synchronized(entries)
+		{
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return Estimated size of the cached values in bytes
+	 */
+	public long getBytes()
+	{
+		synchronized(entries)
+		{
+			return bytes;
+		}
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return size() + " entries, " + (getBytes() >> 20) + "/" + (maxBytes >> 20) + "MB, " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions";
+	}
+
+	private static class Entry<V>
+	{
+		final V value;
+		final long weight;
+
+		Entry(V value, long weight)
+		{
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
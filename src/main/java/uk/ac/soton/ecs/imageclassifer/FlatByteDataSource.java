@@ -0,0 +1,149 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.openimaj.data.DataSource;
+
+/**
+ * Data source over rows packed into flat byte arrays, such as the SIFT descriptors of several
+ * images, without a separate array per row. Rows are copied out on request.
+ *
+ * @author Sam Lavers
+ */
+public class FlatByteDataSource implements DataSource<byte[]>
+{
+	protected final List<byte[]> blocks;
+	protected final int dims;
+
+	// Index of the first row of each block, plus the total at the end
+	private final int[] firstRow;
+	private final Random random = new Random();
+
+	/**
+	 * @param blocks Arrays of whole rows
+	 * @param dims Length of a row
+	 */
+	public FlatByteDataSource(List<byte[]> blocks, int dims)
+	{
+		this.blocks = blocks;
+		this.dims = dims;
+		this.firstRow = new int[blocks.size() + 1];
+
+		for(int b = 0; b < blocks.size(); b++)
+		{
+			if(blocks.get(b).length % dims != 0)
+				throw new IllegalArgumentException("Block " + b + " doesn't hold a whole number of rows");
+
+			firstRow[b + 1] = firstRow[b] + blocks.get(b).length / dims;
+		}
+	}
+
+	@Override
+	public int numRows()
+	{
+		return firstRow[blocks.size()];
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return dims;
+	}
+
+	@Override
+	public byte[] getData(int row)
+	{
+		byte[] data = new byte[dims];
+		copyRow(row, data);
+
+		return data;
+	}
+
+	@Override
+	public void getData(int startRow, int stopRow, byte[][] output)
+	{
+		for(int row = startRow; row < stopRow; row++)
+		{
+			copyRow(row, output[row - startRow]);
+		}
+	}
+
+	@Override
+	public void getRandomRows(byte[][] output)
+	{
+		int size = numRows();
+
+		if(output.length > size)
+			throw new IllegalArgumentException("Can't draw " + output.length + " distinct rows from " + size);
+
+		int[] rows = new int[size];
+
+		for(int i = 0; i < size; i++)
+		{
+			rows[i] = i;
+		}
+
+		// Distinct rows by partial Fisher-Yates shuffle
+		for(int i = 0; i < output.length; i++)
+		{
+			int j = i + random.nextInt(size - i);
+			int t = rows[i];
+			rows[i] = rows[j];
+			rows[j] = t;
+
+			copyRow(rows[i], output[i]);
+		}
+	}
+
+	@Override
+	public Iterator<byte[]> iterator()
+	{
+		return new Iterator<byte[]>()
+		{
+			int row = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return row < numRows();
+			}
+
+			@Override
+			public byte[] next()
+			{
+				if(!hasNext())
+					throw new NoSuchElementException();
+
+				return getData(row++);
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private void copyRow(int row, byte[] output)
+	{
+		// Binary search for the block holding the row
+		int lo = 0;
+		int hi = blocks.size() - 1;
+
+		while(lo < hi)
+		{
+			int mid = (lo + hi + 1) >>> 1;
+
+			if(firstRow[mid] <= row)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+
+		System.arraycopy(blocks.get(lo), (row - firstRow[lo]) * dims, output, 0, dims);
+	}
+}
@@ -0,0 +1,719 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Exact K-nearest-neighbour index over vectors held in a single flat float array.
+ * The tree is built once; rows are reordered so that every leaf is a contiguous
+ * block of the array, and the nodes themselves are stored in parallel primitive
+ * arrays rather than as objects. Distances are squared euclidean.
+ *
+ * In high dimensions a tree search visits most of the leaves anyway, so a batch of queries can
+ * instead be searched by brute force with {@link #searchAllKNN}, which computes every distance
+ * from a blocked matrix product.
+ *
+ * Searching does not modify the tree, so one instance may be queried from any
+ * number of threads at once.
+ *
+ * @author Sam Lavers
+ */
+public class FlatKDTree implements NearestNeighbourIndex
+{
+	/** Maximum number of rows stored in a leaf */
+	final public static int LEAF_SIZE = 16;
+
+	// Queries, and rows of the index, in each block of a brute force search. A block of rows
+	// stays in cache while every query in a block is compared with it.
+	final private static int QUERY_BLOCK = 32;
+	final private static int ROW_BLOCK = 128;
+
+	protected final float[] data;
+	protected final int[] ids;
+	protected final int dims;
+	protected final int size;
+	// Squared length of each row, in storage order, for brute force search
+	protected final float[] norms;
+
+	// Node storage. Leaves have a split dimension of -1.
+	private int[] splitDim;
+	private float[] splitValue;
+	private int[] left;
+	private int[] right;
+	private int[] start;
+	private int[] end;
+	private int numNodes;
+
+	/**
+	 * Build a tree over a flat array of vectors. The array is reordered in place
+	 * and owned by the tree from then on.
+	 *
+	 * @param data Row-major vectors, size * dims long
+	 * @param dims Number of dimensions per vector
+	 */
+	public FlatKDTree(float[] data, int dims)
+	{
+		if(dims <= 0 || data.length % dims != 0)
+			throw new IllegalArgumentException("Data length must be a multiple of the dimensionality");
+
+		this.data = data;
+		this.dims = dims;
+		this.size = data.length / dims;
+		this.ids = new int[size];
+
+		for(int i = 0; i < size; i++)
+		{
+			ids[i] = i;
+		}
+
+		int capacity = Math.max(1, 2 * (size / LEAF_SIZE + 1));
+		splitDim = new int[capacity];
+		splitValue = new float[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		start = new int[capacity];
+		end = new int[capacity];
+
+		if(size > 0)
+		{
+			build(0, size);
+		}
+
+		reorder();
+		norms = norms(data, dims, size);
+	}
+
+	private FlatKDTree(float[] data, int[] ids, int dims, int[] splitDim, float[] splitValue, int[] left, int[] right, int[] start, int[] end)
+	{
+		this.data = data;
+		this.ids = ids;
+		this.dims = dims;
+		this.size = ids.length;
+		this.splitDim = splitDim;
+		this.splitValue = splitValue;
+		this.left = left;
+		this.right = right;
+		this.start = start;
+		this.end = end;
+		this.numNodes = splitDim.length;
+		this.norms = norms(data, dims, size);
+	}
+
+	private static float[] norms(float[] data, int dims, int size)
+	{
+		float[] norms = new float[size];
+
+		for(int row = 0; row < size; row++)
+		{
+			float sum = 0f;
+
+			for(int d = row * dims; d < (row + 1) * dims; d++)
+			{
+				sum += data[d] * data[d];
+			}
+
+			norms[row] = sum;
+		}
+
+		return norms;
+	}
+
+	/**
+	 * Write the tree to a model file
+	 * @param out The model file writer
+	 * @throws IOException
+	 */
+	@Override
+	public void write(ModelFile.Writer out) throws IOException
+	{
+		out.writeInt(dims);
+		out.writeFloats(data);
+		out.writeInts(ids);
+		out.writeInts(Arrays.copyOf(splitDim, numNodes));
+		out.writeFloats(Arrays.copyOf(splitValue, numNodes));
+		out.writeInts(Arrays.copyOf(left, numNodes));
+		out.writeInts(Arrays.copyOf(right, numNodes));
+		out.writeInts(Arrays.copyOf(start, numNodes));
+		out.writeInts(Arrays.copyOf(end, numNodes));
+	}
+
+	/**
+	 * Read a tree from a model file without rebuilding it
+	 * @param in The model file reader
+	 * @return The tree
+	 * @throws IOException
+	 */
+	public static FlatKDTree read(ModelFile.Reader in) throws IOException
+	{
+		int dims = in.readInt();
+		float[] data = in.readFloats();
+		int[] ids = in.readInts();
+
+		return new FlatKDTree(data, ids, dims, in.readInts(), in.readFloats(), in.readInts(), in.readInts(), in.readInts(), in.readInts());
+	}
+
+	/**
+	 * @return Number of vectors in the index
+	 */
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return Dimensionality of the indexed vectors
+	 */
+	@Override
+	public int numDimensions()
+	{
+		return dims;
+	}
+
+	/**
+	 * @return A copy of the indexed vectors, in their original row order
+	 */
+	public float[] getVectors()
+	{
+		float[] vectors = new float[size * dims];
+
+		for(int i = 0; i < size; i++)
+		{
+			System.arraycopy(data, i * dims, vectors, ids[i] * dims, dims);
+		}
+
+		return vectors;
+	}
+
+	/**
+	 * Build a new tree over this tree's vectors followed by some more
+	 * @param vectors Row-major vectors to add
+	 * @return The new tree
+	 */
+	@Override
+	public FlatKDTree add(float[] vectors)
+	{
+		float[] all = Arrays.copyOf(getVectors(), size * dims + vectors.length);
+		System.arraycopy(vectors, 0, all, size * dims, vectors.length);
+
+		return new FlatKDTree(all, dims);
+	}
+
+	/**
+	 * Find the K nearest neighbours of a query vector
+	 *
+	 * @param query The query vector
+	 * @param k Number of neighbours
+	 * @param indices Output for the original row numbers of the neighbours, nearest first
+	 * @param distances Output for the squared distances of the neighbours
+	 * @return The number of neighbours found, which is less than k only if the index is smaller than k
+	 */
+	@Override
+	public int searchKNN(float[] query, int k, int[] indices, float[] distances)
+	{
+		if(query.length != dims)
+			throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + dims);
+
+		k = Math.min(k, size);
+
+		if(k <= 0)
+			return 0;
+
+		// Max-heap of the best k candidates so far, keyed on distance
+		int[] heapIdx = new int[k];
+		float[] heapDist = new float[k];
+		int[] count = new int[1];
+
+		search(0, query, k, heapIdx, heapDist, count);
+
+		// Pop the heap into ascending order
+		for(int n = count[0]; n > 0; n--)
+		{
+			indices[n - 1] = ids[heapIdx[0]];
+			distances[n - 1] = heapDist[0];
+
+			heapIdx[0] = heapIdx[n - 1];
+			heapDist[0] = heapDist[n - 1];
+			siftDown(heapIdx, heapDist, 0, n - 1);
+		}
+
+		return count[0];
+	}
+
+	/**
+	 * Find the K nearest neighbours of each of a batch of query vectors by brute force. The
+	 * squared distances are computed as |q|^2 + |r|^2 - 2 q.r, with the dot products taken a
+	 * block of queries against a block of rows at a time, so each block of rows is read from
+	 * memory once per block of queries rather than once per query.
+	 *
+	 * @param queries Row-major query vectors
+	 * @param count Number of queries
+	 * @param k Number of neighbours
+	 * @param indices Output for the original row numbers of each query's neighbours, nearest
+	 *        first, k per query
+	 * @param distances Output for the squared distances of each query's neighbours, k per query
+	 * @param pool Threads to search blocks of queries on, or null to search on this thread
+	 * @return The number of neighbours found for each query, which is less than k only if the
+	 *         index is smaller than k
+	 */
+	public int searchAllKNN(final float[] queries, final int count, final int k, final int[] indices, final float[] distances, ExecutorService pool)
+	{
+		if(queries.length < count * dims)
+			throw new IllegalArgumentException("Expected " + count + " queries of " + dims + " dimensions");
+
+		final int found = Math.min(k, size);
+
+		if(found <= 0 || count == 0)
+			return 0;
+
+		if(pool == null)
+		{
+			for(int from = 0; from < count; from += QUERY_BLOCK)
+			{
+				searchBlock(queries, from, Math.min(count, from + QUERY_BLOCK), found, k, indices, distances);
+			}
+
+			return found;
+		}
+
+		List<Future<?>> futures = new ArrayList<>();
+
+		for(int from = 0; from < count; from += QUERY_BLOCK)
+		{
+			final int first = from;
+
+			futures.add(pool.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					searchBlock(queries, first, Math.min(count, first + QUERY_BLOCK), found, k, indices, distances);
+					return null;
+				}
+			}));
+		}
+
+		try
+		{
+			for(Future<?> future : futures)
+			{
+				future.get();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while searching", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new RuntimeException("Search failed", e.getCause());
+		}
+
+		return found;
+	}
+
+	/**
+	 * Brute force search for a block of queries
+	 * @param queries All of the queries
+	 * @param from First query in the block
+	 * @param to End of the block
+	 * @param found Neighbours to find for each query
+	 * @param k Stride of the outputs
+	 * @param indices Output for the neighbours
+	 * @param distances Output for the distances
+	 */
+	private void searchBlock(float[] queries, int from, int to, int found, int k, int[] indices, float[] distances)
+	{
+		int count = to - from;
+		float[] queryNorms = norms(Arrays.copyOfRange(queries, from * dims, to * dims), dims, count);
+
+		// A max-heap of the best candidates so far for each query, keyed on distance
+		int[][] heapIdx = new int[count][found];
+		float[][] heapDist = new float[count][found];
+		int[] heapSize = new int[count];
+
+		for(int first = 0; first < size; first += ROW_BLOCK)
+		{
+			int last = Math.min(size, first + ROW_BLOCK);
+			int q = 0;
+
+			// Each row is read once for four queries, with a separate sum for each pair
+			for(; q + 4 <= count; q += 4)
+			{
+				int q0 = (from + q) * dims;
+				int q1 = q0 + dims;
+				int q2 = q1 + dims;
+				int q3 = q2 + dims;
+
+				int row = first;
+
+				// Two rows at a time, so each query value loaded serves two sums as well
+				for(; row + 2 <= last; row += 2)
+				{
+					int r = row * dims;
+					int r1 = r + dims;
+					float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+					float t0 = 0f, t1 = 0f, t2 = 0f, t3 = 0f;
+
+					for(int d = 0; d < dims; d++)
+					{
+						float a = data[r + d];
+						float b = data[r1 + d];
+						float v0 = queries[q0 + d];
+						float v1 = queries[q1 + d];
+						float v2 = queries[q2 + d];
+						float v3 = queries[q3 + d];
+						s0 += a * v0;
+						s1 += a * v1;
+						s2 += a * v2;
+						s3 += a * v3;
+						t0 += b * v0;
+						t1 += b * v1;
+						t2 += b * v2;
+						t3 += b * v3;
+					}
+
+					offer(heapIdx[q], heapDist[q], heapSize, q, found, row, queryNorms[q] + norms[row] - 2 * s0);
+					offer(heapIdx[q + 1], heapDist[q + 1], heapSize, q + 1, found, row, queryNorms[q + 1] + norms[row] - 2 * s1);
+					offer(heapIdx[q + 2], heapDist[q + 2], heapSize, q + 2, found, row, queryNorms[q + 2] + norms[row] - 2 * s2);
+					offer(heapIdx[q + 3], heapDist[q + 3], heapSize, q + 3, found, row, queryNorms[q + 3] + norms[row] - 2 * s3);
+					offer(heapIdx[q], heapDist[q], heapSize, q, found, row + 1, queryNorms[q] + norms[row + 1] - 2 * t0);
+					offer(heapIdx[q + 1], heapDist[q + 1], heapSize, q + 1, found, row + 1, queryNorms[q + 1] + norms[row + 1] - 2 * t1);
+					offer(heapIdx[q + 2], heapDist[q + 2], heapSize, q + 2, found, row + 1, queryNorms[q + 2] + norms[row + 1] - 2 * t2);
+					offer(heapIdx[q + 3], heapDist[q + 3], heapSize, q + 3, found, row + 1, queryNorms[q + 3] + norms[row + 1] - 2 * t3);
+				}
+
+				for(; row < last; row++)
+				{
+					int r = row * dims;
+					float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+
+					for(int d = 0; d < dims; d++)
+					{
+						float value = data[r + d];
+						s0 += value * queries[q0 + d];
+						s1 += value * queries[q1 + d];
+						s2 += value * queries[q2 + d];
+						s3 += value * queries[q3 + d];
+					}
+
+					offer(heapIdx[q], heapDist[q], heapSize, q, found, row, queryNorms[q] + norms[row] - 2 * s0);
+					offer(heapIdx[q + 1], heapDist[q + 1], heapSize, q + 1, found, row, queryNorms[q + 1] + norms[row] - 2 * s1);
+					offer(heapIdx[q + 2], heapDist[q + 2], heapSize, q + 2, found, row, queryNorms[q + 2] + norms[row] - 2 * s2);
+					offer(heapIdx[q + 3], heapDist[q + 3], heapSize, q + 3, found, row, queryNorms[q + 3] + norms[row] - 2 * s3);
+				}
+			}
+
+			for(; q < count; q++)
+			{
+				int q0 = (from + q) * dims;
+
+				for(int row = first; row < last; row++)
+				{
+					int r = row * dims;
+					float sum = 0f;
+
+					for(int d = 0; d < dims; d++)
+					{
+						sum += data[r + d] * queries[q0 + d];
+					}
+
+					offer(heapIdx[q], heapDist[q], heapSize, q, found, row, queryNorms[q] + norms[row] - 2 * sum);
+				}
+			}
+		}
+
+		// Pop each heap into ascending order
+		for(int q = 0; q < count; q++)
+		{
+			int out = (from + q) * k;
+
+			for(int n = heapSize[q]; n > 0; n--)
+			{
+				indices[out + n - 1] = ids[heapIdx[q][0]];
+				distances[out + n - 1] = heapDist[q][0];
+
+				heapIdx[q][0] = heapIdx[q][n - 1];
+				heapDist[q][0] = heapDist[q][n - 1];
+				siftDown(heapIdx[q], heapDist[q], 0, n - 1);
+			}
+		}
+	}
+
+	/**
+	 * Offer a row to a query's heap of candidates
+	 */
+	private static void offer(int[] heapIdx, float[] heapDist, int[] heapSize, int q, int k, int row, float dist)
+	{
+		// Rounding can take the distance of a near duplicate just below zero
+		dist = Math.max(0f, dist);
+
+		if(heapSize[q] < k)
+		{
+			int n = heapSize[q]++;
+			heapIdx[n] = row;
+			heapDist[n] = dist;
+			siftUp(heapIdx, heapDist, n);
+		}
+		else if(dist < heapDist[0])
+		{
+			heapIdx[0] = row;
+			heapDist[0] = dist;
+			siftDown(heapIdx, heapDist, 0, k);
+		}
+	}
+
+	private void search(int node, float[] query, int k, int[] heapIdx, float[] heapDist, int[] count)
+	{
+		int dim = splitDim[node];
+
+		if(dim < 0)
+		{
+			for(int row = start[node]; row < end[node]; row++)
+			{
+				float dist = distance(query, row);
+
+				if(count[0] < k)
+				{
+					int n = count[0]++;
+					heapIdx[n] = row;
+					heapDist[n] = dist;
+					siftUp(heapIdx, heapDist, n);
+				}
+				else if(dist < heapDist[0])
+				{
+					heapIdx[0] = row;
+					heapDist[0] = dist;
+					siftDown(heapIdx, heapDist, 0, k);
+				}
+			}
+
+			return;
+		}
+
+		float diff = query[dim] - splitValue[node];
+		int near = diff <= 0 ? left[node] : right[node];
+		int far = diff <= 0 ? right[node] : left[node];
+
+		search(near, query, k, heapIdx, heapDist, count);
+
+		if(count[0] < k || diff * diff < heapDist[0])
+		{
+			search(far, query, k, heapIdx, heapDist, count);
+		}
+	}
+
+	private float distance(float[] query, int row)
+	{
+		float sum = 0f;
+		int offset = row * dims;
+
+		for(int d = 0; d < dims; d++)
+		{
+			float diff = query[d] - data[offset + d];
+			sum += diff * diff;
+		}
+
+		return sum;
+	}
+
+	private static void siftUp(int[] idx, float[] dist, int n)
+	{
+		while(n > 0)
+		{
+			int parent = (n - 1) / 2;
+
+			if(dist[parent] >= dist[n])
+				break;
+
+			swap(idx, dist, parent, n);
+			n = parent;
+		}
+	}
+
+	private static void siftDown(int[] idx, float[] dist, int n, int length)
+	{
+		while(true)
+		{
+			int child = 2 * n + 1;
+
+			if(child >= length)
+				break;
+
+			if(child + 1 < length && dist[child + 1] > dist[child])
+				child++;
+
+			if(dist[n] >= dist[child])
+				break;
+
+			swap(idx, dist, n, child);
+			n = child;
+		}
+	}
+
+	private static void swap(int[] idx, float[] dist, int a, int b)
+	{
+		int ti = idx[a];
+		idx[a] = idx[b];
+		idx[b] = ti;
+
+		float td = dist[a];
+		dist[a] = dist[b];
+		dist[b] = td;
+	}
+
+	/**
+	 * Recursively build the subtree over ids[from, to)
+	 * @return The node index
+	 */
+	private int build(int from, int to)
+	{
+		int node = numNodes++;
+		ensureCapacity(numNodes);
+
+		start[node] = from;
+		end[node] = to;
+
+		if(to - from <= LEAF_SIZE)
+		{
+			splitDim[node] = -1;
+			return node;
+		}
+
+		// Split on the dimension with the widest spread
+		int bestDim = 0;
+		float bestSpread = -1f;
+
+		for(int d = 0; d < dims; d++)
+		{
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+
+			for(int i = from; i < to; i++)
+			{
+				float v = data[ids[i] * dims + d];
+				if(v < min) min = v;
+				if(v > max) max = v;
+			}
+
+			if(max - min > bestSpread)
+			{
+				bestSpread = max - min;
+				bestDim = d;
+			}
+		}
+
+		if(bestSpread <= 0f)
+		{
+			// All remaining points are identical
+			splitDim[node] = -1;
+			return node;
+		}
+
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, bestDim);
+
+		splitDim[node] = bestDim;
+		splitValue[node] = data[ids[mid] * dims + bestDim];
+
+		int l = build(from, mid);
+		int r = build(mid, to);
+		left[node] = l;
+		right[node] = r;
+
+		return node;
+	}
+
+	/**
+	 * Quickselect ids[lo..hi] so that ids[k] holds the median along dim
+	 */
+	private void select(int lo, int hi, int k, int dim)
+	{
+		while(lo < hi)
+		{
+			float pivot = data[ids[(lo + hi) >>> 1] * dims + dim];
+			int i = lo;
+			int j = hi;
+
+			while(i <= j)
+			{
+				while(data[ids[i] * dims + dim] < pivot) i++;
+				while(data[ids[j] * dims + dim] > pivot) j--;
+
+				if(i <= j)
+				{
+					int t = ids[i];
+					ids[i] = ids[j];
+					ids[j] = t;
+					i++;
+					j--;
+				}
+			}
+
+			if(k <= j)
+				hi = j;
+			else if(k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void ensureCapacity(int n)
+	{
+		if(n <= splitDim.length)
+			return;
+
+		int capacity = splitDim.length * 2;
+		splitDim = Arrays.copyOf(splitDim, capacity);
+		splitValue = Arrays.copyOf(splitValue, capacity);
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		start = Arrays.copyOf(start, capacity);
+		end = Arrays.copyOf(end, capacity);
+	}
+
+	/**
+	 * Permute the rows of the data array into tree order so that leaves are contiguous
+	 */
+	private void reorder()
+	{
+		float[] row = new float[dims];
+		boolean[] done = new boolean[size];
+
+		// Follow each permutation cycle: position i must receive the row currently at ids[i]
+		for(int i = 0; i < size; i++)
+		{
+			if(done[i] || ids[i] == i)
+			{
+				done[i] = true;
+				continue;
+			}
+
+			System.arraycopy(data, i * dims, row, 0, dims);
+
+			int dst = i;
+			while(true)
+			{
+				int src = ids[dst];
+				done[dst] = true;
+
+				if(src == i)
+				{
+					System.arraycopy(row, 0, data, dst * dims, dims);
+					break;
+				}
+
+				System.arraycopy(data, src * dims, data, dst * dims, dims);
+				dst = src;
+			}
+		}
+	}
+}
@@ -0,0 +1,687 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openimaj.data.DataSource;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+
+/**
+ * Exact k-means for codebook training.
+ *
+ * Centroids are seeded with k-means++ on a random sample of the data. Lloyd iterations then
+ * use Hamerly's bounds: each row keeps an upper bound on the distance to its centroid and a
+ * lower bound on the distance to every other centroid, so most rows are settled without
+ * computing any distances. Assignment and centroid updates are partitioned across threads.
+ *
+ * Both float and byte descriptors are supported; byte rows are treated as signed values, as
+ * OpenIMAJ's byte assigners do, and the final centroids are rounded back to bytes.
+ *
+ * @author Sam Lavers
+ */
+public class HamerlyKMeans
+{
+	final public static int DEFAULT_MAX_ITERATIONS = 30;
+
+	/** Size of the k-means++ seeding sample, per cluster */
+	final public static int SEED_SAMPLE_PER_CLUSTER = 32;
+
+	// Rows read from the data source at a time
+	final private static int BLOCK_SIZE = 4096;
+
+	protected final int k;
+	protected int maxIterations = DEFAULT_MAX_ITERATIONS;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	protected Random random = new Random();
+	protected boolean verbose = true;
+
+	private List<Long> iterationTimes = new ArrayList<>();
+
+	// Training state, only held during a call to cluster
+	private int size;
+	private int dims;
+	private float[] floatData;
+	private byte[] byteData;
+	private float[] centroids;
+	private int[] assignment;
+	private float[] upper;
+	private float[] lower;
+	private float[] halfGap;
+	private float[] movement;
+	private int maxMoved;
+	private float maxMovement;
+	private float secondMovement;
+	private double[][] sums;
+	private int[][] counts;
+	private ExecutorService pool;
+
+	/**
+	 * @param k Number of clusters
+	 */
+	public HamerlyKMeans(int k)
+	{
+		if(k <= 0)
+			throw new IllegalArgumentException("k must be positive");
+
+		this.k = k;
+	}
+
+	/**
+	 * @param maxIterations Maximum number of Lloyd iterations after seeding
+	 */
+	public void setMaxIterations(int maxIterations)
+	{
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * @param threads Number of threads to use
+	 */
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param seed Seed for the random sampling, so that runs can be repeated
+	 */
+	public void setSeed(long seed)
+	{
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param verbose Whether to print the progress of each iteration
+	 */
+	public void setVerbose(boolean verbose)
+	{
+		this.verbose = verbose;
+	}
+
+	/**
+	 * @return The wall-clock time of each iteration of the last run in milliseconds; the
+	 *         first entry is the seeding and initial assignment
+	 */
+	public List<Long> getIterationTimes()
+	{
+		return iterationTimes;
+	}
+
+	/**
+	 * Cluster float descriptors
+	 * @param data The descriptors
+	 * @return The centroids
+	 */
+	public FloatCentroidsResult clusterFloats(DataSource<float[]> data)
+	{
+		size = data.numRows();
+		dims = data.numDimensions();
+		floatData = new float[Utilities.flatLength(size, dims)];
+
+		float[][] block = new float[Math.min(BLOCK_SIZE, size)][dims];
+
+		for(int from = 0; from < size; from += block.length)
+		{
+			int to = Math.min(size, from + block.length);
+			data.getData(from, to, block);
+
+			for(int i = from; i < to; i++)
+			{
+				System.arraycopy(block[i - from], 0, floatData, i * dims, dims);
+			}
+		}
+
+		run();
+
+		FloatCentroidsResult result = new FloatCentroidsResult();
+		result.centroids = new float[k][dims];
+
+		for(int j = 0; j < k; j++)
+		{
+			System.arraycopy(centroids, j * dims, result.centroids[j], 0, dims);
+		}
+
+		release();
+
+		return result;
+	}
+
+	/**
+	 * Cluster byte descriptors
+	 * @param data The descriptors
+	 * @return The centroids
+	 */
+	public ByteCentroidsResult clusterBytes(DataSource<byte[]> data)
+	{
+		size = data.numRows();
+		dims = data.numDimensions();
+		byteData = new byte[Utilities.flatLength(size, dims)];
+
+		byte[][] block = new byte[Math.min(BLOCK_SIZE, size)][dims];
+
+		for(int from = 0; from < size; from += block.length)
+		{
+			int to = Math.min(size, from + block.length);
+			data.getData(from, to, block);
+
+			for(int i = from; i < to; i++)
+			{
+				System.arraycopy(block[i - from], 0, byteData, i * dims, dims);
+			}
+		}
+
+		run();
+
+		ByteCentroidsResult result = new ByteCentroidsResult();
+		result.centroids = new byte[k][dims];
+
+		for(int j = 0; j < k; j++)
+		{
+			for(int d = 0; d < dims; d++)
+			{
+				int value = Math.round(centroids[j * dims + d]);
+				result.centroids[j][d] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, value));
+			}
+		}
+
+		release();
+
+		return result;
+	}
+
+	private void run()
+	{
+		if(size < k)
+			throw new IllegalArgumentException("Can't find " + k + " clusters in " + size + " rows");
+
+		iterationTimes = new ArrayList<>();
+		pool = Executors.newFixedThreadPool(threads);
+
+		try
+		{
+			long start = System.currentTimeMillis();
+
+			centroids = new float[k * dims];
+			assignment = new int[size];
+			upper = new float[size];
+			lower = new float[size];
+			halfGap = new float[k];
+			movement = new float[k];
+			sums = new double[threads][k * dims];
+			counts = new int[threads][k];
+
+			seed();
+			assignAll();
+
+			logIteration(0, size, start);
+
+			int changed = size;
+
+			for(int iteration = 1; iteration <= maxIterations && changed > 0; iteration++)
+			{
+				start = System.currentTimeMillis();
+
+				updateCentroids();
+				updateHalfGaps();
+				changed = assign();
+
+				logIteration(iteration, changed, start);
+			}
+
+			// Leave the centroids at the means of the final assignment
+			if(changed > 0)
+			{
+				updateCentroids();
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	private void logIteration(int iteration, int changed, long start)
+	{
+		long time = System.currentTimeMillis() - start;
+		iterationTimes.add(time);
+
+		if(verbose)
+			System.out.println("k-means iteration " + iteration + ": " + changed + " of " + size + " rows reassigned in " + time + "ms");
+	}
+
+	private void release()
+	{
+		floatData = null;
+		byteData = null;
+		centroids = null;
+		assignment = null;
+		upper = null;
+		lower = null;
+		halfGap = null;
+		movement = null;
+		sums = null;
+		counts = null;
+		pool = null;
+	}
+
+	/**
+	 * k-means++ seeding over a random sample of the rows
+	 */
+	private void seed()
+	{
+		int sampleSize = (int) Math.min(size, (long) k * SEED_SAMPLE_PER_CLUSTER);
+		final int[] sample = new int[size];
+
+		for(int i = 0; i < size; i++)
+		{
+			sample[i] = i;
+		}
+
+		// Partial Fisher-Yates shuffle to pick the sample
+		for(int i = 0; i < sampleSize; i++)
+		{
+			int j = i + random.nextInt(size - i);
+			int t = sample[i];
+			sample[i] = sample[j];
+			sample[j] = t;
+		}
+
+		final float[] nearest = new float[sampleSize];
+		Arrays.fill(nearest, Float.POSITIVE_INFINITY);
+
+		copyRow(sample[random.nextInt(sampleSize)], 0);
+
+		for(int j = 1; j <= k; j++)
+		{
+			final int previous = j - 1;
+
+			// Bring each sample's distance to its nearest seed up to date with the latest seed
+			parallel(sampleSize, new RangeTask()
+			{
+				@Override
+				public int run(int from, int to, int chunk)
+				{
+					for(int s = from; s < to; s++)
+					{
+						float dist = distance(sample[s], previous);
+
+						if(dist < nearest[s])
+							nearest[s] = dist;
+					}
+
+					return 0;
+				}
+			});
+
+			if(j == k)
+				break;
+
+			double total = 0;
+
+			for(int s = 0; s < sampleSize; s++)
+			{
+				total += nearest[s];
+			}
+
+			// Pick the next seed with probability proportional to its squared distance
+			int chosen = sampleSize - 1;
+
+			if(total > 0)
+			{
+				double target = random.nextDouble() * total;
+
+				for(int s = 0; s < sampleSize; s++)
+				{
+					target -= nearest[s];
+
+					if(target < 0)
+					{
+						chosen = s;
+						break;
+					}
+				}
+			}
+			else
+			{
+				chosen = random.nextInt(sampleSize);
+			}
+
+			copyRow(sample[chosen], j);
+		}
+	}
+
+	private void copyRow(int row, int centroid)
+	{
+		int offset = row * dims;
+		int target = centroid * dims;
+
+		for(int d = 0; d < dims; d++)
+		{
+			centroids[target + d] = floatData != null ? floatData[offset + d] : byteData[offset + d];
+		}
+	}
+
+	/**
+	 * Exact assignment of every row, initialising the bounds
+	 */
+	private void assignAll()
+	{
+		parallel(size, new RangeTask()
+		{
+			@Override
+			public int run(int from, int to, int chunk)
+			{
+				for(int i = from; i < to; i++)
+				{
+					searchAll(i);
+				}
+
+				return 0;
+			}
+		});
+	}
+
+	/**
+	 * One pruned assignment pass
+	 * @return The number of rows that changed cluster
+	 */
+	private int assign()
+	{
+		return parallel(size, new RangeTask()
+		{
+			@Override
+			public int run(int from, int to, int chunk)
+			{
+				int changed = 0;
+
+				for(int i = from; i < to; i++)
+				{
+					int a = assignment[i];
+
+					// Move the bounds by how far the centroids moved
+					float u = upper[i] + movement[a];
+					float l = lower[i] - (a == maxMoved ? secondMovement : maxMovement);
+					float bound = Math.max(halfGap[a], l);
+
+					upper[i] = u;
+					lower[i] = l;
+
+					if(u <= bound)
+						continue;
+
+					// Tighten the upper bound and try again before searching
+					u = (float) Math.sqrt(distance(i, a));
+					upper[i] = u;
+
+					if(u <= bound)
+						continue;
+
+					if(searchAll(i) != a)
+						changed++;
+				}
+
+				return changed;
+			}
+		});
+	}
+
+	/**
+	 * Find the nearest centroid to a row by brute force and reset its bounds
+	 * @return The nearest centroid
+	 */
+	private int searchAll(int row)
+	{
+		int best = 0;
+		float bestDist = Float.POSITIVE_INFINITY;
+		float secondDist = Float.POSITIVE_INFINITY;
+
+		for(int j = 0; j < k; j++)
+		{
+			float dist = distance(row, j);
+
+			if(dist < bestDist)
+			{
+				secondDist = bestDist;
+				bestDist = dist;
+				best = j;
+			}
+			else if(dist < secondDist)
+			{
+				secondDist = dist;
+			}
+		}
+
+		assignment[row] = best;
+		upper[row] = (float) Math.sqrt(bestDist);
+		lower[row] = (float) Math.sqrt(secondDist);
+
+		return best;
+	}
+
+	/**
+	 * Move each centroid to the mean of its rows and record how far it moved. Empty clusters
+	 * stay where they are.
+	 */
+	private void updateCentroids()
+	{
+		for(int t = 0; t < threads; t++)
+		{
+			Arrays.fill(sums[t], 0);
+			Arrays.fill(counts[t], 0);
+		}
+
+		parallel(size, new RangeTask()
+		{
+			@Override
+			public int run(int from, int to, int chunk)
+			{
+				double[] sum = sums[chunk];
+				int[] count = counts[chunk];
+
+				for(int i = from; i < to; i++)
+				{
+					int target = assignment[i] * dims;
+					int offset = i * dims;
+					count[assignment[i]]++;
+
+					if(floatData != null)
+					{
+						for(int d = 0; d < dims; d++)
+						{
+							sum[target + d] += floatData[offset + d];
+						}
+					}
+					else
+					{
+						for(int d = 0; d < dims; d++)
+						{
+							sum[target + d] += byteData[offset + d];
+						}
+					}
+				}
+
+				return 0;
+			}
+		});
+
+		maxMoved = -1;
+		maxMovement = 0;
+		secondMovement = 0;
+
+		for(int j = 0; j < k; j++)
+		{
+			int count = 0;
+
+			for(int t = 0; t < threads; t++)
+			{
+				count += counts[t][j];
+			}
+
+			if(count == 0)
+			{
+				movement[j] = 0;
+				continue;
+			}
+
+			double moved = 0;
+
+			for(int d = 0; d < dims; d++)
+			{
+				double sum = 0;
+
+				for(int t = 0; t < threads; t++)
+				{
+					sum += sums[t][j * dims + d];
+				}
+
+				float mean = (float) (sum / count);
+				double diff = mean - centroids[j * dims + d];
+				moved += diff * diff;
+				centroids[j * dims + d] = mean;
+			}
+
+			movement[j] = (float) Math.sqrt(moved);
+
+			if(movement[j] > maxMovement)
+			{
+				secondMovement = maxMovement;
+				maxMovement = movement[j];
+				maxMoved = j;
+			}
+			else if(movement[j] > secondMovement)
+			{
+				secondMovement = movement[j];
+			}
+		}
+	}
+
+	/**
+	 * Half the distance from each centroid to its nearest other centroid; a row closer than
+	 * this to its own centroid can't be closer to any other
+	 */
+	private void updateHalfGaps()
+	{
+		parallel(k, new RangeTask()
+		{
+			@Override
+			public int run(int from, int to, int chunk)
+			{
+				for(int j = from; j < to; j++)
+				{
+					float nearest = Float.POSITIVE_INFINITY;
+
+					for(int other = 0; other < k; other++)
+					{
+						if(other == j)
+							continue;
+
+						float sum = 0f;
+
+						for(int d = 0; d < dims; d++)
+						{
+							float diff = centroids[j * dims + d] - centroids[other * dims + d];
+							sum += diff * diff;
+						}
+
+						if(sum < nearest)
+							nearest = sum;
+					}
+
+					halfGap[j] = (float) Math.sqrt(nearest) / 2;
+				}
+
+				return 0;
+			}
+		});
+	}
+
+	/**
+	 * Squared euclidean distance between a row and a centroid
+	 */
+	private float distance(int row, int centroid)
+	{
+		float sum = 0f;
+		int offset = row * dims;
+		int target = centroid * dims;
+
+		if(floatData != null)
+		{
+			for(int d = 0; d < dims; d++)
+			{
+				float diff = floatData[offset + d] - centroids[target + d];
+				sum += diff * diff;
+			}
+		}
+		else
+		{
+			for(int d = 0; d < dims; d++)
+			{
+				float diff = byteData[offset + d] - centroids[target + d];
+				sum += diff * diff;
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Split [0, length) into one contiguous chunk per thread and run them on the pool
+	 * @return The sum of the chunks' results
+	 */
+	private int parallel(int length, final RangeTask task)
+	{
+		int chunkSize = (length + threads - 1) / threads;
+		List<Future<Integer>> futures = new ArrayList<>(threads);
+
+		for(int t = 0; t < threads; t++)
+		{
+			final int chunk = t;
+			final int from = Math.min(length, t * chunkSize);
+			final int to = Math.min(length, from + chunkSize);
+
+			futures.add(pool.submit(new Callable<Integer>()
+			{
+				@Override
+				public Integer call()
+				{
+					return task.run(from, to, chunk);
+				}
+			}));
+		}
+
+		int total = 0;
+
+		try
+		{
+			for(Future<Integer> future : futures)
+			{
+				total += future.get();
+			}
+		}
+		catch(InterruptedException | ExecutionException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		return total;
+	}
+
+	private interface RangeTask
+	{
+		/**
+		 * @param from First index, inclusive
+		 * @param to Last index, exclusive
+		 * @param chunk Index of the chunk, from 0 to the number of threads
+		 * @return A count to be summed over all chunks
+		 */
+		int run(int from, int to, int chunk);
+	}
+}
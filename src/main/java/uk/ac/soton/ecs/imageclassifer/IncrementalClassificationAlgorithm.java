@@ -0,0 +1,28 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.List;
+
+import org.openimaj.image.FImage;
+import org.openimaj.ml.annotation.Annotated;
+
+/**
+ * A classification algorithm whose trained model can be extended with more labelled images,
+ * including images of classes it hasn't seen, without training again from scratch. Only the new
+ * images' features are extracted, and whatever the model learnt from the original training set
+ * without a label, such as a codebook, is kept as it is.
+ *
+ * <p>Like training, an update must not run concurrently with anything else on the same
+ * instance.
+ *
+ * @author Sam Lavers
+ */
+public interface IncrementalClassificationAlgorithm extends ClassificationAlgorithm
+{
+	/**
+	 * Update the trained classifier with more labelled images
+	 * @param data The new images
+	 * @return How the update changed the classifier, and an indication of how far it has drifted
+	 *         from what training from scratch on all of the images would give
+	 */
+	public UpdateReport update(List<? extends Annotated<FImage, String>> data);
+}
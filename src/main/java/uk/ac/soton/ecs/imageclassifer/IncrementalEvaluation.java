@@ -0,0 +1,131 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.ml.annotation.AnnotatedObject;
+
+/**
+ * Measures how far an incrementally updated classifier drifts from one trained from scratch.
+ *
+ * The training images of each class are split into an initial set and an update. One instance
+ * of the classifier is trained on the initial set and then updated; another is trained on both
+ * at once. The last few classes can be left out of the initial set, so that the update has to
+ * add them. Both are then tested on the same testing images, and their accuracies, how often
+ * they agree, and the time taken by the update and by the full retrain are reported.
+ *
+ * @author Sam Lavers
+ */
+public class IncrementalEvaluation
+{
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length < 4)
+			throw new IllegalArgumentException("Usage: IncrementalEvaluation <algorithm> <num initial> <num update> <num testing> [num new classes] [seed]");
+
+		IncrementalClassificationAlgorithm updated = create(args[0]);
+		IncrementalClassificationAlgorithm retrained = create(args[0]);
+		int numInitial = Integer.parseInt(args[1]), numUpdate = Integer.parseInt(args[2]), numTesting = Integer.parseInt(args[3]);
+		int numNew = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : System.currentTimeMillis();
+
+		File trainingFile = new File("imagesets/training");
+
+		VFSGroupDataset<FImage> data = new VFSGroupDataset<>(
+			trainingFile.getAbsolutePath(),
+			ImageUtilities.FIMAGE_READER);
+
+		System.out.println("Decoding split with seed " + seed + "...");
+		DecodedCorpus corpus = new DecodedCorpus(data, numInitial + numUpdate, numTesting, seed);
+
+		List<AnnotatedObject<FImage, String>> initial = new ArrayList<>();
+		List<AnnotatedObject<FImage, String>> update = new ArrayList<>();
+		List<String> newClasses = newClasses(corpus.getTraining(), numNew);
+		Map<String, Integer> positions = new HashMap<>();
+
+		// The training images come group by group, numInitial + numUpdate of each
+		for(AnnotatedObject<FImage, String> image : corpus.getTraining())
+		{
+			String clazz = image.getAnnotations().iterator().next();
+			Integer position = positions.get(clazz);
+			position = position == null ? 0 : position;
+			positions.put(clazz, position + 1);
+
+			if(position >= numInitial)
+				update.add(image);
+			else if(!newClasses.contains(clazz))
+				initial.add(image);
+		}
+
+		List<AnnotatedObject<FImage, String>> all = new ArrayList<>(initial);
+		all.addAll(update);
+
+		System.out.println("Training on " + initial.size() + " images, then updating with " + update.size() + ", new classes " + newClasses);
+		updated.train(initial);
+		UpdateReport report = updated.update(update);
+		System.out.println(report);
+
+		System.out.println("Training from scratch on " + all.size() + " images");
+		long start = System.nanoTime();
+		retrained.train(all);
+		double retrainMillis = (System.nanoTime() - start) / 1e6;
+
+		int updatedCorrect = 0, retrainedCorrect = 0, agree = 0;
+		List<AnnotatedObject<FImage, String>> testing = corpus.getTesting();
+
+		for(AnnotatedObject<FImage, String> image : testing)
+		{
+			String expected = image.getAnnotations().iterator().next();
+			String a = ClassifierEvaluation.mostLikely(updated.classify(image.object));
+			String b = ClassifierEvaluation.mostLikely(retrained.classify(image.object));
+
+			if(a.equals(expected))
+				updatedCorrect++;
+			if(b.equals(expected))
+				retrainedCorrect++;
+			if(a.equals(b))
+				agree++;
+		}
+
+		int n = Math.max(1, testing.size());
+
+		System.out.println(String.format("%-20s %10s %10s %10s %10s %12s", "Algorithm", "Updated", "Retrained", "Agreement", "Update (s)", "Retrain (s)"));
+		System.out.println(String.format("%-20s %10.3f %10.3f %10.3f %10.1f %12.1f", args[0], updatedCorrect / (double) n, retrainedCorrect / (double) n, agree / (double) n, report.getMillis() / 1000, retrainMillis / 1000));
+	}
+
+	/**
+	 * @param name Simple name of a classifier in this package
+	 * @return A new instance of it
+	 */
+	private static IncrementalClassificationAlgorithm create(String name) throws ReflectiveOperationException
+	{
+		return Class.forName(IncrementalEvaluation.class.getPackage().getName() + "." + name).asSubclass(IncrementalClassificationAlgorithm.class).getDeclaredConstructor().newInstance();
+	}
+
+	/**
+	 * @param training Training images, group by group
+	 * @param count Number of classes to leave out of the initial set
+	 * @return The last count classes
+	 */
+	private static List<String> newClasses(List<AnnotatedObject<FImage, String>> training, int count)
+	{
+		Set<String> classes = new LinkedHashSet<>();
+
+		for(AnnotatedObject<FImage, String> image : training)
+		{
+			classes.add(image.getAnnotations().iterator().next());
+		}
+
+		List<String> ordered = new ArrayList<>(classes);
+
+		return ordered.subList(Math.max(0, ordered.size() - count), ordered.size());
+	}
+}
@@ -2,9 +2,14 @@ package uk.ac.soton.ecs.imageclassifer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.vfs2.FileSystemException;
 import org.openimaj.data.dataset.VFSGroupDataset;
@@ -14,12 +19,11 @@ import org.openimaj.experiment.evaluation.classification.Classifier;
 import org.openimaj.feature.FloatFV;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
-import org.openimaj.image.processing.resize.ResizeProcessor;
-import org.openimaj.knn.approximate.FloatNearestNeighboursKDTree;
 import org.openimaj.ml.annotation.Annotated;
 import org.openimaj.ml.annotation.AnnotatedObject;
 import org.openimaj.ml.training.BatchTrainer;
-import org.openimaj.util.pair.IntFloatPair;
+
+import uk.ac.soton.ecs.imageclassifer.Metrics.Stage;
 
 /**
  * K-Nearest-Neighbour classifier using scaled-down images as the method of feature abstraction.
@@ -28,19 +32,44 @@ import org.openimaj.util.pair.IntFloatPair;
  */
 public class KNearestNeighbour
 	implements
-	ClassificationAlgorithm
+	IncrementalClassificationAlgorithm
 {
 	protected VFSGroupDataset<FImage> trainingSet;
-	protected Map<FloatFV, String> annotatedFeatures;
+
+	// Class names, and the class id of each training vector in the index
+	protected String[] classes;
+	protected int[] classIds;
+	protected NearestNeighbourIndex index;
+	// Principal components to compress the training vectors to, or 0 to keep them exact
+	protected int compressedComponents = 0;
+	// Candidates from the compressed vectors to re-rank by exact distance, or 0 not to
+	protected int rerankCandidates = 0;
 
 	final public static int DIMENSION = 16;
 	final public static int K_DEFAULT = 5;
+	// Images are only decoded at a few times the feature size
+	final public static int DECODE_SIZE = DIMENSION * 4;
+	// Images searched together by classifyAll
+	final public static int QUERY_BATCH = 256;
 
 	private int K = 1;
 
+	// Stage timings of classify()
+	protected Metrics.Recorder metrics = Metrics.recorder(getClass().getSimpleName());
+
+	// Feature vector buffer, reused by each classifying thread
+	private ThreadLocal<float[]> vector = new ThreadLocal<float[]>()
+	{
+		@Override
+		protected float[] initialValue()
+		{
+			return new float[DIMENSION * DIMENSION];
+		}
+	};
+
 	public static void main(String[] args) throws FileSystemException, FileNotFoundException
 	{
-		Utilities.runClassifier(new KNearestNeighbour(), "KNN", args);
+		Utilities.runClassifier(new KNearestNeighbour(), "KNN", args, new SubsampledImageReader(DECODE_SIZE));
 	}
 
 	/**
@@ -61,6 +90,20 @@ public class KNearestNeighbour
 		this.K = k;
 	}
 
+	/**
+	 * Compress the training vectors with PCA and int8 quantisation, which makes the index
+	 * several times smaller and quicker to search, but approximate. Takes effect at the next
+	 * training.
+	 * @param components Principal components to keep, or 0 to store the vectors exactly
+	 * @param rerank Candidates to re-rank by exact distance, which means keeping the exact
+	 *        vectors as well, or 0 to rank by the compressed vectors alone
+	 */
+	public void setCompression(int components, int rerank)
+	{
+		this.compressedComponents = components;
+		this.rerankCandidates = rerank;
+	}
+
 	/**
 	 * Train the classifier
 	 * @param data The training set
@@ -68,16 +111,115 @@ public class KNearestNeighbour
 	@Override
 	public void train(List<? extends Annotated<FImage, String>> data)
 	{
-		annotatedFeatures = new HashMap<>();
+		int length = KNearestNeighbour.DIMENSION * KNearestNeighbour.DIMENSION;
 
-		// Project each image down to a small-scale feature vector
+		float[] vectors = new float[data.size() * length];
+		int[] ids = new int[data.size()];
+		List<String> names = new ArrayList<>();
+		Map<String, Integer> lookup = new HashMap<>();
+
+		// Project each image down to a small-scale feature vector, stored contiguously
+		int i = 0;
 		for (Annotated<FImage, String> a : data) {
-			annotatedFeatures.put(
-				getFeatureVector(a.getObject()),
-				a.getAnnotations().toArray(new String[1])[0]);
+			String clazz = a.getAnnotations().iterator().next();
+
+			Integer id = lookup.get(clazz);
+			if(id == null)
+			{
+				id = names.size();
+				lookup.put(clazz, id);
+				names.add(clazz);
+			}
+
+			getFeatureVector(a.getObject(), vectors, i * length);
+			ids[i++] = id;
+		}
+
+		classes = names.toArray(new String[names.size()]);
+		classIds = ids;
+
+		if(compressedComponents > 0)
+		{
+			CompressedIndex compressed = CompressedIndex.build(vectors, length, compressedComponents, rerankCandidates);
+			System.out.println("Compressed index: " + compressed.size() + " vectors, " + (compressed.getBytes() >> 10) + "KB");
+			index = compressed;
+		}
+		else
+		{
+			index = new FlatKDTree(vectors, length);
 		}
 	}
 
+	/**
+	 * Add more images to the index. An exact index is rebuilt over the old and new vectors,
+	 * which is all that training does, so the result is the same as training on every image at
+	 * once. A compressed index compresses the new vectors with the projection it was trained
+	 * with. Accuracy on the new images is only reported from before the update, since
+	 * afterwards each of them finds itself in the index.
+	 * @param data The new images
+	 * @return What the update changed
+	 */
+	@Override
+	public UpdateReport update(List<? extends Annotated<FImage, String>> data)
+	{
+		if(index == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		long start = System.nanoTime();
+		int length = KNearestNeighbour.DIMENSION * KNearestNeighbour.DIMENSION;
+		int size = index.size();
+
+		float[] vectors = new float[data.size() * length];
+		int[] ids = Arrays.copyOf(classIds, size + data.size());
+		List<String> names = new ArrayList<>(Arrays.asList(classes));
+		Map<String, Integer> lookup = new HashMap<>();
+
+		for(int c = 0; c < classes.length; c++)
+		{
+			lookup.put(classes[c], c);
+		}
+
+		List<String> annotations = Utilities.annotations(data);
+		float[] vector = new float[length];
+		int[] neighbours = new int[K];
+		float[] distances = new float[K];
+		int correct = 0;
+
+		int i = size;
+		for (Annotated<FImage, String> a : data) {
+			String clazz = a.getAnnotations().iterator().next();
+
+			Integer id = lookup.get(clazz);
+			if(id == null)
+			{
+				id = names.size();
+				lookup.put(clazz, id);
+				names.add(clazz);
+			}
+
+			// Each image is extracted once, and searched for before the index holds it
+			getFeatureVector(a.getObject(), vector, 0);
+			System.arraycopy(vector, 0, vectors, (i - size) * length, length);
+			ids[i++] = id;
+
+			int found = index.searchKNN(vector, K, neighbours, distances);
+
+			if(ClassifierEvaluation.mostLikely(vote(neighbours, distances, 0, found)).equals(clazz))
+				correct++;
+		}
+
+		String[] added = UpdateReport.newClasses(classes, annotations);
+		double before = data.isEmpty() ? 0 : correct / (double) data.size();
+
+		classes = names.toArray(new String[names.size()]);
+		classIds = ids;
+		index = index.add(vectors);
+
+		// Every new image is now in the index at distance 0 from itself, so accuracy on them
+		// after the update says nothing, and the index is the same as a full retrain would build
+		return new UpdateReport(data.size(), added, before, Double.NaN, 0, System.nanoTime() - start);
+	}
+
 	/**
 	 * Classify an image
 	 * @param image The image
@@ -86,40 +228,50 @@ public class KNearestNeighbour
 	@Override
 	public ClassificationResult<String> classify(FImage image)
 	{
-		float[][] converted = new float[annotatedFeatures.size()][(int) Math.pow(KNearestNeighbour.DIMENSION, 2)];
+		if(index == null)
+			throw new IllegalStateException("Classifier is not trained");
 
-		int i = 0;
+		long start = Metrics.start();
+		float[] vector = this.vector.get();
+		getFeatureVector(image, vector, 0);
+		long time = metrics.record(Stage.FEATURES, start);
 
-		for(Map.Entry<FloatFV, String> entry : annotatedFeatures.entrySet())
-		{
-			converted[i] = entry.getKey().values;
-			i++;
-		}
+		// Find the K nearest neighbours
+		int[] neighbours = new int[K];
+		float[] distances = new float[K];
+		int found = index.searchKNN(vector, K, neighbours, distances);
 
-		FloatNearestNeighboursKDTree.Factory factory = new FloatNearestNeighboursKDTree.Factory();
-		FloatNearestNeighboursKDTree nn = factory.create(converted);
+		ClassificationResult<String> result = vote(neighbours, distances, 0, found);
 
-		// Find the K nearest neighbours
-		List<IntFloatPair> neighbours = nn.searchKNN(getFeatureVector(image).values, K);
+		metrics.record(Stage.SEARCH, time);
+		metrics.record(Stage.CLASSIFY, start);
+
+		return result;
+	}
 
+	/**
+	 * Decide an image's class from its nearest neighbours
+	 * @param neighbours Array holding the neighbours' row numbers
+	 * @param distances Array holding their squared distances
+	 * @param offset Start of the image's neighbours in the arrays
+	 * @param found Number of neighbours
+	 * @return The classification result
+	 */
+	protected ClassificationResult<String> vote(int[] neighbours, float[] distances, int offset, int found)
+	{
 		// Create a frequency table of neighbours
-		Hashtable<String, Integer> frequency = new Hashtable<>(K);
+		int[] frequency = new int[classes.length];
 		// List the total distances to the neighbours
-		Hashtable<String, Float> distance = new Hashtable<>(K);
+		float[] distance = new float[classes.length];
 		float totalDist = 0f;
 
-		for(IntFloatPair neighbour : neighbours)
+		for(int n = offset; n < offset + found; n++)
 		{
-			String clazz = annotatedFeatures.get(new FloatFV(converted[neighbour.first]));
-			
-			// Add 1 to the frequency count
-			Integer currentFreq = frequency.get(clazz);
-			frequency.put(clazz, currentFreq == null ? 1 : ++currentFreq);
-			
-			// Add distance to the cumulative distance
-			Float currentDist = distance.get(clazz);
-			distance.put(clazz, currentDist == null ? neighbour.second : currentDist + neighbour.second);
-			totalDist += neighbour.second;
+			int clazz = classIds[neighbours[n]];
+
+			frequency[clazz]++;
+			distance[clazz] += distances[n];
+			totalDist += distances[n];
 		}
 
 		// Find the most likely class by taking the average class of the nearest neighbours
@@ -128,21 +280,24 @@ public class KNearestNeighbour
 		int count = 0;
 		float dist = 0f;
 		
-		for(Entry<String, Integer> e : frequency.entrySet())
+		for(int c = 0; c < classes.length; c++)
 		{
-			float aveDist = distance.get(e.getKey()) / e.getValue();
+			if(frequency[c] == 0)
+				continue;
+
+			float aveDist = distance[c] / frequency[c];
 			
-			if(count < e.getValue() ||
-					count == e.getValue() && dist >= aveDist)
+			if(count < frequency[c] ||
+					count == frequency[c] && dist >= aveDist)
 			{
-				clazz = e.getKey();
-				count = e.getValue();
+				clazz = classes[c];
+				count = frequency[c];
 				dist = aveDist;
 			}
 		}
 
 		// Weighting function
-		float weight = ((((float) count) / neighbours.size()) + (dist / totalDist)) / 2;
+		float weight = ((((float) count) / found) + (dist / totalDist)) / 2;
 		
 		PrintableClassificationResult<String> result = new PrintableClassificationResult<String>(PrintableClassificationResult.BEST_RESULT);
 		result.put(clazz, weight);
@@ -150,6 +305,210 @@ public class KNearestNeighbour
 		return result;
 	}
 
+	/**
+	 * Classify a batch of images in parallel. With an exact index the images are searched
+	 * {@link #QUERY_BATCH} at a time by brute force, which in this many dimensions is quicker
+	 * than a tree search per image.
+	 * @param images The images
+	 * @param threads The number of threads to use
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads)
+	{
+		if(index == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		if(!(index instanceof FlatKDTree))
+			return Utilities.classifyAll(this, images, threads);
+
+		if(threads <= 1)
+			return classifyBatches((FlatKDTree) index, images, null);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		try
+		{
+			return classifyBatches((FlatKDTree) index, images, pool);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Classify a batch of images on an existing pool of threads
+	 * @param images The images
+	 * @param pool The threads to classify on
+	 * @param threads The most images to classify at once
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads)
+	{
+		if(index == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		if(!(index instanceof FlatKDTree))
+			return Utilities.classifyAll(this, images, pool, threads);
+
+		return classifyBatches((FlatKDTree) index, images, threads > 1 ? pool : null);
+	}
+
+	/**
+	 * Classify images {@link #QUERY_BATCH} at a time
+	 * @param tree The index
+	 * @param images The images
+	 * @param pool Threads to search on, or null to search on this thread
+	 * @return The results, in input order
+	 */
+	protected List<ClassificationResult<String>> classifyBatches(FlatKDTree tree, Iterable<FImage> images, ExecutorService pool)
+	{
+		List<ClassificationResult<String>> results = new ArrayList<>();
+		List<FImage> batch = new ArrayList<>(QUERY_BATCH);
+
+		for(FImage image : images)
+		{
+			batch.add(image);
+
+			if(batch.size() == QUERY_BATCH)
+			{
+				results.addAll(classifyBatch(tree, batch, pool));
+				batch.clear();
+			}
+		}
+
+		if(!batch.isEmpty())
+			results.addAll(classifyBatch(tree, batch, pool));
+
+		return results;
+	}
+
+	/**
+	 * Classify a batch of images with a single brute force search. The features stage is
+	 * recorded for each image, and the search and classify stages for the batch as a whole.
+	 * @param tree The index
+	 * @param images The images
+	 * @param pool Threads to extract and search on, or null to work on this thread
+	 * @return The results, in input order
+	 */
+	protected List<ClassificationResult<String>> classifyBatch(FlatKDTree tree, final List<FImage> images, ExecutorService pool)
+	{
+		final int length = DIMENSION * DIMENSION;
+		int count = images.size();
+		final float[] queries = new float[count * length];
+
+		long start = Metrics.start();
+
+		if(pool == null)
+		{
+			for(int i = 0; i < count; i++)
+			{
+				long time = Metrics.start();
+				getFeatureVector(images.get(i), queries, i * length);
+				metrics.record(Stage.FEATURES, time);
+			}
+		}
+		else
+		{
+			List<Future<?>> futures = new ArrayList<>(count);
+
+			for(int i = 0; i < count; i++)
+			{
+				final int image = i;
+
+				futures.add(pool.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call()
+					{
+						long time = Metrics.start();
+						getFeatureVector(images.get(image), queries, image * length);
+						metrics.record(Stage.FEATURES, time);
+						return null;
+					}
+				}));
+			}
+
+			try
+			{
+				for(Future<?> future : futures)
+				{
+					future.get();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while extracting features", e);
+			}
+			catch(ExecutionException e)
+			{
+				throw new RuntimeException("Feature extraction failed", e.getCause());
+			}
+			finally
+			{
+				for(Future<?> future : futures)
+				{
+					future.cancel(true);
+				}
+			}
+		}
+
+		long time = Metrics.start();
+		int[] neighbours = new int[count * K];
+		float[] distances = new float[count * K];
+		int found = tree.searchAllKNN(queries, count, K, neighbours, distances, pool);
+
+		List<ClassificationResult<String>> results = new ArrayList<>(count);
+
+		for(int i = 0; i < count; i++)
+		{
+			results.add(vote(neighbours, distances, i * K, found));
+		}
+
+		metrics.record(Stage.SEARCH, time);
+		metrics.record(Stage.CLASSIFY, start);
+
+		return results;
+	}
+
+	/**
+	 * Write the trained index to a model file
+	 * @param out The model file writer
+	 */
+	@Override
+	public void writeModel(ModelFile.Writer out) throws IOException
+	{
+		if(index == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		out.writeInt(K);
+		out.writeStrings(classes);
+		out.writeInts(classIds);
+		out.writeInt(index instanceof CompressedIndex ? 1 : 0);
+		index.write(out);
+	}
+
+	/**
+	 * Restore a trained index from a model file
+	 * @param in The model file reader
+	 */
+	@Override
+	public void readModel(ModelFile.Reader in) throws IOException
+	{
+		K = in.readInt();
+		classes = in.readStrings();
+		classIds = in.readInts();
+
+		// Files before version 4 always hold an exact index
+		if(in.getVersion() >= 4 && in.readInt() == 1)
+			index = CompressedIndex.read(in);
+		else
+			index = FlatKDTree.read(in);
+	}
+
 	/**
 	 * Convert an image into a {@link DIMENSION} by {@link DIMENSION} feature vector.
 	 * 
@@ -158,14 +517,95 @@ public class KNearestNeighbour
 	 */
 	protected FloatFV getFeatureVector(FImage image)
 	{
-		ResizeProcessor resizer = new ResizeProcessor(KNearestNeighbour.DIMENSION, KNearestNeighbour.DIMENSION, false);
+		FloatFV feature = new FloatFV(DIMENSION * DIMENSION);
+		getFeatureVector(image, feature.values, 0);
+
+		return feature;
+	}
+
+	/**
+	 * Convert an image into a {@link DIMENSION} by {@link DIMENSION} feature vector, written
+	 * into an existing array. The centre square of the image is area-averaged straight down to
+	 * the feature size, then normalised to [0, 1] and zero-meaned.
+	 * 
+	 * @param image The image
+	 * @param out Array to write the vector into
+	 * @param offset Start of the vector in the array
+	 */
+	protected void getFeatureVector(FImage image, float[] out, int offset)
+	{
+		int n = DIMENSION;
+		int length = n * n;
+		int size = Math.min(image.getWidth(), image.getHeight());
+		int left = image.getWidth() / 2 - size / 2;
+		int top = image.getHeight() / 2 - size / 2;
+
+		Arrays.fill(out, offset, offset + length, 0f);
 
-		int dimension = Math.min(image.getWidth(), image.getHeight());
+		if(size == 0)
+			return;
 
-		// Crop the image to a square, scale, and normalise.
-		FImage square = image.extractCenter(dimension, dimension).processInplace(resizer).normalise();
+		// Each source pixel covers [x * scale, (x + 1) * scale) in feature pixels and adds to the
+		// feature pixels it overlaps in proportion to the overlap. Every feature pixel covers the
+		// same area, so the sums don't need dividing before the normalisation.
+		float scale = (float) n / size;
 
-		// Return the zero-meaned feature vector
-		return Utilities.zeroMean(square);
+		for(int y = 0; y < size; y++)
+		{
+			float[] row = image.pixels[top + y];
+			float y0 = y * scale;
+			float y1 = (y + 1) * scale;
+
+			for(int cy = (int) y0; cy < n && cy < y1; cy++)
+			{
+				float wy = Math.min(y1, cy + 1) - Math.max(y0, cy);
+
+				if(wy <= 0)
+					continue;
+
+				int base = offset + cy * n;
+
+				for(int x = 0; x < size; x++)
+				{
+					float value = row[left + x] * wy;
+					float x0 = x * scale;
+					float x1 = (x + 1) * scale;
+
+					for(int cx = (int) x0; cx < n && cx < x1; cx++)
+					{
+						float wx = Math.min(x1, cx + 1) - Math.max(x0, cx);
+
+						if(wx > 0)
+							out[base + cx] += value * wx;
+					}
+				}
+			}
+		}
+
+		// Normalise to [0, 1], then subtract the mean
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+
+		for(int i = offset; i < offset + length; i++)
+		{
+			min = Math.min(min, out[i]);
+			max = Math.max(max, out[i]);
+		}
+
+		float range = max > min ? 1f / (max - min) : 0f;
+		float sum = 0f;
+
+		for(int i = offset; i < offset + length; i++)
+		{
+			out[i] = (out[i] - min) * range;
+			sum += out[i];
+		}
+
+		float mean = sum / length;
+
+		for(int i = offset; i < offset + length; i++)
+		{
+			out[i] -= mean;
+		}
 	}
 }
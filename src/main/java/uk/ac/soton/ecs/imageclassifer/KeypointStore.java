@@ -0,0 +1,207 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openimaj.data.DataSource;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+
+/**
+ * The dense SIFT keypoints of a set of images, packed into two flat arrays per image rather
+ * than an object and a descriptor array per keypoint. This lets one pass of the extractor
+ * serve every training stage, for as many images as fit in the store's budget. Each image's descriptors are stored row after row, and its
+ * keypoints' x, y and energy are stored together.
+ *
+ * The store has a budget in bytes. Images that would take it over the budget aren't stored,
+ * and have to be extracted again when they are needed, so the store's memory doesn't grow
+ * without limit with the number of images.
+ *
+ * Images may be set from several threads at once, provided each thread sets different
+ * images; the store must then be handed to readers safely, as after a parallel loop.
+ *
+ * @author Sam Lavers
+ */
+public class KeypointStore
+{
+	/** Fields stored per keypoint: x, y and energy */
+	final public static int LOCATION_FIELDS = 3;
+
+	protected final int dims;
+	protected final long maxBytes;
+	protected final byte[][] descriptors;
+	protected final float[][] locations;
+	// Memory held by the stored images
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @param images Number of images
+	 * @param dims Length of a descriptor
+	 */
+	public KeypointStore(int images, int dims)
+	{
+		this(images, dims, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param images Number of images
+	 * @param dims Length of a descriptor
+	 * @param maxBytes Memory budget in bytes
+	 */
+	public KeypointStore(int images, int dims, long maxBytes)
+	{
+		this.dims = dims;
+		this.maxBytes = maxBytes;
+		this.descriptors = new byte[images][];
+		this.locations = new float[images][];
+	}
+
+	/**
+	 * Store an image's keypoints, if they fit in the budget
+	 * @param image The image's index
+	 * @param keypoints The keypoints
+	 * @return Whether the keypoints were stored
+	 */
+	public boolean set(int image, List<ByteDSIFTKeypoint> keypoints)
+	{
+		long size = (long) keypoints.size() * (dims + 4 * LOCATION_FIELDS);
+
+		if(bytes.addAndGet(size) > maxBytes)
+		{
+			bytes.addAndGet(-size);
+			return false;
+		}
+
+		descriptors[image] = new byte[keypoints.size() * dims];
+		locations[image] = new float[keypoints.size() * LOCATION_FIELDS];
+		pack(keypoints, descriptors[image], locations[image]);
+
+		return true;
+	}
+
+	/**
+	 * @param image The image's index
+	 * @return Whether the image's keypoints are stored
+	 */
+	public boolean contains(int image)
+	{
+		return descriptors[image] != null;
+	}
+
+	/**
+	 * Pack keypoints into flat arrays
+	 * @param keypoints The keypoints
+	 * @param descriptors Output for the descriptors, row after row
+	 * @param locations Output for each keypoint's x, y and energy
+	 */
+	public static void pack(List<ByteDSIFTKeypoint> keypoints, byte[] descriptors, float[] locations)
+	{
+		int dims = keypoints.isEmpty() ? 0 : keypoints.get(0).descriptor.length;
+
+		for(int k = 0; k < keypoints.size(); k++)
+		{
+			ByteDSIFTKeypoint keypoint = keypoints.get(k);
+
+			System.arraycopy(keypoint.descriptor, 0, descriptors, k * dims, dims);
+			locations[k * LOCATION_FIELDS] = keypoint.x;
+			locations[k * LOCATION_FIELDS + 1] = keypoint.y;
+			locations[k * LOCATION_FIELDS + 2] = keypoint.energy;
+		}
+	}
+
+	/**
+	 * @return Number of images
+	 */
+	public int numImages()
+	{
+		return descriptors.length;
+	}
+
+	/**
+	 * @return Length of a descriptor
+	 */
+	public int numDimensions()
+	{
+		return dims;
+	}
+
+	/**
+	 * @param image The image's index
+	 * @return The image's descriptors, row after row, or null if they aren't stored
+	 */
+	public byte[] getDescriptors(int image)
+	{
+		return descriptors[image];
+	}
+
+	/**
+	 * @param image The image's index
+	 * @return Each of the image's keypoints' x, y and energy, or null if they aren't stored
+	 */
+	public float[] getLocations(int image)
+	{
+		return locations[image];
+	}
+
+	/**
+	 * @return The descriptors of every stored image, as rows of one data source
+	 */
+	public DataSource<byte[]> dataSource()
+	{
+		List<byte[]> stored = new ArrayList<>();
+
+		for(byte[] image : descriptors)
+		{
+			if(image != null)
+				stored.add(image);
+		}
+
+		return new FlatByteDataSource(stored, dims);
+	}
+
+	/**
+	 * @return Number of images stored
+	 */
+	public int numStored()
+	{
+		int count = 0;
+
+		for(byte[] image : descriptors)
+		{
+			if(image != null)
+				count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return Number of keypoints of every stored image
+	 */
+	public long numKeypoints()
+	{
+		long count = 0;
+
+		for(byte[] image : descriptors)
+		{
+			if(image != null)
+				count += image.length / Math.max(1, dims);
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return Memory held by the descriptors and locations, in bytes
+	 */
+	public long getBytes()
+	{
+		return bytes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return numStored() + " of " + numImages() + " images stored, " + numKeypoints() + " keypoints, " + (getBytes() >> 20) + "MB";
+	}
+}
@@ -0,0 +1,150 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, safe to record into from any number of
+ * threads.
+ *
+ * Buckets are log-linear: each power of two is split into {@link #SUB_BUCKETS} equal buckets, so
+ * a percentile read back from the histogram is within 12.5% of the true value whatever its
+ * magnitude, and the whole range of a long fits in a few hundred counters.
+ *
+ * @author Sam Lavers
+ */
+public class LatencyHistogram
+{
+	final private static int SUB_BITS = 3;
+	final public static int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS * (64 - SUB_BITS + 1));
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a duration
+	 * @param nanos The duration in nanoseconds; negative durations count as zero
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value))
+		{
+			current = max.get();
+		}
+	}
+
+	private static int bucket(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * @return Number of recorded durations
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * @return Sum of the recorded durations in nanoseconds
+	 */
+	public long getTotal()
+	{
+		return total.get();
+	}
+
+	/**
+	 * @return Longest recorded duration in nanoseconds
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @return Mean recorded duration in nanoseconds
+	 */
+	public double getMean()
+	{
+		long n = count.get();
+
+		return n == 0 ? 0 : total.get() / (double) n;
+	}
+
+	/**
+	 * Read a percentile. Durations recorded while this runs may or may not be included.
+	 * @param percentile Percentile, from 0 to 100
+	 * @return Upper bound of the bucket holding the percentile, in nanoseconds, capped at the
+	 *         longest recorded duration
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] counts = new long[buckets.length()];
+		long n = 0;
+
+		for(int i = 0; i < counts.length; i++)
+		{
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+
+		if(n == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+
+			if(seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Forget every recorded duration. Durations recorded while this runs may be partly kept.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < buckets.length(); i++)
+		{
+			buckets.set(i, 0);
+		}
+
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+}
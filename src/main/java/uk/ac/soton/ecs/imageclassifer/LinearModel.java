@@ -0,0 +1,719 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.ml.annotation.Annotated;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.ml.annotation.utils.LiblinearHelper;
+import org.openimaj.util.array.SparseIntArray;
+
+import de.bwaldvogel.liblinear.Feature;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * Multiclass linear classifier trained with liblinear. Training mirrors
+ * {@link org.openimaj.ml.annotation.linear.LiblinearAnnotator} in multiclass mode, but the
+ * learnt weights are kept here so that the model can be written to and read from a
+ * {@link ModelFile}.
+ *
+ * The weights are held as a single class by feature float matrix, one contiguous row per
+ * weight column, with the bias folded into a separate offset per column. Feature vectors are
+ * scored straight from their values rather than through liblinear's Feature objects. Dense
+ * vectors are scored a block of features at a time with several independent sums, and
+ * {@link #annotateAll(List)} scores a batch of vectors as one matrix product, reusing each block
+ * of weights for several vectors while it is in cache.
+ *
+ * A trained model can be updated with more examples by {@link #update}, which starts from the
+ * trained weights instead of solving the whole problem again.
+ *
+ * @author Sam Lavers
+ */
+public class LinearModel
+{
+	// Features per block when scoring dense vectors, so a block of each vector stays in cache
+	final private static int FEATURE_BLOCK = 1024;
+	// Vectors scored together against each row of weights in a batch
+	final private static int BATCH_BLOCK = 4;
+	// Seed for the order updates visit their examples in, so that updates can be repeated
+	final private static long UPDATE_SEED = 0x5EED;
+
+	/** Passes over the new examples made by an update */
+	final public static int UPDATE_EPOCHS = 5;
+
+	// Class names, in the order of liblinear's weight columns
+	protected String[] classes;
+	protected int numFeatures;
+	protected double bias;
+	// Number of weight columns; 1 for a two class problem
+	protected int numColumns;
+	// Weights of each column in turn: matrix[column * numFeatures + feature]
+	protected float[] matrix;
+	// Bias weight of each column times the bias, or zeros if there is no bias
+	protected float[] offsets;
+
+	protected LinearModel()
+	{
+	}
+
+	/**
+	 * Train a model by extracting a feature from each training object in parallel
+	 * @param extractor The feature extractor
+	 * @param data The training set
+	 * @param solver liblinear solver
+	 * @param C Cost of constraint violation
+	 * @param eps Stopping criterion
+	 * @return The trained model
+	 */
+	public static <T> LinearModel train(FeatureExtractor<? extends FeatureVector, T> extractor, List<? extends Annotated<T, String>> data, SolverType solver, double C, double eps)
+	{
+		List<? extends FeatureVector> features = Utilities.extractAll(extractor, Utilities.objects(data));
+
+		return train(features, Utilities.annotations(data), solver, C, eps);
+	}
+
+	/**
+	 * Train a model from precomputed features
+	 * @param features The feature of each training example
+	 * @param annotations The class of each training example
+	 * @param solver liblinear solver
+	 * @param C Cost of constraint violation
+	 * @param eps Stopping criterion
+	 * @return The trained model
+	 */
+	public static LinearModel train(List<? extends FeatureVector> features, List<String> annotations, SolverType solver, double C, double eps)
+	{
+		if(features.isEmpty())
+			throw new IllegalArgumentException("No training data");
+
+		List<String> names = new ArrayList<>();
+		Map<String, Integer> lookup = new HashMap<>();
+
+		Problem problem = new Problem();
+		problem.l = features.size();
+		problem.n = features.get(0).length();
+		problem.bias = -1;
+		problem.x = new Feature[problem.l][];
+		problem.y = new double[problem.l];
+
+		for(int i = 0; i < problem.l; i++)
+		{
+			String clazz = annotations.get(i);
+			Integer id = lookup.get(clazz);
+
+			if(id == null)
+			{
+				id = names.size();
+				lookup.put(clazz, id);
+				names.add(clazz);
+			}
+
+			problem.x[i] = LiblinearHelper.convert(features.get(i), problem.bias);
+			problem.y[i] = id + 1;
+		}
+
+		Model model = Linear.train(problem, new Parameter(solver, C, eps));
+
+		LinearModel result = new LinearModel();
+		result.numFeatures = problem.n;
+		result.bias = model.getBias();
+
+		int[] labels = model.getLabels();
+		result.classes = new String[labels.length];
+
+		for(int j = 0; j < labels.length; j++)
+		{
+			result.classes[j] = names.get(labels[j] - 1);
+		}
+
+		result.numColumns = labels.length == 2 && solver != SolverType.MCSVM_CS ? 1 : labels.length;
+		result.setWeights(DoubleBuffer.wrap(model.getFeatureWeights()));
+
+		return result;
+	}
+
+	/**
+	 * Copy the model and update the copy with more training examples, starting from the current
+	 * weights. Each weight column is moved by a passive-aggressive (PA-II) step for every example
+	 * it scores with less than unit margin, towards the example for its own class and away from
+	 * it for the others: the smallest change to the weights that corrects the margin, softened by
+	 * C. This is the one-vs-rest squared hinge loss that liblinear's L2-loss SVC minimises, but
+	 * only over the new examples, so the weights stay close to the trained ones instead of being
+	 * fitted to the new examples alone.
+	 *
+	 * Classes the model hasn't seen get a new weight column, starting from zero, so the new
+	 * examples should include some of the existing classes for the new columns to learn against.
+	 * @param features The feature of each new example
+	 * @param annotations The class of each new example
+	 * @param C Cost of constraint violation; larger values fit the new examples more closely
+	 * @param epochs Number of passes over the new examples
+	 * @return The updated model
+	 */
+	public LinearModel update(List<? extends FeatureVector> features, List<String> annotations, double C, int epochs)
+	{
+		if(features.size() != annotations.size())
+			throw new IllegalArgumentException("Expected an annotation for each feature");
+
+		List<String> names = new ArrayList<>(Arrays.asList(classes));
+		Map<String, Integer> lookup = new HashMap<>();
+
+		for(int c = 0; c < classes.length; c++)
+		{
+			lookup.put(classes[c], c);
+		}
+
+		int[] labels = new int[features.size()];
+
+		for(int i = 0; i < labels.length; i++)
+		{
+			String clazz = annotations.get(i);
+			Integer id = lookup.get(clazz);
+
+			if(id == null)
+			{
+				id = names.size();
+				lookup.put(clazz, id);
+				names.add(clazz);
+			}
+
+			labels[i] = id;
+		}
+
+		LinearModel result = expand(names);
+
+		int[][] indices = new int[labels.length][];
+		float[][] values = new float[labels.length][];
+		float[] norms = new float[labels.length];
+		float biasSquared = bias >= 0 ? (float) (bias * bias) : 0f;
+		List<Integer> order = new ArrayList<>();
+
+		for(int i = 0; i < labels.length; i++)
+		{
+			norms[i] = biasSquared + result.toSparse(features.get(i), indices, values, i);
+			order.add(i);
+		}
+
+		float softness = (float) (1 / (2 * C));
+		Random random = new Random(UPDATE_SEED);
+
+		for(int epoch = 0; epoch < epochs; epoch++)
+		{
+			Collections.shuffle(order, random);
+
+			for(int i : order)
+			{
+				result.step(indices[i], values[i], norms[i] + softness, biasSquared, labels[i]);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Apply a PA-II step for one example to every weight column
+	 * @param indices The example's non-zero features
+	 * @param values Their values
+	 * @param denominator The example's squared length, including the bias, plus 1 / 2C
+	 * @param biasSquared The squared bias, or 0 if there is no bias
+	 * @param label The example's class
+	 */
+	private void step(int[] indices, float[] values, float denominator, float biasSquared, int label)
+	{
+		for(int c = 0; c < numColumns; c++)
+		{
+			int row = c * numFeatures;
+			float decision = offsets[c];
+
+			for(int j = 0; j < indices.length; j++)
+			{
+				decision += matrix[row + indices[j]] * values[j];
+			}
+
+			float y = c == label ? 1f : -1f;
+			float loss = 1f - y * decision;
+
+			if(loss <= 0)
+				continue;
+
+			float tau = y * loss / denominator;
+
+			for(int j = 0; j < indices.length; j++)
+			{
+				matrix[row + indices[j]] += tau * values[j];
+			}
+
+			// The offset is the bias weight times the bias
+			offsets[c] += tau * biasSquared;
+		}
+	}
+
+	/**
+	 * Store the non-zero values of a feature vector that the model has weights for
+	 * @param feature The feature vector
+	 * @param indices Output for the indices of the values
+	 * @param values Output for the values
+	 * @param i Where in the outputs to store them
+	 * @return The squared length of the stored values
+	 */
+	private float toSparse(FeatureVector feature, int[][] indices, float[][] values, int i)
+	{
+		int[] index;
+		float[] value;
+		int count = 0;
+		float norm = 0f;
+
+		if(feature instanceof SparseIntFV)
+		{
+			SparseIntArray array = ((SparseIntFV) feature).values;
+			index = new int[array.used()];
+			value = new float[array.used()];
+
+			for(SparseIntArray.Entry e : array.entries())
+			{
+				if(e.index >= numFeatures || e.value == 0)
+					continue;
+
+				index[count] = e.index;
+				value[count] = e.value;
+				norm += value[count] * value[count];
+				count++;
+			}
+		}
+		else
+		{
+			float[] dense = toFloats(feature);
+			index = new int[16];
+			value = new float[16];
+
+			for(int f = 0; f < Math.min(dense.length, numFeatures); f++)
+			{
+				if(dense[f] == 0)
+					continue;
+
+				if(count == index.length)
+				{
+					index = Arrays.copyOf(index, count * 2);
+					value = Arrays.copyOf(value, count * 2);
+				}
+
+				index[count] = f;
+				value[count] = dense[f];
+				norm += dense[f] * dense[f];
+				count++;
+			}
+		}
+
+		indices[i] = Arrays.copyOf(index, count);
+		values[i] = Arrays.copyOf(value, count);
+
+		return norm;
+	}
+
+	/**
+	 * Copy the model with a weight column for each of a list of classes, in that order
+	 * @param names The model's classes, in their current order, followed by any new classes,
+	 *        whose columns start at zero
+	 * @return The copy
+	 */
+	private LinearModel expand(List<String> names)
+	{
+		LinearModel result = new LinearModel();
+		result.classes = names.toArray(new String[names.size()]);
+		result.numFeatures = numFeatures;
+		result.bias = bias;
+		result.numColumns = names.size();
+		result.matrix = new float[result.numColumns * numFeatures];
+		result.offsets = new float[result.numColumns];
+
+		if(numColumns == 1 && classes.length == 2)
+		{
+			// A two class model has a single column, positive for the first class, so each
+			// class's column is that column or its negation
+			for(int f = 0; f < numFeatures; f++)
+			{
+				result.matrix[f] = matrix[f];
+				result.matrix[numFeatures + f] = -matrix[f];
+			}
+
+			result.offsets[0] = offsets[0];
+			result.offsets[1] = -offsets[0];
+		}
+		else
+		{
+			System.arraycopy(matrix, 0, result.matrix, 0, matrix.length);
+			System.arraycopy(offsets, 0, result.offsets, 0, offsets.length);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Measure how far the weights of this model's classes have moved in another model, such as
+	 * one updated from this
+	 * @param other A model with the same features, whose classes start with this model's
+	 * @return The length of the change in this model's weight columns, relative to their length
+	 */
+	public double weightChange(LinearModel other)
+	{
+		if(other.numFeatures != numFeatures)
+			throw new IllegalArgumentException("Models have different features");
+
+		// Compare a column per class, so that two class models are comparable with the others
+		LinearModel before = expand(Arrays.asList(classes));
+		LinearModel after = other.numColumns == 1 ? other.expand(Arrays.asList(other.classes)) : other;
+		double change = 0;
+		double length = 0;
+
+		for(int c = 0; c < before.numColumns; c++)
+		{
+			if(c >= after.numColumns || !before.classes[c].equals(after.classes[c]))
+				throw new IllegalArgumentException("Model doesn't start with the classes " + Arrays.toString(classes));
+
+			for(int f = c * numFeatures; f < (c + 1) * numFeatures; f++)
+			{
+				double d = after.matrix[f] - before.matrix[f];
+				change += d * d;
+				length += (double) before.matrix[f] * before.matrix[f];
+			}
+
+			double d = after.offsets[c] - before.offsets[c];
+			change += d * d;
+			length += (double) before.offsets[c] * before.offsets[c];
+		}
+
+		return length == 0 ? 0 : Math.sqrt(change / length);
+	}
+
+	/**
+	 * @param features Feature vectors
+	 * @param annotations The class of each feature vector
+	 * @return The fraction of the feature vectors predicted as their class
+	 */
+	public double accuracy(List<? extends FeatureVector> features, List<String> annotations)
+	{
+		if(features.isEmpty())
+			return 0;
+
+		int correct = 0;
+
+		for(int i = 0; i < features.size(); i++)
+		{
+			if(annotate(features.get(i)).get(0).annotation.equals(annotations.get(i)))
+				correct++;
+		}
+
+		return correct / (double) features.size();
+	}
+
+	/**
+	 * Fill the matrix and offsets from weights in liblinear's layout, where the weights of each
+	 * feature are together: weights[feature * numColumns + column], with the bias weights last
+	 */
+	private void setWeights(DoubleBuffer weights)
+	{
+		matrix = new float[numColumns * numFeatures];
+		offsets = new float[numColumns];
+
+		for(int f = 0; f < numFeatures; f++)
+		{
+			for(int c = 0; c < numColumns; c++)
+			{
+				matrix[c * numFeatures + f] = (float) weights.get(f * numColumns + c);
+			}
+		}
+
+		if(bias >= 0)
+		{
+			for(int c = 0; c < numColumns; c++)
+			{
+				offsets[c] = (float) (weights.get(numFeatures * numColumns + c) * bias);
+			}
+		}
+	}
+
+	/**
+	 * @return The classes the model can predict
+	 */
+	public String[] getClasses()
+	{
+		return classes;
+	}
+
+	/**
+	 * Predict the class of a feature vector
+	 * @param feature The feature
+	 * @return A single annotation for the best class, scored with its probability
+	 */
+	public List<ScoredAnnotation<String>> annotate(FeatureVector feature)
+	{
+		float[] decision = offsets.clone();
+
+		if(feature instanceof SparseIntFV)
+		{
+			// Visual word histograms are mostly empty
+			for(SparseIntArray.Entry e : ((SparseIntFV) feature).values.entries())
+			{
+				if(e.index >= numFeatures)
+					continue;
+
+				for(int c = 0; c < numColumns; c++)
+				{
+					decision[c] += matrix[c * numFeatures + e.index] * e.value;
+				}
+			}
+		}
+		else
+		{
+			float[] values = toFloats(feature);
+			int length = Math.min(values.length, numFeatures);
+
+			for(int from = 0; from < length; from += FEATURE_BLOCK)
+			{
+				int to = Math.min(length, from + FEATURE_BLOCK);
+
+				for(int c = 0; c < numColumns; c++)
+				{
+					decision[c] += dot(matrix, c * numFeatures, values, 0, from, to);
+				}
+			}
+		}
+
+		return annotate(decision);
+	}
+
+	/**
+	 * Predict the class of each of a batch of feature vectors. The vectors are scored together
+	 * as one matrix product, which is quicker than scoring them one at a time when there are
+	 * many features.
+	 * @param features The features
+	 * @return For each feature, a single annotation for the best class, scored with its probability
+	 */
+	public List<List<ScoredAnnotation<String>>> annotateAll(List<? extends FeatureVector> features)
+	{
+		int count = features.size();
+		float[] rows = new float[count * numFeatures];
+		float[] scores = new float[count * numColumns];
+
+		for(int i = 0; i < count; i++)
+		{
+			float[] values = toFloats(features.get(i));
+			System.arraycopy(values, 0, rows, i * numFeatures, Math.min(values.length, numFeatures));
+			System.arraycopy(offsets, 0, scores, i * numColumns, numColumns);
+		}
+
+		score(rows, count, scores);
+
+		List<List<ScoredAnnotation<String>>> results = new ArrayList<>(count);
+		float[] decision = new float[numColumns];
+
+		for(int i = 0; i < count; i++)
+		{
+			System.arraycopy(scores, i * numColumns, decision, 0, numColumns);
+			results.add(annotate(decision));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Add the product of a batch of dense rows and the weight matrix to their scores
+	 * @param rows The rows, numFeatures values each
+	 * @param count Number of rows
+	 * @param scores The scores, numColumns per row
+	 */
+	protected void score(float[] rows, int count, float[] scores)
+	{
+		for(int from = 0; from < numFeatures; from += FEATURE_BLOCK)
+		{
+			int to = Math.min(numFeatures, from + FEATURE_BLOCK);
+			int i = 0;
+
+			// Each weight is loaded once for a block of rows, with a separate sum per row
+			for(; i + BATCH_BLOCK <= count; i += BATCH_BLOCK)
+			{
+				int r0 = i * numFeatures;
+				int r1 = r0 + numFeatures;
+				int r2 = r1 + numFeatures;
+				int r3 = r2 + numFeatures;
+
+				for(int c = 0; c < numColumns; c++)
+				{
+					int w = c * numFeatures;
+					float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+
+					for(int f = from; f < to; f++)
+					{
+						float weight = matrix[w + f];
+						s0 += weight * rows[r0 + f];
+						s1 += weight * rows[r1 + f];
+						s2 += weight * rows[r2 + f];
+						s3 += weight * rows[r3 + f];
+					}
+
+					scores[i * numColumns + c] += s0;
+					scores[(i + 1) * numColumns + c] += s1;
+					scores[(i + 2) * numColumns + c] += s2;
+					scores[(i + 3) * numColumns + c] += s3;
+				}
+			}
+
+			for(; i < count; i++)
+			{
+				for(int c = 0; c < numColumns; c++)
+				{
+					scores[i * numColumns + c] += dot(matrix, c * numFeatures, rows, i * numFeatures, from, to);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dot product of part of a row of weights and part of a vector, with four independent sums
+	 * so that consecutive multiply-adds don't wait on each other
+	 */
+	private static float dot(float[] weights, int w, float[] values, int v, int from, int to)
+	{
+		float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+		int f = from;
+
+		for(; f + 4 <= to; f += 4)
+		{
+			s0 += weights[w + f] * values[v + f];
+			s1 += weights[w + f + 1] * values[v + f + 1];
+			s2 += weights[w + f + 2] * values[v + f + 2];
+			s3 += weights[w + f + 3] * values[v + f + 3];
+		}
+
+		for(; f < to; f++)
+		{
+			s0 += weights[w + f] * values[v + f];
+		}
+
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * @param feature A feature vector
+	 * @return Its values as floats, without copying if it's already a FloatFV
+	 */
+	private static float[] toFloats(FeatureVector feature)
+	{
+		if(feature instanceof FloatFV)
+			return ((FloatFV) feature).values;
+
+		double[] values = feature.asDoubleVector();
+		float[] floats = new float[values.length];
+
+		for(int i = 0; i < values.length; i++)
+		{
+			floats[i] = (float) values[i];
+		}
+
+		return floats;
+	}
+
+	/**
+	 * Pick the best class given the decision value of each weight column, and score it with a
+	 * probability estimated the way {@link org.openimaj.ml.annotation.linear.LiblinearAnnotator}
+	 * does: a sigmoid of each decision value, normalised to sum to one across the classes. The
+	 * score is always positive, even when every decision value is negative.
+	 * @param decision The decision values
+	 * @return A single annotation for the best class, scored with its probability
+	 */
+	protected List<ScoredAnnotation<String>> annotate(float[] decision)
+	{
+		int best;
+		double probability;
+
+		if(numColumns == 1)
+		{
+			// Two classes share one column, the first class's probability being its sigmoid
+			best = decision[0] > 0 ? 0 : 1;
+			probability = sigmoid(best == 0 ? decision[0] : -decision[0]);
+		}
+		else
+		{
+			best = 0;
+			double total = 0;
+
+			for(int c = 0; c < numColumns; c++)
+			{
+				if(decision[c] > decision[best])
+					best = c;
+
+				total += sigmoid(decision[c]);
+			}
+
+			probability = sigmoid(decision[best]) / total;
+		}
+
+		List<ScoredAnnotation<String>> result = new ArrayList<>(1);
+		result.add(new ScoredAnnotation<String>(classes[best], (float) probability));
+
+		return result;
+	}
+
+	private static double sigmoid(double decision)
+	{
+		return 1 / (1 + Math.exp(-decision));
+	}
+
+	/**
+	 * Write the model to a model file
+	 * @param out The model file writer
+	 * @throws IOException
+	 */
+	public void write(ModelFile.Writer out) throws IOException
+	{
+		out.writeStrings(classes);
+		out.writeInt(numFeatures);
+		out.writeDouble(bias);
+		out.writeInt(numColumns);
+		out.writeFloats(matrix);
+		out.writeFloats(offsets);
+	}
+
+	/**
+	 * Read a model from a model file. The weights are copied out of the mapped file onto the
+	 * heap, as the float matrix that is scored from and updated in place.
+	 * @param in The model file reader
+	 * @return The model
+	 * @throws IOException
+	 */
+	public static LinearModel read(ModelFile.Reader in) throws IOException
+	{
+		LinearModel model = new LinearModel();
+		model.classes = in.readStrings();
+		model.numFeatures = in.readInt();
+		model.bias = in.readDouble();
+		model.numColumns = in.readInt();
+
+		// Files before version 3 hold the weights as doubles in liblinear's layout
+		if(in.getVersion() < 3)
+		{
+			model.setWeights(in.mapDoubles());
+		}
+		else
+		{
+			model.matrix = in.readFloats();
+			model.offsets = in.readFloats();
+		}
+
+		return model;
+	}
+}
@@ -0,0 +1,287 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-stage latency metrics for the classification pipeline.
+ *
+ * Each component (a classifier, or the image decoder) has a {@link Recorder} with a
+ * {@link LatencyHistogram} for each {@link Stage}. Code times a stage like this:
+ *
+ * <pre>
+ * long time = Metrics.start();
+ * ...
+ * time = metrics.record(Stage.FEATURES, time);
+ * ...
+ * metrics.record(Stage.SCORING, time);
+ * </pre>
+ *
+ * Metrics are off unless the imageclassifier.metrics system property is true. The switch is a
+ * static final constant, so when it's off the JIT removes the timing calls altogether. When
+ * it's on, every recorded stage is also emitted as a JFR event if the JVM supports them.
+ *
+ * @author Sam Lavers
+ */
+public class Metrics
+{
+	final public static String PROPERTY = "imageclassifier.metrics";
+	final public static boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+	/**
+	 * Pipeline stages. Not every component has every stage.
+	 */
+	public enum Stage
+	{
+		DECODE, FEATURES, QUANTISE, SPATIAL, KERNEL_MAP, SCORING, SEARCH, CLASSIFY;
+
+		/**
+		 * @return Lower case name for exports
+		 */
+		public String label()
+		{
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/**
+	 * Receives every recorded stage, for forwarding to other monitoring
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param component Name of the component
+		 * @param stage The stage
+		 * @param nanos How long it took
+		 */
+		void stage(String component, Stage stage, long nanos);
+	}
+
+	final private static ConcurrentMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+	final private static Listener listener = ENABLED ? loadJfrListener() : null;
+
+	/**
+	 * The JFR listener is loaded by name so that nothing here links against jdk.jfr on JVMs
+	 * without it. It is only built on JDK 11 and later, by the jfr profile.
+	 */
+	private static Listener loadJfrListener()
+	{
+		try
+		{
+			return (Listener) Class.forName("uk.ac.soton.ecs.imageclassifer.JfrListener").getDeclaredConstructor().newInstance();
+		}
+		catch(ReflectiveOperationException | LinkageError e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Get the recorder for a component, creating it the first time
+	 * @param component Name of the component
+	 * @return The recorder
+	 */
+	public static Recorder recorder(String component)
+	{
+		Recorder recorder = recorders.get(component);
+
+		if(recorder == null)
+		{
+			Recorder created = new Recorder(component);
+			recorder = recorders.putIfAbsent(component, created);
+
+			if(recorder == null)
+				recorder = created;
+		}
+
+		return recorder;
+	}
+
+	/**
+	 * Start timing
+	 * @return The current time, or 0 if metrics are off
+	 */
+	public static long start()
+	{
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Forget everything recorded so far
+	 */
+	public static void reset()
+	{
+		for(Recorder recorder : recorders.values())
+		{
+			for(LatencyHistogram histogram : recorder.histograms)
+			{
+				histogram.reset();
+			}
+		}
+	}
+
+	/**
+	 * @return Every stage that has recorded something, ordered by component then stage
+	 */
+	public static List<Snapshot> snapshot()
+	{
+		Map<String, Recorder> sorted = new TreeMap<>(recorders);
+		List<Snapshot> snapshots = new ArrayList<>();
+
+		for(Recorder recorder : sorted.values())
+		{
+			for(Stage stage : Stage.values())
+			{
+				LatencyHistogram histogram = recorder.histograms[stage.ordinal()];
+
+				if(histogram.getCount() > 0)
+					snapshots.add(new Snapshot(recorder.component, stage, histogram));
+			}
+		}
+
+		return snapshots;
+	}
+
+	/**
+	 * @return The current snapshot as a JSON array of objects, with times in milliseconds
+	 */
+	public static String toJSON()
+	{
+		StringBuilder json = new StringBuilder("[");
+		boolean first = true;
+
+		for(Snapshot s : snapshot())
+		{
+			json.append(first ? "\n" : ",\n");
+			json.append(String.format(Locale.ROOT,
+				"  {\"component\": \"%s\", \"stage\": \"%s\", \"count\": %d, \"meanMillis\": %.4f, \"p50Millis\": %.4f, \"p95Millis\": %.4f, \"p99Millis\": %.4f, \"maxMillis\": %.4f}",
+				s.component.replace("\\", "\\\\").replace("\"", "\\\""), s.stage.label(), s.count, s.mean / 1e6, s.p50 / 1e6, s.p95 / 1e6, s.p99 / 1e6, s.max / 1e6));
+			first = false;
+		}
+
+		return json.append(first ? "]" : "\n]").toString();
+	}
+
+	/**
+	 * @return The current snapshot as CSV with a header row, with times in milliseconds
+	 */
+	public static String toCSV()
+	{
+		StringBuilder csv = new StringBuilder("component,stage,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n");
+
+		for(Snapshot s : snapshot())
+		{
+			csv.append(String.format(Locale.ROOT, "%s,%s,%d,%.4f,%.4f,%.4f,%.4f,%.4f%n",
+				s.component, s.stage.label(), s.count, s.mean / 1e6, s.p50 / 1e6, s.p95 / 1e6, s.p99 / 1e6, s.max / 1e6));
+		}
+
+		return csv.toString();
+	}
+
+	/**
+	 * Write the current snapshot as name.json and name.csv
+	 * @param directory Directory to write to, created if needed
+	 * @param name Name of the files without an extension
+	 * @throws IOException
+	 */
+	public static void export(File directory, String name) throws IOException
+	{
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create " + directory);
+
+		try(PrintWriter json = new PrintWriter(new File(directory, name + ".json"), "UTF-8"))
+		{
+			json.println(toJSON());
+		}
+
+		try(PrintWriter csv = new PrintWriter(new File(directory, name + ".csv"), "UTF-8"))
+		{
+			csv.print(toCSV());
+		}
+	}
+
+	/**
+	 * Records the stages of one component
+	 */
+	public static class Recorder
+	{
+		protected final String component;
+		protected final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+		protected Recorder(String component)
+		{
+			this.component = component;
+
+			for(int i = 0; i < histograms.length; i++)
+			{
+				histograms[i] = new LatencyHistogram();
+			}
+		}
+
+		/**
+		 * Record a stage that started at a given time and has just finished
+		 * @param stage The stage
+		 * @param start Value of {@link Metrics#start()} or of the previous record() call
+		 * @return The current time, to start the next stage from, or 0 if metrics are off
+		 */
+		public long record(Stage stage, long start)
+		{
+			if(!ENABLED)
+				return 0;
+
+			long now = System.nanoTime();
+			long elapsed = now - start;
+
+			histograms[stage.ordinal()].record(elapsed);
+
+			if(listener != null)
+				listener.stage(component, stage, elapsed);
+
+			return now;
+		}
+
+		/**
+		 * @param stage The stage
+		 * @return The histogram of the stage's durations
+		 */
+		public LatencyHistogram getHistogram(Stage stage)
+		{
+			return histograms[stage.ordinal()];
+		}
+	}
+
+	/**
+	 * Summary of one stage of one component, in nanoseconds
+	 */
+	public static class Snapshot
+	{
+		public final String component;
+		public final Stage stage;
+		public final long count;
+		public final double mean;
+		public final long p50;
+		public final long p95;
+		public final long p99;
+		public final long max;
+
+		protected Snapshot(String component, Stage stage, LatencyHistogram histogram)
+		{
+			this.component = component;
+			this.stage = stage;
+			this.count = histogram.getCount();
+			this.mean = histogram.getMean();
+			this.p50 = histogram.getPercentile(50);
+			this.p95 = histogram.getPercentile(95);
+			this.p99 = histogram.getPercentile(99);
+			this.max = histogram.getMax();
+		}
+	}
+}
@@ -0,0 +1,483 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Versioned binary file format for trained classifiers.
+ *
+ * A model file starts with a magic number, the format version and the class name of the
+ * algorithm, followed by whatever the algorithm writes. Arrays are written with their length
+ * and padded to an 8 byte boundary so that they can be read straight out of a memory-mapped
+ * buffer in bulk.
+ *
+ * The mapping makes reading fast, but most sections are still copied onto the heap as they are
+ * read. In particular a {@link LinearModel}'s weight matrix is copied into a float array, which
+ * it scores from and updates in place, so loading a model costs a full heap copy of its weights.
+ *
+ * @author Sam Lavers
+ */
+public class ModelFile
+{
+	final public static int MAGIC = 0x49434D46; // "ICMF"
+	final public static int VERSION = 6;
+
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+	final private static int ALIGNMENT = 8;
+	final private static int CHUNK = 1 << 16;
+
+	/**
+	 * Save a trained classifier
+	 * @param classifier The classifier
+	 * @param file The file to write to
+	 * @throws IOException
+	 */
+	public static void save(ClassificationAlgorithm classifier, File file) throws IOException
+	{
+		Writer out = new Writer(file);
+
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeString(classifier.getClass().getName());
+
+			classifier.writeModel(out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Load a classifier from a model file, creating an instance of the class it was saved from
+	 * @param file The model file
+	 * @return The trained classifier
+	 * @throws IOException
+	 */
+	public static ClassificationAlgorithm load(File file) throws IOException
+	{
+		Reader in = new Reader(file);
+		String className = in.readString();
+
+		ClassificationAlgorithm classifier;
+
+		try
+		{
+			classifier = Class.forName(className).asSubclass(ClassificationAlgorithm.class).getDeclaredConstructor().newInstance();
+		}
+		catch(ReflectiveOperationException | ClassCastException e)
+		{
+			throw new IOException("Can't create classifier " + className, e);
+		}
+
+		classifier.readModel(in);
+
+		return classifier;
+	}
+
+	/**
+	 * Load a model file into an existing classifier
+	 * @param classifier The classifier, which must be of the same class that saved the model
+	 * @param file The model file
+	 * @throws IOException
+	 */
+	public static void load(ClassificationAlgorithm classifier, File file) throws IOException
+	{
+		Reader in = new Reader(file);
+		String className = in.readString();
+
+		if(!className.equals(classifier.getClass().getName()))
+			throw new IOException("Model file is for " + className + ", not " + classifier.getClass().getName());
+
+		classifier.readModel(in);
+	}
+
+	/**
+	 * Writes the sections of a model file
+	 */
+	public static class Writer
+	{
+		private DataOutputStream out;
+		private long position;
+		private ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+
+		Writer(File file) throws IOException
+		{
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), CHUNK));
+		}
+
+		public void writeInt(int value) throws IOException
+		{
+			out.writeInt(value);
+			position += 4;
+		}
+
+		public void writeFloat(float value) throws IOException
+		{
+			out.writeFloat(value);
+			position += 4;
+		}
+
+		public void writeDouble(double value) throws IOException
+		{
+			out.writeDouble(value);
+			position += 8;
+		}
+
+		public void writeString(String value) throws IOException
+		{
+			byte[] bytes = value.getBytes(UTF8);
+
+			writeInt(bytes.length);
+			out.write(bytes);
+			position += bytes.length;
+		}
+
+		public void writeStrings(String[] values) throws IOException
+		{
+			writeInt(values.length);
+
+			for(String value : values)
+			{
+				writeString(value);
+			}
+		}
+
+		public void writeBytes(byte[] values) throws IOException
+		{
+			writeInt(values.length);
+			align();
+
+			out.write(values);
+			position += values.length;
+		}
+
+		public void writeInts(int[] values) throws IOException
+		{
+			writeInt(values.length);
+			align();
+
+			for(int i = 0; i < values.length; i += CHUNK / 4)
+			{
+				int n = Math.min(CHUNK / 4, values.length - i);
+
+				buffer.clear();
+				buffer.asIntBuffer().put(values, i, n);
+				flush(n * 4);
+			}
+		}
+
+		public void writeFloats(float[] values) throws IOException
+		{
+			writeFloats(values, 0, values.length);
+		}
+
+		public void writeFloats(float[] values, int offset, int length) throws IOException
+		{
+			writeInt(length);
+			align();
+
+			for(int i = 0; i < length; i += CHUNK / 4)
+			{
+				int n = Math.min(CHUNK / 4, length - i);
+
+				buffer.clear();
+				buffer.asFloatBuffer().put(values, offset + i, n);
+				flush(n * 4);
+			}
+		}
+
+		public void writeDoubles(double[] values) throws IOException
+		{
+			writeInt(values.length);
+			align();
+
+			for(int i = 0; i < values.length; i += CHUNK / 8)
+			{
+				int n = Math.min(CHUNK / 8, values.length - i);
+
+				buffer.clear();
+				buffer.asDoubleBuffer().put(values, i, n);
+				flush(n * 8);
+			}
+		}
+
+		/**
+		 * Writes a matrix with equal-length rows as its dimensions and one flat array
+		 */
+		public void writeFloatMatrix(float[][] values) throws IOException
+		{
+			int cols = values.length == 0 ? 0 : values[0].length;
+			float[] flat = new float[values.length * cols];
+
+			for(int i = 0; i < values.length; i++)
+			{
+				System.arraycopy(values[i], 0, flat, i * cols, cols);
+			}
+
+			writeInt(values.length);
+			writeInt(cols);
+			writeFloats(flat);
+		}
+
+		/**
+		 * Writes a matrix with equal-length rows as its dimensions and one flat array
+		 */
+		public void writeByteMatrix(byte[][] values) throws IOException
+		{
+			int cols = values.length == 0 ? 0 : values[0].length;
+			byte[] flat = new byte[values.length * cols];
+
+			for(int i = 0; i < values.length; i++)
+			{
+				System.arraycopy(values[i], 0, flat, i * cols, cols);
+			}
+
+			writeInt(values.length);
+			writeInt(cols);
+			writeBytes(flat);
+		}
+
+		private void flush(int bytes) throws IOException
+		{
+			out.write(buffer.array(), 0, bytes);
+			position += bytes;
+		}
+
+		private void align() throws IOException
+		{
+			while(position % ALIGNMENT != 0)
+			{
+				out.write(0);
+				position++;
+			}
+		}
+
+		void close() throws IOException
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the sections of a model file from a read-only memory mapping
+	 */
+	public static class Reader
+	{
+		private MappedByteBuffer buffer;
+		private int version;
+
+		Reader(File file) throws IOException
+		{
+			this(file, MAGIC, VERSION);
+		}
+
+		/**
+		 * Map a file in another format built from the same sections
+		 * @param file The file
+		 * @param magic The magic number the file must start with
+		 * @param latestVersion The newest format version that can be read
+		 */
+		Reader(File file, int magic, int latestVersion) throws IOException
+		{
+			try(RandomAccessFile raf = new RandomAccessFile(file, "r"))
+			{
+				FileChannel channel = raf.getChannel();
+
+				if(channel.size() > Integer.MAX_VALUE)
+					throw new IOException("Model files over 2GB can't be mapped");
+
+				// The mapping stays valid after the channel is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+
+			if(buffer.remaining() < 8 || buffer.getInt() != magic)
+				throw new IOException(file + " has an unrecognised format");
+
+			version = buffer.getInt();
+
+			if(version < 1 || version > latestVersion)
+				throw new IOException("Unsupported model file version " + version);
+		}
+
+		/**
+		 * @return The format version the file was written with
+		 */
+		public int getVersion()
+		{
+			return version;
+		}
+
+		public int readInt()
+		{
+			return buffer.getInt();
+		}
+
+		public float readFloat()
+		{
+			return buffer.getFloat();
+		}
+
+		public double readDouble()
+		{
+			return buffer.getDouble();
+		}
+
+		public String readString()
+		{
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+
+			return new String(bytes, UTF8);
+		}
+
+		public String[] readStrings()
+		{
+			String[] values = new String[buffer.getInt()];
+
+			for(int i = 0; i < values.length; i++)
+			{
+				values[i] = readString();
+			}
+
+			return values;
+		}
+
+		public byte[] readBytes()
+		{
+			byte[] values = new byte[buffer.getInt()];
+			align();
+
+			buffer.get(values);
+
+			return values;
+		}
+
+		public int[] readInts()
+		{
+			int[] values = new int[buffer.getInt()];
+			align();
+
+			IntBuffer view = buffer.asIntBuffer();
+			view.get(values);
+			skip(values.length * 4);
+
+			return values;
+		}
+
+		public float[] readFloats()
+		{
+			float[] values = new float[buffer.getInt()];
+			mapFloats(values.length).get(values);
+
+			return values;
+		}
+
+		public double[] readDoubles()
+		{
+			double[] values = new double[buffer.getInt()];
+			mapDoubles(values.length).get(values);
+
+			return values;
+		}
+
+		/**
+		 * Reads a float array as a view onto the mapped file, without copying it onto the heap
+		 * @return The array
+		 */
+		public FloatBuffer mapFloats()
+		{
+			return mapFloats(buffer.getInt());
+		}
+
+		/**
+		 * Reads a double array as a view onto the mapped file, without copying it onto the heap
+		 * @return The array
+		 */
+		public DoubleBuffer mapDoubles()
+		{
+			return mapDoubles(buffer.getInt());
+		}
+
+		public float[][] readFloatMatrix()
+		{
+			int rows = buffer.getInt();
+			int cols = buffer.getInt();
+			FloatBuffer flat = mapFloats();
+
+			float[][] values = new float[rows][cols];
+
+			for(int i = 0; i < rows; i++)
+			{
+				flat.get(values[i]);
+			}
+
+			return values;
+		}
+
+		public byte[][] readByteMatrix()
+		{
+			int rows = buffer.getInt();
+			int cols = buffer.getInt();
+			buffer.getInt();
+			align();
+
+			byte[][] values = new byte[rows][cols];
+
+			for(int i = 0; i < rows; i++)
+			{
+				buffer.get(values[i]);
+			}
+
+			return values;
+		}
+
+		private FloatBuffer mapFloats(int length)
+		{
+			align();
+
+			FloatBuffer view = buffer.asFloatBuffer();
+			view.limit(length);
+			skip(length * 4);
+
+			return view;
+		}
+
+		private DoubleBuffer mapDoubles(int length)
+		{
+			align();
+
+			DoubleBuffer view = buffer.asDoubleBuffer();
+			view.limit(length);
+			skip(length * 8);
+
+			return view;
+		}
+
+		private void skip(int bytes)
+		{
+			buffer.position(buffer.position() + bytes);
+		}
+
+		private void align()
+		{
+			while(buffer.position() % ALIGNMENT != 0)
+			{
+				buffer.get();
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.IOException;
+
+/**
+ * K-nearest-neighbour index over fixed length float vectors, identified by their row number in
+ * the array the index was built from. Distances are squared euclidean.
+ *
+ * Searching does not modify an index, so one instance may be queried from any number of
+ * threads at once.
+ *
+ * @author Sam Lavers
+ */
+public interface NearestNeighbourIndex
+{
+	/**
+	 * @return Number of vectors in the index
+	 */
+	public int size();
+
+	/**
+	 * @return Dimensionality of the indexed vectors
+	 */
+	public int numDimensions();
+
+	/**
+	 * Find the K nearest neighbours of a query vector
+	 *
+	 * @param query The query vector
+	 * @param k Number of neighbours
+	 * @param indices Output for the row numbers of the neighbours, nearest first
+	 * @param distances Output for the squared distances of the neighbours
+	 * @return The number of neighbours found, which is less than k only if the index is smaller than k
+	 */
+	public int searchKNN(float[] query, int k, int[] indices, float[] distances);
+
+	/**
+	 * Build an index over this index's vectors followed by some more
+	 * @param vectors Row-major vectors to add, numbered on from this index's
+	 * @return The new index
+	 */
+	public NearestNeighbourIndex add(float[] vectors);
+
+	/**
+	 * Write the index to a model file
+	 * @param out The model file writer
+	 * @throws IOException
+	 */
+	public void write(ModelFile.Writer out) throws IOException;
+}
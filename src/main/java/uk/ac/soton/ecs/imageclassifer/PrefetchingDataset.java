@@ -0,0 +1,205 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.ReadableListDataset;
+import org.openimaj.ml.annotation.AnnotatedObject;
+
+/**
+ * Iterates a list dataset in order while a small pool of threads reads the instances ahead of
+ * the consumer. For VFS datasets reading an instance means loading and decoding an image, so
+ * this overlaps decoding with whatever is done to the images, and a slow filesystem only
+ * stalls the consumer once the read-ahead has been used up.
+ *
+ * At most capacity instances are read but not yet consumed at any time, so memory stays
+ * bounded however large the dataset is. Instances come out in dataset order, and
+ * {@link #getID(int)} gives the same IDs as the underlying dataset.
+ *
+ * @author Sam Lavers
+ */
+public class PrefetchingDataset<T> implements Iterable<T>
+{
+	protected final ListDataset<T> dataset;
+	protected final int threads;
+	protected final int capacity;
+
+	final private static Metrics.Recorder metrics = Metrics.recorder(PrefetchingDataset.class.getSimpleName());
+
+	/**
+	 * @param dataset The dataset to read
+	 * @param threads Number of reading threads
+	 * @param capacity Maximum number of instances read ahead of the consumer
+	 */
+	public PrefetchingDataset(ListDataset<T> dataset, int threads, int capacity)
+	{
+		if(threads < 1 || capacity < 1)
+			throw new IllegalArgumentException("Need at least one thread and a capacity of at least one");
+
+		this.dataset = dataset;
+		this.threads = threads;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Read ahead with one thread per core, keeping up to two instances per thread
+	 * @param dataset The dataset to read
+	 */
+	public PrefetchingDataset(ListDataset<T> dataset)
+	{
+		this(dataset, Runtime.getRuntime().availableProcessors(), 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return Number of instances in the dataset
+	 */
+	public int size()
+	{
+		return dataset.size();
+	}
+
+	/**
+	 * @param index Index of an instance
+	 * @return The underlying dataset's ID for the instance, or its index if the dataset has no IDs
+	 */
+	public String getID(int index)
+	{
+		if(dataset instanceof ReadableListDataset)
+			return ((ReadableListDataset<?, ?>) dataset).getID(index);
+
+		return String.valueOf(index);
+	}
+
+	/**
+	 * Start reading from the beginning of the dataset. Each iterator has its own threads, which
+	 * stop once the last instance has been read.
+	 */
+	@Override
+	public Iterator<T> iterator()
+	{
+		return new PrefetchingIterator();
+	}
+
+	/**
+	 * Read every instance of a grouped dataset, group after group, annotating each with its group
+	 * @param data The dataset
+	 * @return The annotated instances
+	 */
+	public static <T> List<AnnotatedObject<T, String>> readAnnotated(GroupedDataset<String, ? extends ListDataset<T>, T> data)
+	{
+		List<AnnotatedObject<T, String>> list = new ArrayList<>();
+
+		for(Map.Entry<String, ? extends ListDataset<T>> group : data.entrySet())
+		{
+			for(T instance : new PrefetchingDataset<T>(group.getValue()))
+			{
+				list.add(new AnnotatedObject<T, String>(instance, group.getKey()));
+			}
+		}
+
+		return list;
+	}
+
+	private class PrefetchingIterator implements Iterator<T>
+	{
+		// Reads in dataset order; the head is the next instance to hand out
+		private final ArrayDeque<Future<T>> queue = new ArrayDeque<>();
+		private final ExecutorService pool;
+		private int submitted = 0;
+
+		PrefetchingIterator()
+		{
+			pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, dataset.size())), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					// Don't keep the JVM alive if an iterator is abandoned part way through
+					Thread thread = new Thread(r, "prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			fill();
+		}
+
+		private void fill()
+		{
+			while(queue.size() < capacity && submitted < dataset.size())
+			{
+				final int index = submitted++;
+
+				queue.add(pool.submit(new Callable<T>()
+				{
+					@Override
+					public T call()
+					{
+						long start = Metrics.start();
+						T instance = dataset.getInstance(index);
+						metrics.record(Metrics.Stage.DECODE, start);
+
+						return instance;
+					}
+				}));
+			}
+
+			if(submitted == dataset.size())
+				pool.shutdown();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return !queue.isEmpty() || submitted < dataset.size();
+		}
+
+		@Override
+		public T next()
+		{
+			if(!hasNext())
+				throw new NoSuchElementException();
+
+			// Top up the reads now that the last instance handed out has been consumed. The head
+			// is among them until it's returned, so no more than capacity are ever outstanding.
+			fill();
+
+			int index = submitted - queue.size();
+			Future<T> head = queue.poll();
+
+			try
+			{
+				return head.get();
+			}
+			catch(InterruptedException e)
+			{
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while reading " + getID(index), e);
+			}
+			catch(ExecutionException e)
+			{
+				pool.shutdownNow();
+				throw new RuntimeException("Couldn't read " + getID(index), e.getCause());
+			}
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -110,6 +110,55 @@ public class PrintableClassificationResult<CLASS> extends BasicClassificationRes
 		return sb.toString();
 	}
 
+	/**
+	 * Get the results as a JSON object, with the best class and every class's confidence
+	 * @return The JSON
+	 */
+	public String toJSON()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("{\"best\": ");
+		appendJSONString(sb, bestResult());
+		sb.append(", \"results\": [");
+
+		boolean first = true;
+
+		for(CLASS clazz : getPredictedClasses())
+		{
+			sb.append(first ? "" : ", ");
+			sb.append("{\"class\": ");
+			appendJSONString(sb, clazz.toString());
+			sb.append(", \"confidence\": ");
+
+			double confidence = getConfidence(clazz);
+			sb.append(Double.isNaN(confidence) || Double.isInfinite(confidence) ? "null" : Double.toString(confidence));
+			sb.append("}");
+			first = false;
+		}
+
+		return sb.append("]}").toString();
+	}
+
+	private static void appendJSONString(StringBuilder sb, String value)
+	{
+		sb.append('"');
+
+		for(int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+
+			if(c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if(c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+
+		sb.append('"');
+	}
+
 	/**
 	 * Output as string depending on the type of the result
 	 * @return The result
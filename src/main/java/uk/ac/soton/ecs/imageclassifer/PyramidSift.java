@@ -1,109 +1,307 @@
 package uk.ac.soton.ecs.imageclassifer;
 
-import java.util.List;
+import java.io.IOException;
 import java.util.ArrayList;
-import org.openimaj.data.DataSource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
-import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FloatFV;
 import org.openimaj.feature.FeatureExtractor;
 import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.data.LocalFeatureListDataSource;
 import org.openimaj.feature.local.list.LocalFeatureList;
 import org.openimaj.image.FImage;
 import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
 import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
 import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
-import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
-import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
+import org.openimaj.math.geometry.shape.Rectangle;
 import org.openimaj.ml.annotation.Annotated;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator.Mode;
+import org.openimaj.ml.annotation.ScoredAnnotation;
 import org.openimaj.ml.clustering.ByteCentroidsResult;
 import org.openimaj.ml.clustering.assignment.HardAssigner;
-import org.openimaj.ml.clustering.kmeans.ByteKMeans;
-import org.openimaj.ml.kernel.HomogeneousKernelMap;
-import org.openimaj.ml.kernel.HomogeneousKernelMap.KernelType;
-import org.openimaj.ml.kernel.HomogeneousKernelMap.WindowType;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
 import org.openimaj.util.pair.IntFloatPair;
 
 import de.bwaldvogel.liblinear.SolverType;
 
+import uk.ac.soton.ecs.imageclassifer.Metrics.Stage;
+
 /**
  * Image classifier implementation using dense pyramid sift features and a lib linear annotator
  * @author Sam Lavers
  */
-public class PyramidSift implements ClassificationAlgorithm
+public class PyramidSift implements IncrementalClassificationAlgorithm
 {
-	protected LiblinearAnnotator<FImage, String> annotator;	
+	protected ByteCentroidsResult centroids;
+	// k-means implementation used to train the codebook
+	protected CodebookTrainer codebookTrainer = CodebookTrainer.getDefault();
+	protected HardAssigner<byte[], float[], IntFloatPair> assigner;
+	protected FeatureExtractor<FloatFV, FImage> extractor;
+	protected LinearModel annotator;
+	protected Chi2KernelMap kernelMap = new Chi2KernelMap();
+	// Applies the kernel map and the annotator to the non-zero bins of a histogram at classify time
+	protected SparseKernelScorer scorer;
+	// Stage timings of classify()
+	protected Metrics.Recorder metrics = Metrics.recorder(getClass().getSimpleName());
+	// Memory budget and per-image cap of the descriptor sample the codebook is trained on
+	protected long sampleBudget = DescriptorReservoir.DEFAULT_BUDGET;
+	protected int samplesPerImage = DescriptorReservoir.DEFAULT_PER_IMAGE;
+
+	// Keypoint energy thresholds for codebook training and for the histograms
+	final protected static float QUANTISER_ENERGY = 0.005f;
+	final protected static float HISTOGRAM_ENERGY = 0.015f;
+	// Length of a SIFT descriptor
+	final protected static int DESCRIPTOR_LENGTH = 128;
+	// Number of spatial blocks across and down the image
+	final protected static int BLOCKS = 2;
+
+	// The PDSIFT engine keeps the keypoints of the last image it analysed, so each thread
+	// needs its own instance.
+	protected ThreadLocal<PyramidDenseSIFT<FImage>> pdsift = new ThreadLocal<PyramidDenseSIFT<FImage>>()
+	{
+		@Override
+		protected PyramidDenseSIFT<FImage> initialValue()
+		{
+			return createEngine();
+		}
+	};
 
 	public static void main(String[] args)
 	{
 		Utilities.runClassifier(new PyramidSift(), "PyramidSift", args);
 	}
+
+	/**
+	 * Bound the sample of training descriptors the codebook is trained on. Takes effect at the
+	 * next training.
+	 * @param budget Memory budget of the sample in bytes
+	 * @param perImage Maximum number of descriptors to draw from each image
+	 */
+	public void setSampling(long budget, int perImage)
+	{
+		this.sampleBudget = budget;
+		this.samplesPerImage = perImage;
+	}
 	
 	/**
 	 * Train the classifier from a list of annotated images
 	 * @param data The training set
 	 */
 	@Override
-	public void train(List<? extends Annotated<FImage, String>> data)
+	public void train(final List<? extends Annotated<FImage, String>> data)
 	{
-		// Setup PDSIFT
-		
-		DenseSIFT dsift = new DenseSIFT(5, 7);
-		
-		final PyramidDenseSIFT<FImage> pdsift = new PyramidDenseSIFT<FImage>(dsift, 6f, 7);
-		
-		final HardAssigner<byte[], float[], IntFloatPair> assigner = this.trainQuantiser(data, pdsift);
+		// Run dense SIFT over each image in parallel. The quantiser is trained on a bounded sample
+		// of the keypoints, and the subset above the higher energy threshold that the histograms
+		// use is packed into a compact store, within the feature cache budget. Images that don't
+		// fit are analysed again for their histograms, so memory doesn't grow with the training
+		// set.
+		final KeypointStore store = new KeypointStore(data.size(), DESCRIPTOR_LENGTH, Long.getLong(FeatureCache.PROPERTY, FeatureCache.DEFAULT_MEGABYTES) << 20);
+		final DescriptorReservoir<byte[]> sample = new DescriptorReservoir.Bytes(DESCRIPTOR_LENGTH, sampleBudget, samplesPerImage);
+
+		Parallel.forIndex(0, data.size(), 1, new Operation<Integer>()
+		{
+			@Override
+			public void perform(Integer i)
+			{
+				LocalFeatureList<ByteDSIFTKeypoint> keypoints = getKeypoints(data.get(i).getObject(), QUANTISER_ENERGY);
+				byte[] descriptors = new byte[keypoints.size() * DESCRIPTOR_LENGTH];
+				List<ByteDSIFTKeypoint> histogramKeypoints = new ArrayList<>();
+
+				for(int k = 0; k < keypoints.size(); k++)
+				{
+					ByteDSIFTKeypoint keypoint = keypoints.get(k);
+					System.arraycopy(keypoint.descriptor, 0, descriptors, k * DESCRIPTOR_LENGTH, DESCRIPTOR_LENGTH);
+
+					if(keypoint.energy >= HISTOGRAM_ENERGY)
+						histogramKeypoints.add(keypoint);
+				}
+
+				sample.offer(data.get(i).getAnnotations().iterator().next(), descriptors);
+				store.set(i, histogramKeypoints);
+			}
+		});
+
+		System.out.println("Keypoint store: " + store);
+		System.out.println("Codebook sample: " + sample);
+
+		this.assigner = this.trainQuantiser(sample);
 		
 		// Create a feature extractor which uses BoVW to generate the feature vector
 		
-		FeatureExtractor<DoubleFV, FImage> extractor = new FeatureExtractor<DoubleFV, FImage>()
+		this.extractor = this.createExtractor();
+		
+		// Train the annotator on the stored keypoints, analysing the images that weren't stored again
+
+		final FloatFV[] encoded = new FloatFV[data.size()];
+
+		Parallel.forIndex(0, data.size(), 1, new Operation<Integer>()
 		{
 			@Override
-			public DoubleFV extractFeature(FImage image)
+			public void perform(Integer i)
 			{
-				pdsift.analyseImage(image);
+				FImage image = data.get(i).getObject();
 
-				BagOfVisualWords<byte[]> bovw = new BagOfVisualWords<byte[]>(assigner);
+				if(store.contains(i))
+					encoded[i] = map(aggregate(store.getDescriptors(i), store.getLocations(i), image.getBounds()));
+				else
+					encoded[i] = extractor.extractFeature(image);
+			}
+		});
 
-				BlockSpatialAggregator<byte[], SparseIntFV> spatial = new BlockSpatialAggregator<byte[], SparseIntFV>(bovw, 2, 2);
+		this.annotator = LinearModel.train(Arrays.asList(encoded), Utilities.annotations(data), SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+		this.scorer = new SparseKernelScorer(this.annotator, this.kernelMap);
+	}
+	
+	/**
+	 * Update the linear model with more images, keeping the codebook
+	 * @param data The new images
+	 * @return What the update changed
+	 */
+	@Override
+	public UpdateReport update(List<? extends Annotated<FImage, String>> data)
+	{
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		long start = System.nanoTime();
+		List<FloatFV> encoded = Utilities.extractAll(extractor, Utilities.objects(data));
+		List<String> annotations = Utilities.annotations(data);
+		LinearModel updated = annotator.update(encoded, annotations, 1.0, LinearModel.UPDATE_EPOCHS);
+		UpdateReport report = UpdateReport.compare(annotator, updated, encoded, annotations, start);
+
+		annotator = updated;
+		scorer = new SparseKernelScorer(annotator, kernelMap);
 
-				return spatial.aggregate(pdsift.getByteKeypoints(0.015f), image.getBounds()).normaliseFV();
+		return report;
+	}
+
+	/**
+	 * Creates the feature extractor which builds a spatial BoVW histogram from PDSIFT features
+	 * and applies the kernel map
+	 * @return The extractor
+	 */
+	protected FeatureExtractor<FloatFV, FImage> createExtractor()
+	{
+		return new FeatureExtractor<FloatFV, FImage>()
+		{
+			@Override
+			public FloatFV extractFeature(FImage image)
+			{
+				return encode(getKeypoints(image, HISTOGRAM_ENERGY), image.getBounds());
 			}
 		};
-		
-		HomogeneousKernelMap hkm = new HomogeneousKernelMap(KernelType.Chi2, WindowType.Rectangular);
-		extractor = hkm.createWrappedExtractor(extractor);
-		
-		// Train the annotator
+	}
 
-		this.annotator = new LiblinearAnnotator<FImage, String>(extractor, Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
-		this.annotator.train(data);
+	/**
+	 * Builds the 2x2 spatial BoVW histogram of an image's keypoints above the histogram energy
+	 * threshold, then normalises it and applies the kernel map
+	 * @param keypoints The image's keypoints
+	 * @param bounds The image's bounds
+	 * @return The feature vector
+	 */
+	protected FloatFV encode(List<ByteDSIFTKeypoint> keypoints, Rectangle bounds)
+	{
+		return map(aggregate(keypoints, bounds));
 	}
-	
+
 	/**
-	 * Trains the quantiser using an existing PDSIFT instance and a training dataset
-	 * @param data The training set
-	 * @param pdsift The current PDSIFT instance
-	 * @return The hard assigner
+	 * Builds the 2x2 spatial BoVW histogram of an image's keypoints above the histogram energy
+	 * threshold
+	 * @param keypoints The image's keypoints
+	 * @param bounds The image's bounds
+	 * @return The histogram
 	 */
-	protected HardAssigner<byte[], float[], IntFloatPair> trainQuantiser(List<? extends Annotated<FImage, String>> data, PyramidDenseSIFT<FImage> pdsift)
+	protected SparseIntFV aggregate(List<ByteDSIFTKeypoint> keypoints, Rectangle bounds)
 	{
-		List<LocalFeatureList<ByteDSIFTKeypoint>> allimages = new ArrayList<>();
+		byte[] descriptors = new byte[keypoints.size() * DESCRIPTOR_LENGTH];
+		float[] locations = new float[keypoints.size() * KeypointStore.LOCATION_FIELDS];
+		KeypointStore.pack(keypoints, descriptors, locations);
 
-		for(Annotated<FImage, String> annotated : data)
+		return aggregate(descriptors, locations, bounds);
+	}
+
+	/**
+	 * Builds the 2x2 spatial BoVW histogram of packed keypoints above the histogram energy
+	 * threshold. The blocks are laid out as BlockSpatialAggregator lays them out, row by row,
+	 * each holding a histogram over the whole codebook.
+	 * @param descriptors The keypoints' descriptors, row after row
+	 * @param locations Each keypoint's x, y and energy
+	 * @param bounds The image's bounds
+	 * @return The histogram
+	 */
+	protected SparseIntFV aggregate(byte[] descriptors, float[] locations, Rectangle bounds)
+	{
+		int words = assigner.size();
+		int[] counts = new int[BLOCKS * BLOCKS * words];
+		byte[] descriptor = new byte[DESCRIPTOR_LENGTH];
+		float blockWidth = (bounds.width - bounds.x) / BLOCKS;
+		float blockHeight = (bounds.height - bounds.y) / BLOCKS;
+
+		for(int k = 0; k < locations.length / KeypointStore.LOCATION_FIELDS; k++)
 		{
-			pdsift.analyseImage(annotated.getObject());
-			allimages.add(pdsift.getByteKeypoints(0.005f));
+			int offset = k * KeypointStore.LOCATION_FIELDS;
+
+			if(locations[offset + 2] < HISTOGRAM_ENERGY)
+				continue;
+
+			int bx = (int) Math.floor((locations[offset] - bounds.x) / blockWidth);
+			int by = (int) Math.floor((locations[offset + 1] - bounds.y) / blockHeight);
+			bx = Math.max(0, Math.min(BLOCKS - 1, bx));
+			by = Math.max(0, Math.min(BLOCKS - 1, by));
+
+			System.arraycopy(descriptors, k * DESCRIPTOR_LENGTH, descriptor, 0, DESCRIPTOR_LENGTH);
+			counts[(bx + by * BLOCKS) * words + assigner.assign(descriptor)]++;
 		}
-		
-		DataSource<byte[]> datasource = new LocalFeatureListDataSource<ByteDSIFTKeypoint, byte[]>(allimages);
 
-		ByteKMeans kmeans = ByteKMeans.createKDTreeEnsemble(300);
-		ByteCentroidsResult result = kmeans.cluster(datasource);
+		return new SparseIntFV(counts);
+	}
+
+	/**
+	 * Normalises a spatial histogram and applies the kernel map
+	 * @param histogram The histogram
+	 * @return The feature vector
+	 */
+	protected FloatFV map(SparseIntFV histogram)
+	{
+		return kernelMap.evaluate(histogram);
+	}
+
+	/**
+	 * Runs PDSIFT over an image with this thread's engine
+	 * @param image The image
+	 * @param energy Minimum keypoint energy
+	 * @return The keypoints
+	 */
+	protected LocalFeatureList<ByteDSIFTKeypoint> getKeypoints(FImage image, float energy)
+	{
+		PyramidDenseSIFT<FImage> engine = pdsift.get();
+		engine.analyseImage(image);
+
+		return engine.getByteKeypoints(energy);
+	}
+	
+	/**
+	 * Creates a new PDSIFT engine. Engines are not thread safe, so one is needed per thread.
+	 * @return The engine
+	 */
+	protected PyramidDenseSIFT<FImage> createEngine()
+	{
+		DenseSIFT dsift = new DenseSIFT(5, 7);
+		
+		return new PyramidDenseSIFT<FImage>(dsift, 6f, 7);
+	}
+	
+	/**
+	 * Trains the quantiser from a sample of the training images' keypoints
+	 * @param sample The sampled descriptors
+	 * @return The hard assigner
+	 */
+	protected HardAssigner<byte[], float[], IntFloatPair> trainQuantiser(DescriptorReservoir<byte[]> sample)
+	{
+		centroids = codebookTrainer.clusterBytes(sample.dataSource(), 300);
 
-		return result.defaultHardAssigner();
+		return centroids.defaultHardAssigner();
 	}
 	
 	/**
@@ -114,6 +312,77 @@ public class PyramidSift implements ClassificationAlgorithm
 	@Override
 	public ClassificationResult<String> classify(FImage image)
 	{
-		return Utilities.scoredListToResult(annotator.annotate(image));
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		long start = Metrics.start();
+		LocalFeatureList<ByteDSIFTKeypoint> keypoints = getKeypoints(image, HISTOGRAM_ENERGY);
+		long time = metrics.record(Stage.FEATURES, start);
+		// Keypoints are assigned to visual words as they are binned, so this includes quantisation
+		SparseIntFV histogram = aggregate(keypoints, image.getBounds());
+		time = metrics.record(Stage.SPATIAL, time);
+		// The kernel map is applied to the non-zero bins as they are scored
+		List<ScoredAnnotation<String>> annotations = scorer.annotate(histogram);
+		metrics.record(Stage.SCORING, time);
+
+		ClassificationResult<String> result = Utilities.scoredListToResult(annotations);
+
+		metrics.record(Stage.CLASSIFY, start);
+		return result;
+	}
+
+	/**
+	 * Classify a batch of images in parallel
+	 * @param images The images
+	 * @param threads The number of threads to use
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads)
+	{
+		return Utilities.classifyAll(this, images, threads);
+	}
+
+	/**
+	 * Classify a batch of images on an existing pool of threads
+	 * @param images The images
+	 * @param pool The threads to classify on
+	 * @param threads The most images to classify at once
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads)
+	{
+		return Utilities.classifyAll(this, images, pool, threads);
+	}
+
+	/**
+	 * Write the codebook and linear model to a model file
+	 * @param out The model file writer
+	 */
+	@Override
+	public void writeModel(ModelFile.Writer out) throws IOException
+	{
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		out.writeByteMatrix(centroids.centroids);
+		annotator.write(out);
+	}
+
+	/**
+	 * Restore the codebook and linear model from a model file
+	 * @param in The model file reader
+	 */
+	@Override
+	public void readModel(ModelFile.Reader in) throws IOException
+	{
+		centroids = new ByteCentroidsResult();
+		centroids.centroids = in.readByteMatrix();
+		assigner = centroids.defaultHardAssigner();
+
+		extractor = createExtractor();
+		annotator = LinearModel.read(in);
+		scorer = new SparseKernelScorer(annotator, kernelMap);
 	}
 }
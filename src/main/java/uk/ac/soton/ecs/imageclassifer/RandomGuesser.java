@@ -1,9 +1,12 @@
 package uk.ac.soton.ecs.imageclassifer;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.vfs2.FileSystemException;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
@@ -40,6 +43,51 @@ public class RandomGuesser implements ClassificationAlgorithm
 		return result;
 	}
 
+	/**
+	 * Classify a batch of images in parallel
+	 * @param images The images
+	 * @param threads The number of threads to use
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads)
+	{
+		return Utilities.classifyAll(this, images, threads);
+	}
+
+	/**
+	 * Classify a batch of images on an existing pool of threads
+	 * @param images The images
+	 * @param pool The threads to classify on
+	 * @param threads The most images to classify at once
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads)
+	{
+		return Utilities.classifyAll(this, images, pool, threads);
+	}
+
+	/**
+	 * Write the known classes to a model file
+	 * @param out The model file writer
+	 */
+	@Override
+	public void writeModel(ModelFile.Writer out) throws IOException
+	{
+		out.writeStrings(classes.toArray(new String[0]));
+	}
+
+	/**
+	 * Restore the known classes from a model file
+	 * @param in The model file reader
+	 */
+	@Override
+	public void readModel(ModelFile.Reader in) throws IOException
+	{
+		classes = new HashSet<>(Arrays.asList(in.readStrings()));
+	}
+
 	/**
 	 * Train the classifier
 	 * @param data The training set
@@ -1,61 +1,159 @@
 package uk.ac.soton.ecs.imageclassifer;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import org.apache.commons.vfs2.FileSystemException;
 import org.openimaj.data.DataSource;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.feature.FeatureExtractor;
 import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.data.LocalFeatureListDataSource;
 import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
 import org.openimaj.image.FImage;
 import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
 import org.openimaj.image.feature.local.engine.DoGSIFTEngine;
 import org.openimaj.image.feature.local.keypoints.Keypoint;
 import org.openimaj.ml.annotation.Annotated;
 import org.openimaj.ml.annotation.ScoredAnnotation;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator.Mode;
 import org.openimaj.ml.clustering.ByteCentroidsResult;
-import org.openimaj.ml.clustering.kmeans.ByteKMeans;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
 import de.bwaldvogel.liblinear.SolverType;
 
+import uk.ac.soton.ecs.imageclassifer.Metrics.Stage;
+
 /**
  * Bag of Visual Words classifier given a grouped dataset of training images, and a list dataset of testing images, SiftBoVW
  * will create sift interest points for an image, and train a lib linear annotator
  * 
  * @author Sam Lavers
  */
-public class SIFTBoVW implements ClassificationAlgorithm
+public class SIFTBoVW implements IncrementalClassificationAlgorithm
 {
 	protected int codebookSize = 500;
+	// k-means implementation used to train the codebook
+	protected CodebookTrainer codebookTrainer = CodebookTrainer.getDefault();
 	protected int patchSize = 8;
 	protected int patchSeparation = patchSize / 2;
+	// Train a vocabulary tree with this branching factor and depth instead of a flat codebook,
+	// for vocabularies too large to search exhaustively; 0 for a flat codebook of codebookSize
+	protected int vocabularyBranching = 0;
+	protected int vocabularyDepth = 0;
 
+	protected ByteCentroidsResult centroids;
+	protected VocabularyTree vocabularyTree;
 	protected BagOfVisualWords<byte[]> quantiser;
-	protected LiblinearAnnotator<FImage, String> annotator;
-	protected Map<FImage, LocalFeatureList<Keypoint>> featureCache;
+	protected FeatureExtractor<SparseIntFV, FImage> extractor;
+	protected LinearModel annotator;
+	// Stage timings of classify()
+	protected Metrics.Recorder metrics = Metrics.recorder(getClass().getSimpleName());
+	// Memory budget and per-image cap of the descriptor sample the codebook is trained on
+	protected long sampleBudget = DescriptorReservoir.DEFAULT_BUDGET;
+	protected int samplesPerImage = DescriptorReservoir.DEFAULT_PER_IMAGE;
+	// Features keyed by a hash of the image content, bounded by descriptor size
+	protected FeatureCache<String, LocalFeatureList<Keypoint>> featureCache = new FeatureCache<>(new FeatureCache.Weigher<LocalFeatureList<Keypoint>>()
+	{
+		@Override
+		public long weigh(LocalFeatureList<Keypoint> value)
+		{
+			return value.isEmpty() ? 0 : (long) value.size() * value.get(0).ivec.length * 1;
+		}
+	});
+	// Training descriptors saved by previous runs, or null to always extract
+	protected DescriptorStore descriptorStore = DescriptorStore.getDefault();
+
+	// Identifies the extractor and its parameters in descriptor store keys
+	final protected static String EXTRACTOR = "DoGSIFTEngine default";
+	// Length of a SIFT descriptor
+	final protected static int DESCRIPTOR_LENGTH = 128;
 
 	public static void main(String[] args) throws FileSystemException, FileNotFoundException
 	{
 		Utilities.runClassifier(new SIFTBoVW(), "PyramidSift", args);
 	}
 
+	/**
+	 * Bound the sample of training descriptors the codebook is trained on. Takes effect at the
+	 * next training.
+	 * @param budget Memory budget of the sample in bytes
+	 * @param perImage Maximum number of descriptors to draw from each image
+	 */
+	public void setSampling(long budget, int perImage)
+	{
+		this.sampleBudget = budget;
+		this.samplesPerImage = perImage;
+	}
+
+	/**
+	 * Train a vocabulary tree instead of a flat codebook, for vocabularies too large to search
+	 * exhaustively. Takes effect at the next training.
+	 * @param branching Number of children of each node, or 0 for a flat codebook
+	 * @param depth Number of levels below the root; the tree has up to branching^depth words
+	 */
+	public void setVocabularyTree(int branching, int depth)
+	{
+		if(branching == 1 || branching < 0 || (branching > 0 && depth < 1))
+			throw new IllegalArgumentException("Expected a branching factor of at least 2 and a depth of at least 1, or a branching factor of 0");
+
+		this.vocabularyBranching = branching;
+		this.vocabularyDepth = depth;
+	}
+
 	/**
 	 * Train the classifier
 	 * @param data The training set
 	 */
 	@Override
-	public void train(List<? extends Annotated<FImage, String>> data)
+	public void train(final List<? extends Annotated<FImage, String>> data)
 	{
-		this.featureCache = new HashMap<>();
-		
-		trainQuantiser(data);
+		// Extract each image's SIFT features in parallel, sampling the codebook's training
+		// descriptors as they are extracted. Only the sample and the byte-budgeted feature cache
+		// hold on to them, so memory doesn't grow with the training set.
+		final DescriptorReservoir<byte[]> sample = new DescriptorReservoir.Bytes(DESCRIPTOR_LENGTH, sampleBudget, samplesPerImage);
+
+		Parallel.forIndex(0, data.size(), 1, new Operation<Integer>()
+		{
+			@Override
+			public void perform(Integer i)
+			{
+				LocalFeatureList<Keypoint> keypoints = getFeatures(data.get(i).getObject());
+				sample.offer(data.get(i).getAnnotations().iterator().next(), keypoints);
+			}
+		});
+
+		System.out.println("Codebook sample: " + sample);
+		trainQuantiser(sample);
 		trainAnnotator(data);
+
+		// Training features won't be asked for again
+		System.out.println("Feature cache: " + featureCache);
+		featureCache.clear();
+	}
+
+	/**
+	 * Update the linear model with more images, keeping the codebook
+	 * @param data The new images
+	 * @return What the update changed
+	 */
+	@Override
+	public UpdateReport update(List<? extends Annotated<FImage, String>> data)
+	{
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		long start = System.nanoTime();
+		List<SparseIntFV> encoded = Utilities.extractAll(extractor, Utilities.objects(data));
+		List<String> annotations = Utilities.annotations(data);
+		LinearModel updated = annotator.update(encoded, annotations, 1.0, LinearModel.UPDATE_EPOCHS);
+		UpdateReport report = UpdateReport.compare(annotator, updated, encoded, annotations, start);
+
+		annotator = updated;
+
+		return report;
 	}
 
 	/**
@@ -71,89 +169,294 @@ public class SIFTBoVW implements ClassificationAlgorithm
 		if(annotator == null)
 			throw new IllegalStateException("Annotator is not trained");
 
+		long start = Metrics.start();
+		// New images bypass the feature cache and descriptor store, which are for training images
+		LocalFeatureList<Keypoint> features = extractFeatures(image);
+		long time = metrics.record(Stage.FEATURES, start);
+		SparseIntFV histogram = encode(features);
+		time = metrics.record(Stage.QUANTISE, time);
+		List<ScoredAnnotation<String>> annotations = annotator.annotate(histogram);
+		metrics.record(Stage.SCORING, time);
+
 		PrintableClassificationResult<String> result = new PrintableClassificationResult<>(PrintableClassificationResult.BEST_RESULT);
 
-		for(ScoredAnnotation<String> a : annotator.annotate(image))
+		for(ScoredAnnotation<String> a : annotations)
 		{
 			result.put(a.annotation, a.confidence);
 		}
+
+		metrics.record(Stage.CLASSIFY, start);
 		return result;
 	}
 
 	/**
-	 * Trains the Bag of Visual Words with a K-means-generated codebook.
+	 * Classify a batch of images in parallel
+	 * @param images The images
+	 * @param threads The number of threads to use
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads)
+	{
+		return Utilities.classifyAll(this, images, threads);
+	}
+
+	/**
+	 * Classify a batch of images on an existing pool of threads
+	 * @param images The images
+	 * @param pool The threads to classify on
+	 * @param threads The most images to classify at once
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads)
+	{
+		return Utilities.classifyAll(this, images, pool, threads);
+	}
+
+	/**
+	 * Write the codebook and linear model to a model file
+	 * @param out The model file writer
+	 */
+	@Override
+	public void writeModel(ModelFile.Writer out) throws IOException
+	{
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		out.writeInt(codebookSize);
+
+		if(vocabularyTree != null)
+		{
+			out.writeInt(1);
+			vocabularyTree.write(out);
+		}
+		else
+		{
+			out.writeInt(0);
+			out.writeByteMatrix(centroids.centroids);
+		}
+
+		annotator.write(out);
+	}
+
+	/**
+	 * Restore the codebook and linear model from a model file
+	 * @param in The model file reader
+	 */
+	@Override
+	public void readModel(ModelFile.Reader in) throws IOException
+	{
+		codebookSize = in.readInt();
+
+		// Version 1 files always hold a flat codebook
+		if(in.getVersion() >= 2 && in.readInt() == 1)
+		{
+			centroids = null;
+			vocabularyTree = VocabularyTree.read(in);
+			vocabularyBranching = vocabularyTree.getBranching();
+			vocabularyDepth = vocabularyTree.getDepth();
+			quantiser = new BagOfVisualWords<byte[]>(vocabularyTree.bytes());
+		}
+		else
+		{
+			vocabularyTree = null;
+			vocabularyBranching = 0;
+			vocabularyDepth = 0;
+			centroids = new ByteCentroidsResult();
+			centroids.centroids = in.readByteMatrix();
+			quantiser = new BagOfVisualWords<byte[]>(centroids.defaultHardAssigner());
+		}
+
+		extractor = createExtractor();
+		annotator = LinearModel.read(in);
+	}
+
+	/**
+	 * Trains the Bag of Visual Words with a K-means-generated codebook, or a vocabulary tree if
+	 * vocabularyBranching is set.
 	 * 
-	 * @param trainingData
+	 * @param descriptors A sample of the training images' descriptors
 	 */
-	protected void trainQuantiser(List<? extends Annotated<FImage, String>> data)
+	protected void trainQuantiser(DescriptorReservoir<byte[]> descriptors)
 	{
-		List<LocalFeatureList<Keypoint>> allFeatures = new ArrayList<>();
-		
-		int i = 0;
-		
-		// Load a list of ImagePatch features
-		for(Annotated<FImage, String> image : data)
+		DataSource<byte[]> datasource = descriptors.dataSource();
+
+		if(vocabularyBranching > 0)
 		{
-			System.out.println("training quanitzer " + ++i);
-			
-			allFeatures.add(getFeatures(image.getObject()));
+			centroids = null;
+			vocabularyTree = VocabularyTree.trainBytes(datasource, vocabularyBranching, vocabularyDepth);
+			codebookSize = vocabularyTree.size();
+
+			VocabularyTree.Bytes assigner = vocabularyTree.bytes();
+			List<byte[]> sample = VocabularyTree.recallSample(datasource);
+
+			System.out.println("Vocabulary tree recall against exact assignment: " + assigner.recall(sample) + " over " + sample.size() + " descriptors, seed " + VocabularyTree.RECALL_SEED);
+
+			quantiser = new BagOfVisualWords<byte[]>(assigner);
+			return;
 		}
 
-		// Populate a DataSource with the ImagePatches
-		DataSource<byte[]> datasource = new LocalFeatureListDataSource<Keypoint, byte[]>(
-			allFeatures);
+		vocabularyTree = null;
 
 		// Create n centroids to act as a codebook for the bag of visual words
-		ByteKMeans km = ByteKMeans.createKDTreeEnsemble(codebookSize);
-		ByteCentroidsResult centroids = km.cluster(datasource);
+		centroids = codebookTrainer.clusterBytes(datasource, codebookSize);
 
-		// Any inputs will be quantised to the nearest ImagePatch centroid
+		// Any inputs will be quantised to the nearest centroid
 		quantiser = new BagOfVisualWords<byte[]>(centroids.defaultHardAssigner());
 	}
 
 	/**
-	 * Trains the liblinear annotator with the trained quantiser.
+	 * Trains the liblinear annotator with the trained quantiser. Images whose features are no
+	 * longer cached are extracted again.
 	 * 
-	 * @param trainingData
+	 * @param data The training set
 	 */
 	protected void trainAnnotator(List<? extends Annotated<FImage, String>> data)
 	{
 		if(quantiser == null)
 			throw new IllegalStateException("Quantiser is not trained");
 
-		FeatureExtractor<SparseIntFV, FImage> extractor = new FeatureExtractor<SparseIntFV, FImage>()
+		extractor = createExtractor();
+
+		// The cache holds the most recently extracted images, so encode them first, before the
+		// images extracted again evict them
+		List<FImage> images = Utilities.objects(data);
+		Collections.reverse(images);
+		List<SparseIntFV> encoded = new ArrayList<>(Utilities.extractAll(extractor, images));
+		Collections.reverse(encoded);
+
+		// Train the annotator to make associations between certain "words" and image classes
+		annotator = LinearModel.train(encoded, Utilities.annotations(data), SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+	}
+
+	/**
+	 * Creates the feature extractor which quantises an image's SIFT features
+	 * @return The extractor
+	 */
+	protected FeatureExtractor<SparseIntFV, FImage> createExtractor()
+	{
+		return new FeatureExtractor<SparseIntFV, FImage>()
 		{
 			@Override
 			public SparseIntFV extractFeature(FImage image)
 			{
-				return quantiser.aggregate(getFeatures(image));
+				return encode(getFeatures(image));
 			}
 		};
+	}
 
-		// Train the annotator to make associations between certain "words" and image classes
-
-		annotator = new LiblinearAnnotator<>(extractor, Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
-		annotator.train(data);
+	/**
+	 * Quantises an image's SIFT features to the nearest centroid
+	 * @param features The features
+	 * @return The visual word histogram
+	 */
+	protected SparseIntFV encode(LocalFeatureList<Keypoint> features)
+	{
+		return quantiser.aggregate(features);
 	}
 
 	/**
-	 * Gets the SIFT interest points for an image
+	 * Gets the SIFT interest points of a training image, through the cache and descriptor store
 	 * @param image The image
 	 * @return SIFT interest points
 	 */
 	protected LocalFeatureList<Keypoint> getFeatures(FImage image)
 	{
-		LocalFeatureList<Keypoint> cached = this.featureCache.get(image);
+		String key = DescriptorStore.key(image, EXTRACTOR);
+		LocalFeatureList<Keypoint> features = this.featureCache.get(key);
 		
-		if(cached != null)
+		if(features != null)
 		{
-			return cached;
+			return features;
 		}
-		
-		DoGSIFTEngine engine = new DoGSIFTEngine();	
-		LocalFeatureList<Keypoint> features = engine.findFeatures(image);
 
-		this.featureCache.put(image, features);
+		if(descriptorStore != null)
+		{
+			features = fromDescriptors(descriptorStore.get(key));
+		}
+
+		if(features == null)
+		{
+			features = extractFeatures(image);
+
+			if(descriptorStore != null)
+			{
+				try
+				{
+					descriptorStore.put(key, toDescriptors(features));
+				}
+				catch(IOException e)
+				{
+					System.err.println("Couldn't store descriptors: " + e.getMessage());
+				}
+			}
+		}
+
+		this.featureCache.put(key, features);
+
+		return features;
+	}
+
+	/**
+	 * Extracts the SIFT interest points of an image, bypassing the cache and descriptor store
+	 * @param image The image
+	 * @return SIFT interest points
+	 */
+	protected LocalFeatureList<Keypoint> extractFeatures(FImage image)
+	{
+		DoGSIFTEngine engine = new DoGSIFTEngine();
+
+		return engine.findFeatures(image);
+	}
+
+	/**
+	 * Flattens keypoints for the descriptor store
+	 * @param features The keypoints
+	 * @return Their locations as x, y, scale, orientation and their vectors
+	 */
+	protected static DescriptorStore.Descriptors toDescriptors(LocalFeatureList<Keypoint> features)
+	{
+		int count = features.size();
+		int dims = count == 0 ? 0 : features.get(0).ivec.length;
+		float[] locations = new float[count * 4];
+		byte[] vectors = new byte[count * dims];
+
+		for(int i = 0; i < count; i++)
+		{
+			Keypoint k = features.get(i);
+
+			locations[i * 4] = k.x;
+			locations[i * 4 + 1] = k.y;
+			locations[i * 4 + 2] = k.scale;
+			locations[i * 4 + 3] = k.ori;
+			System.arraycopy(k.ivec, 0, vectors, i * dims, dims);
+		}
+
+		return new DescriptorStore.Descriptors(count, dims, 4, locations, vectors);
+	}
+
+	/**
+	 * Rebuilds keypoints read from the descriptor store
+	 * @param descriptors The stored descriptors, may be null
+	 * @return The keypoints, or null if there were no descriptors
+	 */
+	protected static LocalFeatureList<Keypoint> fromDescriptors(DescriptorStore.Descriptors descriptors)
+	{
+		if(descriptors == null || descriptors.byteVectors == null)
+			return null;
+
+		LocalFeatureList<Keypoint> features = new MemoryLocalFeatureList<Keypoint>(descriptors.count);
+
+		for(int i = 0; i < descriptors.count; i++)
+		{
+			float[] l = descriptors.locations;
+			int offset = i * descriptors.locationFields;
+			byte[] ivec = new byte[descriptors.dims];
+			System.arraycopy(descriptors.byteVectors, i * descriptors.dims, ivec, 0, descriptors.dims);
+
+			features.add(new Keypoint(l[offset], l[offset + 1], l[offset + 3], l[offset + 2], ivec));
+		}
 
 		return features;
 	}
@@ -1,64 +1,80 @@
 package uk.ac.soton.ecs.imageclassifer;
 
-import java.io.DataInput;
-import java.io.DataOutput;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.vfs2.FileSystemException;
 import org.openimaj.data.DataSource;
 import org.openimaj.data.dataset.VFSGroupDataset;
 import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
-import org.openimaj.feature.DoubleFV;
 import org.openimaj.feature.FeatureExtractor;
-import org.openimaj.feature.FloatFV;
 import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.LocalFeature;
-import org.openimaj.feature.local.LocalFeatureVectorProvider;
-import org.openimaj.feature.local.SpatialLocation;
-import org.openimaj.feature.local.data.LocalFeatureListDataSource;
-import org.openimaj.feature.local.list.LocalFeatureList;
-import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+import org.openimaj.feature.FloatFV;
 import org.openimaj.image.FImage;
-import org.openimaj.image.ImageUtilities;
-import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
 import org.openimaj.ml.annotation.Annotated;
 import org.openimaj.ml.annotation.AnnotatedObject;
 import org.openimaj.ml.annotation.ScoredAnnotation;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator.Mode;
 import org.openimaj.ml.clustering.FloatCentroidsResult;
-import org.openimaj.ml.clustering.kmeans.FloatKMeans;
-import org.openimaj.ml.kernel.HomogeneousKernelMap;
-import org.openimaj.ml.kernel.HomogeneousKernelMap.KernelType;
-import org.openimaj.ml.kernel.HomogeneousKernelMap.WindowType;
-import com.stromberglabs.jopensurf.SURFInterestPoint;
-import com.stromberglabs.jopensurf.Surf;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.IntFloatPair;
+import org.openimaj.util.parallel.Parallel;
 
 import de.bwaldvogel.liblinear.SolverType;
 
+import uk.ac.soton.ecs.imageclassifer.Metrics.Stage;
+
 /**
  * SURF interest points image classifier using bag of words, lib linear annotator and homgenous kernel maps
  * 
  * @author Sam Lavers
  */
-public class SURFBoVW implements ClassificationAlgorithm
+public class SURFBoVW implements IncrementalClassificationAlgorithm
 {
 
 	protected int codebookSize = 500;
+	// k-means implementation used to train the codebook
+	protected CodebookTrainer codebookTrainer = CodebookTrainer.getDefault();
 	protected int patchSize = 8;
 	protected int patchSeparation = patchSize / 2;
-
-	protected BagOfVisualWords<float[]> quantiser;
-	protected LiblinearAnnotator<FImage, String> annotator;
+	// Train a vocabulary tree with this branching factor and depth instead of a flat codebook,
+	// for vocabularies too large to search exhaustively; 0 for a flat codebook of codebookSize
+	protected int vocabularyBranching = 0;
+	protected int vocabularyDepth = 0;
+
+	protected FloatCentroidsResult centroids;
+	protected VocabularyTree vocabularyTree;
+	protected HardAssigner<float[], float[], IntFloatPair> assigner;
+	protected FeatureExtractor<FloatFV, FImage> extractor;
+	protected LinearModel annotator;
+	protected Chi2KernelMap kernelMap = new Chi2KernelMap();
+	// Applies the kernel map and the annotator to the non-zero bins of a histogram at classify time
+	protected SparseKernelScorer scorer;
+	// Stage timings of classify()
+	protected Metrics.Recorder metrics = Metrics.recorder(getClass().getSimpleName());
+	// Memory budget and per-image cap of the descriptor sample the codebook is trained on
+	protected long sampleBudget = DescriptorReservoir.DEFAULT_BUDGET;
+	protected int samplesPerImage = DescriptorReservoir.DEFAULT_PER_IMAGE;
+	// Maximum number of interest points kept per image, the strongest first, or 0 for all
+	protected int maxInterestPoints = 0;
+	// The cap the codebook and annotator were trained with, which extraction always uses
+	protected int trainedMaxInterestPoints = 0;
+
+	// The extractor keeps its buffers from one image to the next, so each thread needs its own
+	protected ThreadLocal<UprightSurf> surf = new ThreadLocal<UprightSurf>()
+	{
+		@Override
+		protected UprightSurf initialValue()
+		{
+			return new UprightSurf();
+		}
+	};
 
 	public static void main(String[] args) throws FileSystemException, FileNotFoundException
 	{
@@ -66,86 +82,96 @@ public class SURFBoVW implements ClassificationAlgorithm
 	}
 
 	/**
-	 * Represents a surf interest point as a local feature
-	 * 
-	 * @author Sam Lavers
+	 * Bound the sample of training descriptors the codebook is trained on. Takes effect at the
+	 * next training.
+	 * @param budget Memory budget of the sample in bytes
+	 * @param perImage Maximum number of descriptors to draw from each image
 	 */
-	protected class SurfInterestPoint
-		implements
-		LocalFeature<SpatialLocation, FloatFV>,
-		LocalFeatureVectorProvider<SpatialLocation, FloatFV>
+	public void setSampling(long budget, int perImage)
 	{
+		this.sampleBudget = budget;
+		this.samplesPerImage = perImage;
+	}
 
-		private FloatFV fv;
-		private SpatialLocation location;
-
-		public SurfInterestPoint(SURFInterestPoint point)
-		{
-			this.location = new SpatialLocation(point.getX(), point.getY());
-			this.fv = new FloatFV(point.getDescriptor());
-		}
-
-		@Override
-		public void readASCII(Scanner in) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public String asciiHeader()
-		{
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public void readBinary(DataInput in) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * Train a vocabulary tree instead of a flat codebook, for vocabularies too large to search
+	 * exhaustively. Takes effect at the next training.
+	 * @param branching Number of children of each node, or 0 for a flat codebook
+	 * @param depth Number of levels below the root; the tree has up to branching^depth words
+	 */
+	public void setVocabularyTree(int branching, int depth)
+	{
+		if(branching == 1 || branching < 0 || (branching > 0 && depth < 1))
+			throw new IllegalArgumentException("Expected a branching factor of at least 2 and a depth of at least 1, or a branching factor of 0");
 
-		@Override
-		public byte[] binaryHeader()
-		{
-			throw new UnsupportedOperationException();
-		}
+		this.vocabularyBranching = branching;
+		this.vocabularyDepth = depth;
+	}
 
-		@Override
-		public void writeASCII(PrintWriter out) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * Keep only the strongest interest points of each image. Takes effect at the next
+	 * training; until then, images are classified and updates extracted with the cap the
+	 * model was trained or loaded with.
+	 * @param maxInterestPoints Maximum number of points per image, or 0 for all of them
+	 */
+	public void setMaxInterestPoints(int maxInterestPoints)
+	{
+		this.maxInterestPoints = maxInterestPoints;
+	}
 
-		@Override
-		public void writeBinary(DataOutput out) throws IOException
-		{
-			throw new UnsupportedOperationException();
-		}
+	/**
+	 * Train the classifier
+	 * @param data The trainign set
+	 */
+	@Override
+	public void train(final List<? extends Annotated<FImage, String>> data)
+	{
+		// Extract each image's SURF features in parallel, sampling the codebook's training
+		// descriptors as they are extracted. Only the sample and the byte-budgeted feature cache
+		// hold on to them, so memory doesn't grow with the training set.
+		trainedMaxInterestPoints = maxInterestPoints;
+		final DescriptorReservoir<float[]> sample = new DescriptorReservoir.Floats(DESCRIPTOR_LENGTH, sampleBudget, samplesPerImage);
 
-		@Override
-		public FloatFV getFeatureVector()
+		Parallel.forIndex(0, data.size(), 1, new Operation<Integer>()
 		{
-			return fv;
-		}
+			@Override
+			public void perform(Integer i)
+			{
+				DescriptorStore.Descriptors points = getFeatures(data.get(i).getObject());
+				sample.offer(data.get(i).getAnnotations().iterator().next(), points.floatVectors);
+			}
+		});
 
-		@Override
-		public SpatialLocation getLocation()
-		{
-			return location;
-		}
+		System.out.println("Codebook sample: " + sample);
+		trainQuantiser(sample);
+		trainAnnotator(data);
 
+		// Training features won't be asked for again
+		System.out.println("Feature cache: " + featureCache);
+		featureCache.clear();
 	}
 
 	/**
-	 * Train the classifier
-	 * @param data The trainign set
+	 * Update the linear model with more images, keeping the codebook
+	 * @param data The new images
+	 * @return What the update changed
 	 */
 	@Override
-	public void train(List<? extends Annotated<FImage, String>> data)
+	public UpdateReport update(List<? extends Annotated<FImage, String>> data)
 	{
-		this.featureCache = new HashMap<>();
-		
-		trainQuantiser(data);
-		trainAnnotator(data);
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		long start = System.nanoTime();
+		List<FloatFV> encoded = Utilities.extractAll(extractor, Utilities.objects(data));
+		List<String> annotations = Utilities.annotations(data);
+		LinearModel updated = annotator.update(encoded, annotations, 1.0, LinearModel.UPDATE_EPOCHS);
+		UpdateReport report = UpdateReport.compare(annotator, updated, encoded, annotations, start);
+
+		annotator = updated;
+		scorer = new SparseKernelScorer(annotator, kernelMap);
+
+		return report;
 	}
 
 	/**
@@ -156,110 +182,315 @@ public class SURFBoVW implements ClassificationAlgorithm
 	@Override
 	public ClassificationResult<String> classify(FImage image)
 	{
-		if(quantiser == null)
+		if(assigner == null)
 			throw new IllegalStateException("Classifier is not trained");
 		if(annotator == null)
 			throw new IllegalStateException("Annotator is not trained");
 
+		long start = Metrics.start();
+		// New images bypass the feature cache and descriptor store, which are for training images
+		DescriptorStore.Descriptors features = extractFeatures(image);
+		long time = metrics.record(Stage.FEATURES, start);
+		SparseIntFV histogram = histogram(features);
+		time = metrics.record(Stage.QUANTISE, time);
+		// The kernel map is applied to the non-zero bins as they are scored
+		List<ScoredAnnotation<String>> annotations = scorer.annotate(histogram);
+		metrics.record(Stage.SCORING, time);
+
 		PrintableClassificationResult<String> result = new PrintableClassificationResult<>(PrintableClassificationResult.BEST_RESULT);
 
-		for(ScoredAnnotation<String> a : annotator.annotate(image))
+		for(ScoredAnnotation<String> a : annotations)
 		{
 			result.put(a.annotation, a.confidence);
 		}
+
+		metrics.record(Stage.CLASSIFY, start);
 		return result;
 	}
+
+	/**
+	 * Classify a batch of images in parallel
+	 * @param images The images
+	 * @param threads The number of threads to use
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads)
+	{
+		return Utilities.classifyAll(this, images, threads);
+	}
+
+	/**
+	 * Classify a batch of images on an existing pool of threads
+	 * @param images The images
+	 * @param pool The threads to classify on
+	 * @param threads The most images to classify at once
+	 * @return The results, in input order
+	 */
+	@Override
+	public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads)
+	{
+		return Utilities.classifyAll(this, images, pool, threads);
+	}
+
+	/**
+	 * Write the codebook, interest point cap and linear model to a model file
+	 * @param out The model file writer
+	 */
+	@Override
+	public void writeModel(ModelFile.Writer out) throws IOException
+	{
+		if(annotator == null)
+			throw new IllegalStateException("Classifier is not trained");
+
+		out.writeInt(codebookSize);
+
+		if(vocabularyTree != null)
+		{
+			out.writeInt(1);
+			vocabularyTree.write(out);
+		}
+		else
+		{
+			out.writeInt(0);
+			out.writeFloatMatrix(centroids.centroids);
+		}
+
+		out.writeInt(trainedMaxInterestPoints);
+		annotator.write(out);
+	}
+
+	/**
+	 * Restore the codebook, interest point cap and linear model from a model file
+	 * @param in The model file reader
+	 */
+	@Override
+	public void readModel(ModelFile.Reader in) throws IOException
+	{
+		codebookSize = in.readInt();
+
+		// Files before version 6 always hold a flat codebook
+		if(in.getVersion() >= 6 && in.readInt() == 1)
+		{
+			centroids = null;
+			vocabularyTree = VocabularyTree.read(in);
+			vocabularyBranching = vocabularyTree.getBranching();
+			vocabularyDepth = vocabularyTree.getDepth();
+			assigner = vocabularyTree.floats();
+		}
+		else
+		{
+			vocabularyTree = null;
+			vocabularyBranching = 0;
+			vocabularyDepth = 0;
+			centroids = new FloatCentroidsResult();
+			centroids.centroids = in.readFloatMatrix();
+			assigner = centroids.defaultHardAssigner();
+		}
+
+		// Files before version 5 were trained with every interest point
+		trainedMaxInterestPoints = in.getVersion() >= 5 ? in.readInt() : 0;
+		maxInterestPoints = trainedMaxInterestPoints;
+
+		extractor = createExtractor();
+		annotator = LinearModel.read(in);
+		scorer = new SparseKernelScorer(annotator, kernelMap);
+	}
 	
-	protected Map<FImage, LocalFeatureList<SurfInterestPoint>> featureCache;
+	// Features keyed by a hash of the image content, bounded by descriptor size
+	protected FeatureCache<String, DescriptorStore.Descriptors> featureCache = new FeatureCache<>(new FeatureCache.Weigher<DescriptorStore.Descriptors>()
+	{
+		@Override
+		public long weigh(DescriptorStore.Descriptors value)
+		{
+			return 4L * (value.floatVectors.length + value.locations.length);
+		}
+	});
+	// Training descriptors saved by previous runs, or null to always extract
+	protected DescriptorStore descriptorStore = DescriptorStore.getDefault();
+
+	// Identifies the extractor and its parameters in descriptor store keys
+	final protected static String EXTRACTOR = "FImage upright SURF";
+	// Length of an upright SURF descriptor
+	final protected static int DESCRIPTOR_LENGTH = UprightSurf.DESCRIPTOR_LENGTH;
 
 	/**
-	 * Trains the Bag of Visual Words with a K-means-generated codebook.
+	 * Trains the Bag of Visual Words with a K-means-generated codebook, or a vocabulary tree if
+	 * vocabularyBranching is set.
 	 * 
-	 * @param trainingData
+	 * @param sample A sample of the training images' descriptors
 	 */
-	protected void trainQuantiser(List<? extends Annotated<FImage, String>> data)
+	protected void trainQuantiser(DescriptorReservoir<float[]> sample)
 	{
-		List<LocalFeatureList<SurfInterestPoint>> allFeatures = new ArrayList<>();
-		
-		int i = 0;
-		
-		// Load a list of ImagePatch features
-		for(Annotated<FImage, String> image : data)
+		DataSource<float[]> datasource = sample.dataSource();
+
+		if(vocabularyBranching > 0)
 		{
-			System.out.println("training quanitzer " + ++i);
-			
-			allFeatures.add(getFeatures(image.getObject()));
+			centroids = null;
+			vocabularyTree = VocabularyTree.trainFloats(datasource, vocabularyBranching, vocabularyDepth);
+			codebookSize = vocabularyTree.size();
+
+			VocabularyTree.Floats tree = vocabularyTree.floats();
+			List<float[]> recallSample = VocabularyTree.recallSample(datasource);
+
+			System.out.println("Vocabulary tree recall against exact assignment: " + tree.recall(recallSample) + " over " + recallSample.size() + " descriptors, seed " + VocabularyTree.RECALL_SEED);
+
+			assigner = tree;
+			return;
 		}
 
-		// Populate a DataSource with the ImagePatches
-		DataSource<float[]> datasource = new LocalFeatureListDataSource<SurfInterestPoint, float[]>(
-			allFeatures);
+		vocabularyTree = null;
 
 		// Create n centroids to act as a codebook for the bag of visual words
-		FloatKMeans km = FloatKMeans.createKDTreeEnsemble(codebookSize);
-		FloatCentroidsResult centroids = km.cluster(datasource);
+		centroids = codebookTrainer.clusterFloats(datasource, codebookSize);
 
-		// Any inputs will be quantised to the nearest ImagePatch centroid
-		quantiser = new BagOfVisualWords<float[]>(centroids.defaultHardAssigner());
+		// Any inputs will be quantised to the nearest centroid
+		assigner = centroids.defaultHardAssigner();
 	}
 
 	/**
-	 * Trains the liblinear annotator with the trained quantiser.
+	 * Trains the liblinear annotator with the trained quantiser. Images whose features are no
+	 * longer cached are extracted again.
 	 * 
-	 * @param trainingData
+	 * @param data The training set
 	 */
 	protected void trainAnnotator(List<? extends Annotated<FImage, String>> data)
 	{
-		if(quantiser == null)
+		if(assigner == null)
 			throw new IllegalStateException("Quantiser is not trained");
 
-		FeatureExtractor<DoubleFV, FImage> extractor = new FeatureExtractor<DoubleFV, FImage>()
+		extractor = createExtractor();
+
+		// The cache holds the most recently extracted images, so encode them first, before the
+		// images extracted again evict them
+		List<FImage> images = Utilities.objects(data);
+		Collections.reverse(images);
+		List<FloatFV> encoded = new ArrayList<>(Utilities.extractAll(extractor, images));
+		Collections.reverse(encoded);
+
+		// Train the annotator to make associations between certain "words" and image classes
+		annotator = LinearModel.train(encoded, Utilities.annotations(data), SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+		scorer = new SparseKernelScorer(annotator, kernelMap);
+	}
+
+	/**
+	 * Creates the feature extractor which quantises an image's SURF features and applies the kernel map
+	 * @return The extractor
+	 */
+	protected FeatureExtractor<FloatFV, FImage> createExtractor()
+	{
+		return new FeatureExtractor<FloatFV, FImage>()
 		{
 			@Override
-			public DoubleFV extractFeature(FImage image)
+			public FloatFV extractFeature(FImage image)
 			{
-				SparseIntFV potato = quantiser.aggregate(getFeatures(image));
-				
-				return potato.normaliseFV();
+				return encode(getFeatures(image));
 			}
 		};
-		
-		HomogeneousKernelMap homo = new HomogeneousKernelMap(KernelType.Chi2, WindowType.Rectangular);
-		extractor = homo.createWrappedExtractor(extractor);
+	}
 
-		// Train the annotator to make associations between certain "words" and image classes
+	/**
+	 * Quantises an image's SURF features and applies the kernel map to the normalised histogram
+	 * @param features The features
+	 * @return The feature vector
+	 */
+	protected FloatFV encode(DescriptorStore.Descriptors features)
+	{
+		return map(histogram(features));
+	}
 
-		annotator = new LiblinearAnnotator<>(extractor, Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
-		annotator.train(data);
+	/**
+	 * Counts the visual words of an image's SURF features
+	 * @param features The features
+	 * @return The histogram
+	 */
+	protected SparseIntFV histogram(DescriptorStore.Descriptors features)
+	{
+		int[] counts = new int[assigner.size()];
+		float[] descriptor = new float[features.dims];
+
+		for(int i = 0; i < features.count; i++)
+		{
+			System.arraycopy(features.floatVectors, i * features.dims, descriptor, 0, features.dims);
+			counts[assigner.assign(descriptor)]++;
+		}
+
+		return new SparseIntFV(counts);
 	}
 
 	/**
-	 * Gets the SURF interest points for a given image
+	 * Normalises a visual word histogram and applies the kernel map
+	 * @param histogram The histogram
+	 * @return The feature vector
+	 */
+	protected FloatFV map(SparseIntFV histogram)
+	{
+		return kernelMap.evaluate(histogram);
+	}
+
+	/**
+	 * Gets the SURF interest points of a training image, through the cache and descriptor store
 	 * @param image The image
 	 * @return SURF interest points
 	 */
-	protected LocalFeatureList<SurfInterestPoint> getFeatures(FImage image)
+	protected DescriptorStore.Descriptors getFeatures(FImage image)
 	{
-		LocalFeatureList<SurfInterestPoint> cached = this.featureCache.get(image);
+		String key = DescriptorStore.key(image, extractorName());
+		DescriptorStore.Descriptors features = this.featureCache.get(key);
 		
-		if(cached != null)
+		if(features != null)
 		{
-			return cached;
+			return features;
 		}
-		
-		Surf surf = new Surf(ImageUtilities.createBufferedImage(image));
 
-		List<SURFInterestPoint> points = surf.getUprightInterestPoints();
+		if(descriptorStore != null)
+		{
+			features = descriptorStore.get(key);
 
-		LocalFeatureList<SurfInterestPoint> features = new MemoryLocalFeatureList<SurfInterestPoint>(points.size());
+			if(features != null && features.floatVectors == null)
+				features = null;
+		}
 
-		for(SURFInterestPoint point : points)
+		if(features == null)
 		{
-			features.add(new SurfInterestPoint(point));
+			features = extractFeatures(image);
+
+			if(descriptorStore != null)
+			{
+				try
+				{
+					descriptorStore.put(key, features);
+				}
+				catch(IOException e)
+				{
+					System.err.println("Couldn't store descriptors: " + e.getMessage());
+				}
+			}
 		}
 		
-		this.featureCache.put(image, features);
+		this.featureCache.put(key, features);
 
 		return features;
 	}
+
+	/**
+	 * Extracts the SURF interest points of an image, bypassing the cache and descriptor store
+	 * @param image The image
+	 * @return The points' locations as x, y and their descriptors
+	 */
+	protected DescriptorStore.Descriptors extractFeatures(FImage image)
+	{
+		UprightSurf engine = surf.get();
+		engine.setMaxPoints(trainedMaxInterestPoints);
+
+		return engine.extract(image);
+	}
+
+	/**
+	 * @return Name and parameters of the extractor, for descriptor store keys
+	 */
+	protected String extractorName()
+	{
+		return trainedMaxInterestPoints > 0 ? EXTRACTOR + " strongest " + trainedMaxInterestPoints : EXTRACTOR;
+	}
 }
@@ -0,0 +1,85 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.List;
+
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.util.array.SparseIntArray;
+
+/**
+ * Scores visual word histograms with a {@link LinearModel} trained on their kernel mapped
+ * features, without building the mapped feature vector.
+ *
+ * The dense path L1 normalises the histogram, expands every bin into the kernel map's outputs,
+ * and hands the result to the model, although most bins are zero. Here the map is applied only
+ * to the non-zero bins, and their outputs go straight into the decision values. A zero bin maps
+ * to zeros, so the zero bins contribute nothing beyond the model's bias. The scores are the
+ * same as <code>model.annotate(kernelMap.evaluate(histogram))</code>.
+ *
+ * @author Sam Lavers
+ */
+public class SparseKernelScorer
+{
+	protected final LinearModel model;
+	protected final Chi2KernelMap kernelMap;
+	// Kernel map outputs per histogram bin
+	protected final int width;
+
+	/**
+	 * @param model A model trained on kernel mapped, L1 normalised histograms
+	 * @param kernelMap The kernel map the model was trained with
+	 */
+	public SparseKernelScorer(LinearModel model, Chi2KernelMap kernelMap)
+	{
+		this.model = model;
+		this.kernelMap = kernelMap;
+		this.width = kernelMap.getWidth();
+	}
+
+	/**
+	 * Predict the class of a visual word histogram
+	 * @param histogram The histogram, before normalisation
+	 * @return A single annotation for the best class, scored with its probability
+	 */
+	public List<ScoredAnnotation<String>> annotate(SparseIntFV histogram)
+	{
+		int columns = model.numColumns;
+		int features = model.numFeatures;
+		float[] decision = model.offsets.clone();
+		float[] mapped = new float[width];
+
+		long total = 0;
+
+		for(SparseIntArray.Entry e : histogram.values.entries())
+		{
+			total += e.value;
+		}
+
+		if(total == 0)
+			return model.annotate(decision);
+
+		int bins = features / width;
+
+		for(SparseIntArray.Entry e : histogram.values.entries())
+		{
+			if(e.value == 0 || e.index >= bins)
+				continue;
+
+			kernelMap.evaluate(Chi2KernelMap.normalise(e.value, total), mapped, 0);
+
+			int feature = e.index * width;
+
+			for(int c = 0; c < columns; c++)
+			{
+				int row = c * features + feature;
+
+				for(int j = 0; j < width; j++)
+				{
+					decision[c] += model.matrix[row + j] * mapped[j];
+				}
+			}
+		}
+
+		return model.annotate(decision);
+	}
+}
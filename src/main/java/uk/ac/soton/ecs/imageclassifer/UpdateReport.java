@@ -0,0 +1,145 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openimaj.feature.FeatureVector;
+
+/**
+ * What an {@link IncrementalClassificationAlgorithm#update} did, and how far the classifier is
+ * likely to have drifted from one trained from scratch on all of its images.
+ *
+ * The exact drift can only be found by training again, which is what updates avoid, so the
+ * report gives the indicators that are cheap to measure. Accuracy on the new images before the
+ * update shows how unlike the original training set they are; a large drop from the original
+ * accuracy means the kept codebook is unlikely to suit them either. The change in the existing
+ * classes' weights, relative to their length, shows how far the update moved the model from
+ * the trained solution. When either is large, a full retrain is due.
+ * {@link IncrementalEvaluation} measures the real difference from a full retrain on a split of
+ * the training set.
+ *
+ * @author Sam Lavers
+ */
+public class UpdateReport
+{
+	protected final int images;
+	protected final String[] newClasses;
+	protected final double accuracyBefore;
+	protected final double accuracyAfter;
+	protected final double weightChange;
+	protected final long nanos;
+
+	/**
+	 * @param images Number of new images
+	 * @param newClasses Classes the classifier hadn't seen before the update
+	 * @param accuracyBefore Fraction of the new images classified correctly before the update
+	 * @param accuracyAfter Fraction of the new images classified correctly after the update, or
+	 *        NaN if that isn't a useful measure, as when the new images are stored verbatim
+	 * @param weightChange Change in the existing classes' weights relative to their length, or 0
+	 *        if the update gives the same classifier as a full retrain
+	 * @param nanos Time taken by the update
+	 */
+	public UpdateReport(int images, String[] newClasses, double accuracyBefore, double accuracyAfter, double weightChange, long nanos)
+	{
+		this.images = images;
+		this.newClasses = newClasses;
+		this.accuracyBefore = accuracyBefore;
+		this.accuracyAfter = accuracyAfter;
+		this.weightChange = weightChange;
+		this.nanos = nanos;
+	}
+
+	/**
+	 * Report an update of a {@link LinearModel}
+	 * @param before The model before the update
+	 * @param after The updated model
+	 * @param features The features of the new images
+	 * @param annotations The classes of the new images
+	 * @param start When the update started, from {@link System#nanoTime()}
+	 * @return The report
+	 */
+	public static UpdateReport compare(LinearModel before, LinearModel after, List<? extends FeatureVector> features, List<String> annotations, long start)
+	{
+		String[] classes = after.getClasses();
+		String[] added = Arrays.copyOfRange(classes, before.getClasses().length, classes.length);
+
+		return new UpdateReport(features.size(), added, before.accuracy(features, annotations), after.accuracy(features, annotations), before.weightChange(after), System.nanoTime() - start);
+	}
+
+	/**
+	 * @param known The classes before an update
+	 * @param annotations The classes of the new images
+	 * @return The new images' classes that weren't known, in order of first appearance
+	 */
+	public static String[] newClasses(String[] known, List<String> annotations)
+	{
+		List<String> previous = Arrays.asList(known);
+		List<String> added = new ArrayList<>();
+
+		for(String clazz : annotations)
+		{
+			if(!previous.contains(clazz) && !added.contains(clazz))
+				added.add(clazz);
+		}
+
+		return added.toArray(new String[added.size()]);
+	}
+
+	/**
+	 * @return Number of new images
+	 */
+	public int getImages()
+	{
+		return images;
+	}
+
+	/**
+	 * @return Classes the classifier hadn't seen before the update
+	 */
+	public String[] getNewClasses()
+	{
+		return newClasses;
+	}
+
+	/**
+	 * @return Fraction of the new images classified correctly before the update
+	 */
+	public double getAccuracyBefore()
+	{
+		return accuracyBefore;
+	}
+
+	/**
+	 * @return Fraction of the new images classified correctly after the update, or NaN if not
+	 *         measured
+	 */
+	public double getAccuracyAfter()
+	{
+		return accuracyAfter;
+	}
+
+	/**
+	 * @return Change in the existing classes' weights relative to their length
+	 */
+	public double getWeightChange()
+	{
+		return weightChange;
+	}
+
+	/**
+	 * @return Time taken by the update in milliseconds
+	 */
+	public double getMillis()
+	{
+		return nanos / 1e6;
+	}
+
+	@Override
+	public String toString()
+	{
+		String after = Double.isNaN(accuracyAfter) ? "n/a" : String.format("%.3f", accuracyAfter);
+
+		return String.format("Updated with %d images in %.1fs, new classes %s: accuracy on them %.3f before, %s after; weight change %.3f", images, nanos / 1e9, Arrays.toString(newClasses), accuracyBefore, after, weightChange);
+	}
+}
@@ -0,0 +1,477 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.util.Arrays;
+
+import org.openimaj.image.FImage;
+
+/**
+ * Upright SURF interest points and descriptors, computed straight from an FImage.
+ *
+ * This follows jopensurf's upright SURF step for step: the same fast Hessian response layers,
+ * thresholds, interpolation and 64 element descriptors. The differences are in the plumbing.
+ * The integral image is built straight from the FImage's pixels, quantised exactly as they
+ * would be on the way through ImageUtilities.createBufferedImage and jopensurf's integral
+ * image, so the points and descriptors are the ones jopensurf finds in the same FImage. The
+ * orientations jopensurf computes and upright descriptors ignore are skipped, and the results
+ * are written to flat arrays rather than an object per point. The integral image, response
+ * layers and candidate points live in buffers that are reused from one image to the next.
+ *
+ * Optionally only the points with the strongest Hessian responses are kept, which bounds the
+ * cost of describing and quantising images with many points.
+ *
+ * An instance is not thread safe; use one per thread.
+ *
+ * @author Sam Lavers
+ */
+public class UprightSurf
+{
+	/** Length of a descriptor */
+	final public static int DESCRIPTOR_LENGTH = 64;
+
+	/** Fields stored per point: x and y */
+	final public static int LOCATION_FIELDS = 2;
+
+	// jopensurf's defaults
+	final protected static int OCTAVES = 5;
+	final protected static int INIT_SAMPLE = 2;
+	final protected static float THRESHOLD = 0.0004f;
+	final protected static double BALANCE = 0.81f;
+	// Value jopensurf's integral image gives each 8 bit grey level. createBufferedImage
+	// truncates pixels to a grey byte, and jopensurf reads the single band of a grey image as
+	// the red channel of an RGB one, rounding it to a whole level at 0.299 of its brightness.
+	final private static float[] LEVELS = new float[256];
+
+	static
+	{
+		for(int grey = 0; grey < LEVELS.length; grey++)
+		{
+			LEVELS[grey] = Math.round(0.299 * grey) / 255f;
+		}
+	}
+
+	// Layers making up each octave, as indices into the response layers
+	final private static int[][] OCTAVE_LAYERS = { { 0, 1, 2, 3 }, { 1, 3, 4, 5 }, { 3, 5, 6, 7 }, { 5, 7, 8, 9 }, { 7, 9, 10, 11 } };
+	// Filter size and sampling step, as a multiple of INIT_SAMPLE, of each response layer
+	final private static int[] FILTERS = { 9, 15, 21, 27, 39, 51, 75, 99, 147, 195, 291, 387 };
+	final private static int[] STEPS = { 1, 1, 1, 1, 2, 2, 4, 4, 8, 8, 16, 16 };
+
+	// Maximum number of points to keep, or 0 for all of them
+	protected int maxPoints;
+
+	// Integral image of the current image, row after row
+	private float[] integral = new float[0];
+	private int width;
+	private int height;
+
+	// Response layers: size, sampling step and determinant of Hessian responses
+	private final int[] layerWidth = new int[FILTERS.length];
+	private final int[] layerHeight = new int[FILTERS.length];
+	private final int[] layerStep = new int[FILTERS.length];
+	private final double[][] responses = new double[FILTERS.length][0];
+
+	// Interpolated points: x, y, scale and response
+	private float[] pointX = new float[256];
+	private float[] pointY = new float[256];
+	private float[] pointScale = new float[256];
+	private double[] pointResponse = new double[256];
+	private int points;
+
+	// Scratch space for interpolation
+	private final double[] gradient = new double[3];
+	private final double[] hessian = new double[9];
+	private final double[] offset = new double[3];
+
+	/**
+	 * @param maxPoints Maximum number of points to keep per image, the strongest first, or 0
+	 *        to keep all of them
+	 */
+	public void setMaxPoints(int maxPoints)
+	{
+		this.maxPoints = maxPoints;
+	}
+
+	/**
+	 * Find and describe the upright SURF points of an image
+	 * @param image The image
+	 * @return The points' locations as x, y and their descriptors, in newly allocated arrays
+	 */
+	public DescriptorStore.Descriptors extract(FImage image)
+	{
+		buildIntegral(image);
+		buildResponseLayers();
+		findPoints();
+
+		int[] kept = strongest();
+		float[] locations = new float[kept.length * LOCATION_FIELDS];
+		float[] descriptors = new float[kept.length * DESCRIPTOR_LENGTH];
+
+		for(int i = 0; i < kept.length; i++)
+		{
+			int p = kept[i];
+
+			locations[i * LOCATION_FIELDS] = pointX[p];
+			locations[i * LOCATION_FIELDS + 1] = pointY[p];
+			describe(pointX[p], pointY[p], pointScale[p], descriptors, i * DESCRIPTOR_LENGTH);
+		}
+
+		return new DescriptorStore.Descriptors(kept.length, DESCRIPTOR_LENGTH, LOCATION_FIELDS, locations, descriptors);
+	}
+
+	/**
+	 * Sum the image's pixels into the integral image buffer, after quantising them as jopensurf
+	 * sees them
+	 */
+	private void buildIntegral(FImage image)
+	{
+		width = image.width;
+		height = image.height;
+
+		if(integral.length < width * height)
+			integral = new float[width * height];
+
+		float[][] pixels = image.pixels;
+
+		for(int y = 0; y < height; y++)
+		{
+			float rowSum = 0;
+			float[] row = pixels[y];
+			int offset = y * width;
+
+			for(int x = 0; x < width; x++)
+			{
+				rowSum += LEVELS[Math.max(0, Math.min(255, (int) (row[x] * 255f)))];
+				integral[offset + x] = y == 0 ? rowSum : rowSum + integral[offset - width + x];
+			}
+		}
+	}
+
+	/**
+	 * Sum of a rectangle of pixels, clipped to the image, and never negative
+	 */
+	private float box(int row, int col, int rows, int cols)
+	{
+		int r1 = Math.min(row, height) - 1;
+		int c1 = Math.min(col, width) - 1;
+		int r2 = Math.min(row + rows, height) - 1;
+		int c2 = Math.min(col + cols, width) - 1;
+
+		float a = r1 >= 0 && c1 >= 0 ? integral[r1 * width + c1] : 0;
+		float b = r1 >= 0 && c2 >= 0 ? integral[r1 * width + c2] : 0;
+		float c = r2 >= 0 && c1 >= 0 ? integral[r2 * width + c1] : 0;
+		float d = r2 >= 0 && c2 >= 0 ? integral[r2 * width + c2] : 0;
+
+		return Math.max(0, a - b - c + d);
+	}
+
+	/**
+	 * Compute the determinant of Hessian responses of every layer
+	 */
+	private void buildResponseLayers()
+	{
+		for(int layer = 0; layer < FILTERS.length; layer++)
+		{
+			int lw = width / INIT_SAMPLE / STEPS[layer];
+			int lh = height / INIT_SAMPLE / STEPS[layer];
+			int step = INIT_SAMPLE * STEPS[layer];
+			int w = FILTERS[layer];
+			int b = (w - 1) / 2 + 1;
+			int l = w / 3;
+			double inverseArea = 1.0 / (w * w);
+
+			layerWidth[layer] = lw;
+			layerHeight[layer] = lh;
+			layerStep[layer] = step;
+
+			if(responses[layer].length < lw * lh)
+				responses[layer] = new double[lw * lh];
+
+			double[] response = responses[layer];
+
+			for(int ar = 0; ar < lh; ar++)
+			{
+				for(int ac = 0; ac < lw; ac++)
+				{
+					int r = ar * step;
+					int c = ac * step;
+
+					double dxx = box(r - l + 1, c - b, 2 * l - 1, w) - box(r - l + 1, c - l / 2, 2 * l - 1, l) * 3f;
+					double dyy = box(r - b, c - l + 1, w, 2 * l - 1) - box(r - l / 2, c - l + 1, l, 2 * l - 1) * 3f;
+					double dxy = box(r - l, c + 1, l, l) + box(r + 1, c - l, l, l) - box(r - l, c - l, l, l) - box(r + 1, c + 1, l, l);
+
+					dxx *= inverseArea;
+					dyy *= inverseArea;
+					dxy *= inverseArea;
+
+					response[ar * lw + ac] = dxx * dyy - BALANCE * dxy * dxy;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Response of a layer at a row and column of a smaller layer
+	 */
+	private double response(int layer, int row, int col, int src)
+	{
+		int scale = layerWidth[layer] / layerWidth[src];
+
+		return responses[layer][row * scale * layerWidth[layer] + col * scale];
+	}
+
+	/**
+	 * Find the local maxima of the responses in scale and space, and interpolate them
+	 */
+	private void findPoints()
+	{
+		points = 0;
+
+		for(int o = 0; o < OCTAVES; o++)
+		{
+			for(int i = 0; i <= 1; i++)
+			{
+				int b = OCTAVE_LAYERS[o][i];
+				int m = OCTAVE_LAYERS[o][i + 1];
+				int t = OCTAVE_LAYERS[o][i + 2];
+
+				for(int r = 0; r < layerHeight[t]; r++)
+				{
+					for(int c = 0; c < layerWidth[t]; c++)
+					{
+						if(isExtremum(r, c, t, m, b))
+							interpolate(r, c, t, m, b);
+					}
+				}
+			}
+		}
+	}
+
+	private boolean isExtremum(int r, int c, int t, int m, int b)
+	{
+		int border = (FILTERS[t] + 1) / (2 * layerStep[t]);
+
+		if(r <= border || r >= layerHeight[t] - border || c <= border || c >= layerWidth[t] - border)
+			return false;
+
+		double candidate = response(m, r, c, t);
+
+		if(candidate < THRESHOLD)
+			return false;
+
+		for(int rr = -1; rr <= 1; rr++)
+		{
+			for(int cc = -1; cc <= 1; cc++)
+			{
+				if(response(t, r + rr, c + cc, t) >= candidate)
+					return false;
+				if((rr != 0 || cc != 0) && response(m, r + rr, c + cc, t) >= candidate)
+					return false;
+				if(response(b, r + rr, c + cc, t) >= candidate)
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fit a quadratic to the responses around a maximum, and keep it as a point if the fitted
+	 * peak lies within half a sample of it
+	 */
+	private void interpolate(int r, int c, int t, int m, int b)
+	{
+		double v = response(m, r, c, t);
+
+		gradient[0] = (response(m, r, c + 1, t) - response(m, r, c - 1, t)) / 2.0;
+		gradient[1] = (response(m, r + 1, c, t) - response(m, r - 1, c, t)) / 2.0;
+		gradient[2] = (response(t, r, c, t) - response(b, r, c, t)) / 2.0;
+
+		double dxx = response(m, r, c + 1, t) + response(m, r, c - 1, t) - 2.0 * v;
+		double dyy = response(m, r + 1, c, t) + response(m, r - 1, c, t) - 2.0 * v;
+		double dss = response(t, r, c, t) + response(b, r, c, t) - 2.0 * v;
+		double dxy = (response(m, r + 1, c + 1, t) - response(m, r + 1, c - 1, t) - response(m, r - 1, c + 1, t) + response(m, r - 1, c - 1, t)) / 4.0;
+		double dxs = (response(t, r, c + 1, t) - response(t, r, c - 1, t) - response(b, r, c + 1, t) + response(b, r, c - 1, t)) / 4.0;
+		double dys = (response(t, r + 1, c, t) - response(t, r - 1, c, t) - response(b, r + 1, c, t) + response(b, r - 1, c, t)) / 4.0;
+
+		hessian[0] = dxx;
+		hessian[1] = dxy;
+		hessian[2] = dxs;
+		hessian[3] = dxy;
+		hessian[4] = dyy;
+		hessian[5] = dys;
+		hessian[6] = dxs;
+		hessian[7] = dys;
+		hessian[8] = dss;
+
+		if(!solve(hessian, gradient, offset))
+			return;
+
+		double xc = -offset[0];
+		double xr = -offset[1];
+		double xi = -offset[2];
+
+		if(Math.abs(xi) >= 0.5 || Math.abs(xr) >= 0.5 || Math.abs(xc) >= 0.5)
+			return;
+
+		if(points == pointX.length)
+		{
+			pointX = Arrays.copyOf(pointX, points * 2);
+			pointY = Arrays.copyOf(pointY, points * 2);
+			pointScale = Arrays.copyOf(pointScale, points * 2);
+			pointResponse = Arrays.copyOf(pointResponse, points * 2);
+		}
+
+		int filterStep = FILTERS[m] - FILTERS[b];
+
+		pointX[points] = (float) (c + xc) * layerStep[t];
+		pointY[points] = (float) (r + xr) * layerStep[t];
+		pointScale[points] = (float) (0.1333f * (FILTERS[m] + xi * filterStep));
+		pointResponse[points] = v;
+		points++;
+	}
+
+	/**
+	 * Solve a 3x3 linear system by Cramer's rule
+	 * @return false if the matrix is singular
+	 */
+	private static boolean solve(double[] a, double[] y, double[] x)
+	{
+		double c0 = a[4] * a[8] - a[5] * a[7];
+		double c1 = a[5] * a[6] - a[3] * a[8];
+		double c2 = a[3] * a[7] - a[4] * a[6];
+		double det = a[0] * c0 + a[1] * c1 + a[2] * c2;
+
+		if(det == 0)
+			return false;
+
+		x[0] = (y[0] * c0 + a[1] * (a[5] * y[2] - y[1] * a[8]) + a[2] * (y[1] * a[7] - a[4] * y[2])) / det;
+		x[1] = (a[0] * (y[1] * a[8] - a[5] * y[2]) + y[0] * c1 + a[2] * (a[3] * y[2] - y[1] * a[6])) / det;
+		x[2] = (a[0] * (a[4] * y[2] - y[1] * a[7]) + a[1] * (y[1] * a[6] - a[3] * y[2]) + y[0] * c2) / det;
+
+		return true;
+	}
+
+	/**
+	 * @return Indices of the points to keep, in the order they were found
+	 */
+	private int[] strongest()
+	{
+		int count = maxPoints > 0 ? Math.min(maxPoints, points) : points;
+		int[] kept = new int[count];
+
+		if(count == points)
+		{
+			for(int i = 0; i < count; i++)
+			{
+				kept[i] = i;
+			}
+
+			return kept;
+		}
+
+		// The count-th largest response is the cut off; ties at it go to the earliest points
+		double[] sorted = Arrays.copyOf(pointResponse, points);
+		Arrays.sort(sorted);
+		double cutoff = sorted[points - count];
+		int above = 0;
+
+		for(int i = 0; i < points; i++)
+		{
+			if(pointResponse[i] > cutoff)
+				above++;
+		}
+
+		int ties = count - above;
+		int k = 0;
+
+		for(int i = 0; i < points; i++)
+		{
+			if(pointResponse[i] > cutoff || (pointResponse[i] == cutoff && ties-- > 0))
+				kept[k++] = i;
+		}
+
+		return kept;
+	}
+
+	/**
+	 * Compute the upright descriptor of a point: Haar wavelet responses summed over a 4x4 grid
+	 * of overlapping, gaussian weighted subregions, normalised to unit length
+	 */
+	private void describe(float pointX, float pointY, float pointScale, float[] output, int outputOffset)
+	{
+		double s = pointScale;
+		int x = Math.round(pointX);
+		int y = Math.round(pointY);
+		int size = (int) (2 * Math.round(s));
+		double length = 0;
+		int count = outputOffset;
+		float cx = 0.5f;
+
+		// Subregions are 9x9 samples, starting every 5 samples
+		for(int i = -12; i < 8; i += 5, cx += 1)
+		{
+			float cy = 0.5f;
+
+			for(int j = -12; j < 8; j += 5, cy += 1)
+			{
+				double dx = 0, dy = 0, mdx = 0, mdy = 0;
+				int ix = i + 5;
+				int jx = j + 5;
+				double xs = Math.round(x + ix * s);
+				double ys = Math.round(y + jx * s);
+
+				for(int k = i; k < i + 9; k++)
+				{
+					for(int l = j; l < j + 9; l++)
+					{
+						int sampleX = (int) Math.round(x + k * s);
+						int sampleY = (int) Math.round(y + l * s);
+
+						double gauss = gaussian(xs - sampleX, ys - sampleY, 2.5 * s);
+						double rx = haarX(sampleY, sampleX, size);
+						double ry = haarY(sampleY, sampleX, size);
+
+						// jopensurf's upright descriptors put the y response first
+						double rrx = gauss * ry;
+						double rry = gauss * rx;
+
+						dx += rrx;
+						dy += rry;
+						mdx += Math.abs(rrx);
+						mdy += Math.abs(rry);
+					}
+				}
+
+				double gauss = gaussian(cx - 2f, cy - 2f, 1.5);
+
+				output[count++] = (float) (dx * gauss);
+				output[count++] = (float) (dy * gauss);
+				output[count++] = (float) (mdx * gauss);
+				output[count++] = (float) (mdy * gauss);
+
+				length += (dx * dx + dy * dy + mdx * mdx + mdy * mdy) * (gauss * gauss);
+			}
+		}
+
+		length = Math.sqrt(length);
+
+		for(int d = outputOffset; d < outputOffset + DESCRIPTOR_LENGTH; d++)
+		{
+			output[d] = (float) (output[d] / length);
+		}
+	}
+
+	private float haarX(int row, int col, int s)
+	{
+		return box(row - s / 2, col, s, s / 2) - box(row - s / 2, col - s / 2, s, s / 2);
+	}
+
+	private float haarY(int row, int col, int s)
+	{
+		return box(row, col - s / 2, s / 2, s) - box(row - s / 2, col - s / 2, s / 2, s);
+	}
+
+	private static double gaussian(double x, double y, double sigma)
+	{
+		return 1.0 / (2 * Math.PI * sigma * sigma) * Math.exp(-(x * x + y * y) / (2.0 * sigma * sigma));
+	}
+}
@@ -3,19 +3,31 @@ package uk.ac.soton.ecs.imageclassifer;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.vfs2.FileSystemException;
 import org.openimaj.data.dataset.VFSGroupDataset;
 import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
 import org.openimaj.feature.FloatFV;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.feature.FImage2DoubleFV;
-import org.openimaj.ml.annotation.AnnotatedObject;
+import org.openimaj.io.InputStreamObjectReader;
+import org.openimaj.ml.annotation.Annotated;
 import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
 
 /**
  * Collection of generic utilities
@@ -76,6 +88,181 @@ public class Utilities
 		return result;
 	}
 	
+	/**
+	 * Classifies a batch of images on a pool of threads, keeping the results in input order.
+	 * Only a few images per thread are held in flight at once, so lazily-loaded datasets are
+	 * not read into memory all at once.
+	 * @param classifier The classifier, which must be safe to call from several threads
+	 * @param images The images
+	 * @param threads The number of threads to use
+	 * @return The classification results, in the same order as the images
+	 */
+	public static List<ClassificationResult<String>> classifyAll(ClassificationAlgorithm classifier, Iterable<FImage> images, int threads)
+	{
+		if(threads <= 1)
+		{
+			List<ClassificationResult<String>> results = new ArrayList<>();
+
+			for(FImage image : images)
+			{
+				results.add(classifier.classify(image));
+			}
+			
+			return results;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		
+		try
+		{
+			return classifyAll(classifier, images, pool, threads);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Classifies a batch of images on an existing pool of threads, keeping the results in input
+	 * order. Only a few images per thread are held in flight at once.
+	 * @param classifier The classifier, which must be safe to call from several threads
+	 * @param images The images
+	 * @param pool The threads to classify on, which the caller shuts down
+	 * @param threads The number of the pool's threads to use
+	 * @return The classification results, in the same order as the images
+	 */
+	public static List<ClassificationResult<String>> classifyAll(final ClassificationAlgorithm classifier, Iterable<FImage> images, ExecutorService pool, int threads)
+	{
+		List<ClassificationResult<String>> results = new ArrayList<>();
+		final Semaphore inFlight = new Semaphore(Math.max(1, threads) * 2);
+		List<Future<ClassificationResult<String>>> futures = new ArrayList<>();
+		
+		try
+		{
+			for(final FImage image : images)
+			{
+				inFlight.acquireUninterruptibly();
+				
+				futures.add(pool.submit(new Callable<ClassificationResult<String>>() {
+					
+					@Override
+					public ClassificationResult<String> call()
+					{
+						try
+						{
+							return classifier.classify(image);
+						}
+						finally
+						{
+							inFlight.release();
+						}
+					}
+					
+				}));
+			}
+			
+			for(Future<ClassificationResult<String>> future : futures)
+			{
+				results.add(future.get());
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while classifying", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new RuntimeException("Classification failed", e.getCause());
+		}
+		finally
+		{
+			// Don't leave the rest of a failed batch running on the caller's pool
+			for(Future<ClassificationResult<String>> future : futures)
+			{
+				future.cancel(true);
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Extracts a feature from every item using OpenIMAJ's shared thread pool. Used when training
+	 * so that each image's features are computed once, in parallel, and can then be reused by
+	 * every training stage.
+	 * @param extractor The extractor, which must be safe to call from several threads
+	 * @param items The items
+	 * @return The features, in the same order as the items
+	 */
+	public static <F, T> List<F> extractAll(final FeatureExtractor<F, T> extractor, final List<? extends T> items)
+	{
+		@SuppressWarnings("unchecked")
+		final F[] features = (F[]) new Object[items.size()];
+
+		Parallel.forIndex(0, items.size(), 1, new Operation<Integer>() {
+
+			@Override
+			public void perform(Integer i)
+			{
+				features[i] = extractor.extractFeature(items.get(i));
+			}
+
+		});
+
+		return Arrays.asList(features);
+	}
+
+	/**
+	 * @param data Annotated objects
+	 * @return The objects, in order
+	 */
+	public static <T> List<T> objects(List<? extends Annotated<T, String>> data)
+	{
+		List<T> objects = new ArrayList<>(data.size());
+
+		for(Annotated<T, String> a : data)
+		{
+			objects.add(a.getObject());
+		}
+
+		return objects;
+	}
+
+	/**
+	 * @param data Annotated objects
+	 * @return The first annotation of each object, in order
+	 */
+	public static List<String> annotations(List<? extends Annotated<?, String>> data)
+	{
+		List<String> annotations = new ArrayList<>(data.size());
+
+		for(Annotated<?, String> a : data)
+		{
+			annotations.add(a.getAnnotations().iterator().next());
+		}
+
+		return annotations;
+	}
+
+	/**
+	 * Length of one array holding rows of values end to end, computed without overflowing
+	 * @param rows Number of rows
+	 * @param dims Values per row
+	 * @return rows * dims
+	 * @throws IllegalArgumentException if the rows don't fit in one Java array
+	 */
+	public static int flatLength(long rows, int dims)
+	{
+		long length = rows * dims;
+
+		if(length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(rows + " rows of " + dims + " values are too many for one array; use a smaller sample");
+
+		return (int) length;
+	}
+	
 	/**
 	 * Convienience method for testing a classifier from the command line
 	 * @param classifier The classifier
@@ -83,10 +270,23 @@ public class Utilities
 	 * @param args Command line arguments
 	 */
 	public static void runClassifier(ClassificationAlgorithm classifier, String classifierName, String[] args)
+	{
+		runClassifier(classifier, classifierName, args, ImageUtilities.FIMAGE_READER);
+	}
+
+	/**
+	 * Convienience method for testing a classifier from the command line, reading images with a
+	 * particular reader
+	 * @param classifier The classifier
+	 * @param classifierName The name of the classifier for results filename
+	 * @param args Command line arguments
+	 * @param reader Reads the training and testing images
+	 */
+	public static void runClassifier(ClassificationAlgorithm classifier, String classifierName, String[] args, InputStreamObjectReader<FImage> reader)
 	{
 		if(args.length < 2)
 		{
-			throw new IllegalArgumentException("Usage: " + classifierName + " <training uri> <testing uri>");
+			throw new IllegalArgumentException("Usage: " + classifierName + " <training uri> <testing uri> [model file]");
 		}
 		
 		// Open results file
@@ -117,8 +317,8 @@ public class Utilities
 		
 		try
 		{
-			training = new VFSGroupDataset<>(trainingFile.getAbsolutePath(), ImageUtilities.FIMAGE_READER);
-			testing = new VFSListDataset<>(testingFile.getAbsolutePath(),ImageUtilities.FIMAGE_READER);
+			training = new VFSGroupDataset<>(trainingFile.getAbsolutePath(), reader);
+			testing = new VFSListDataset<>(testingFile.getAbsolutePath(), reader);
 		}
 		catch(FileSystemException e)
 		{
@@ -126,24 +326,73 @@ public class Utilities
 			System.exit(1);
 		}
 		
-		// Train classifier
+		// Load the classifier from a previously saved model, or train it and save the model
 
-		System.out.println("Training the classifier...");
+		File modelFile = args.length > 2 ? new File(args[2]) : null;
 		
-		classifier.train(AnnotatedObject.createList(training));
+		if(modelFile != null && modelFile.exists())
+		{
+			System.out.println("Loading the classifier from " + modelFile + "...");
+			
+			try
+			{
+				ModelFile.load(classifier, modelFile);
+			}
+			catch(IOException e)
+			{
+				System.err.println("Couldn't load model: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		else
+		{
+			System.out.println("Training the classifier...");
+			
+			// Decode the training images in parallel rather than one at a time
+			classifier.train(PrefetchingDataset.readAnnotated(training));
+			
+			if(modelFile != null)
+			{
+				System.out.println("Saving the classifier to " + modelFile + "...");
+				
+				try
+				{
+					ModelFile.save(classifier, modelFile);
+				}
+				catch(IOException e)
+				{
+					System.err.println("Couldn't save model: " + e.getMessage());
+				}
+			}
+		}
 		
 		// Classify testing set & write results
 
 		System.out.println("Classifing testing set...");
 		
+		// Images are decoded ahead of the classifying threads so that decoding overlaps with classification
+		List<ClassificationResult<String>> results = classifier.classifyAll(new PrefetchingDataset<>(testing), Runtime.getRuntime().availableProcessors());
+		
 		int i = 0;
-		for(FImage image : testing)
+		for(ClassificationResult<String> result : results)
 		{
-			String r = testing.getID(i++) + " " + classifier.classify(image);
+			String r = testing.getID(i++) + " " + result;
 			System.out.printf("Classifying image %d: %s\n", i, r);
 			writer.println(r);
 		}
 		
 		writer.close();
+
+		if(Metrics.ENABLED)
+		{
+			try
+			{
+				Metrics.export(new File("results/metrics"), classifierName);
+			}
+			catch(IOException e)
+			{
+				System.err.println("Couldn't write metrics: " + e.getMessage());
+			}
+		}
 	}
 }
@@ -0,0 +1,720 @@
+package uk.ac.soton.ecs.imageclassifer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.openimaj.data.DataSource;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.IntFloatPair;
+import org.openimaj.util.parallel.Parallel;
+
+/**
+ * Hierarchical k-means codebook (a vocabulary tree) for vocabularies too large to search
+ * exhaustively.
+ *
+ * The training descriptors are split into branching clusters, each cluster is split again, and
+ * so on down to the given depth, so a full tree has branching^depth leaves, each of which is a
+ * visual word. A descriptor is assigned by descending from the root to the nearest child at
+ * each level, which costs branching * depth distances rather than one per word: 10 levels of
+ * 10 children are 100 distances for up to 10^10 words. The price is that the descent can take
+ * a wrong turn near a boundary, so the word found isn't always the nearest leaf;
+ * {@link Floats#recall(List)} and {@link Bytes#recall(List)} measure how often it is.
+ *
+ * Byte descriptors are treated as signed values, as OpenIMAJ's byte assigners do. The tree is
+ * stored as flat arrays with the children of each node next to each other, so descending it
+ * touches a few contiguous runs of memory.
+ *
+ * @author Sam Lavers
+ */
+public class VocabularyTree
+{
+	// Rows read from a data source at a time
+	final private static int BLOCK_SIZE = 4096;
+
+	/** Descriptors sampled to measure a tree's recall */
+	final public static int RECALL_SAMPLES = 1000;
+	/** Seed of the recall sample, so that a logged recall can be measured again */
+	final public static long RECALL_SEED = 0x5EED;
+
+	protected final int dims;
+	protected final int branching;
+	protected final int depth;
+
+	// Centre of each node, root first, then breadth first with siblings next to each other
+	protected final float[] centres;
+	// Index of each node's first child, and how many it has; leaves have no children
+	protected final int[] firstChild;
+	protected final int[] childCount;
+	// Visual word of each leaf, or -1 for inner nodes
+	protected final int[] words;
+	// Node of each visual word
+	protected final int[] leaves;
+
+	protected VocabularyTree(int dims, int branching, int depth, float[] centres, int[] firstChild, int[] childCount, int[] words)
+	{
+		this.dims = dims;
+		this.branching = branching;
+		this.depth = depth;
+		this.centres = centres;
+		this.firstChild = firstChild;
+		this.childCount = childCount;
+		this.words = words;
+
+		int count = 0;
+
+		for(int word : words)
+		{
+			if(word >= 0)
+				count++;
+		}
+
+		leaves = new int[count];
+
+		for(int node = 0; node < words.length; node++)
+		{
+			if(words[node] >= 0)
+				leaves[words[node]] = node;
+		}
+	}
+
+	/**
+	 * Train a tree on float descriptors
+	 * @param data The descriptors
+	 * @param branching Number of children of each node
+	 * @param depth Number of levels below the root
+	 * @return The tree
+	 */
+	public static VocabularyTree trainFloats(DataSource<float[]> data, int branching, int depth)
+	{
+		int size = data.numRows();
+		int dims = data.numDimensions();
+		float[] flat = new float[Utilities.flatLength(size, dims)];
+		float[][] block = new float[Math.min(BLOCK_SIZE, size)][dims];
+
+		for(int from = 0; from < size; from += block.length)
+		{
+			int to = Math.min(size, from + block.length);
+			data.getData(from, to, block);
+
+			for(int i = from; i < to; i++)
+			{
+				System.arraycopy(block[i - from], 0, flat, i * dims, dims);
+			}
+		}
+
+		return train(flat, dims, branching, depth);
+	}
+
+	/**
+	 * Train a tree on byte descriptors
+	 * @param data The descriptors
+	 * @param branching Number of children of each node
+	 * @param depth Number of levels below the root
+	 * @return The tree
+	 */
+	public static VocabularyTree trainBytes(DataSource<byte[]> data, int branching, int depth)
+	{
+		int size = data.numRows();
+		int dims = data.numDimensions();
+		float[] flat = new float[Utilities.flatLength(size, dims)];
+		byte[][] block = new byte[Math.min(BLOCK_SIZE, size)][dims];
+
+		for(int from = 0; from < size; from += block.length)
+		{
+			int to = Math.min(size, from + block.length);
+			data.getData(from, to, block);
+
+			for(int i = from; i < to; i++)
+			{
+				for(int d = 0; d < dims; d++)
+				{
+					flat[i * dims + d] = block[i - from][d];
+				}
+			}
+		}
+
+		return train(flat, dims, branching, depth);
+	}
+
+	/**
+	 * Train a tree on descriptors packed into one array
+	 */
+	protected static VocabularyTree train(float[] data, int dims, int branching, int depth)
+	{
+		if(branching < 2 || depth < 1)
+			throw new IllegalArgumentException("A vocabulary tree needs a branching factor of at least 2 and a depth of at least 1");
+
+		int size = data.length / dims;
+		int[] rows = new int[size];
+
+		for(int i = 0; i < size; i++)
+		{
+			rows[i] = i;
+		}
+
+		long start = System.currentTimeMillis();
+		Node root = build(data, dims, rows, new float[dims], branching, depth, true);
+		VocabularyTree tree = flatten(root, dims, branching, depth);
+
+		System.out.println("Vocabulary tree: " + tree.size() + " words from " + size + " descriptors in " + (System.currentTimeMillis() - start) + "ms");
+
+		return tree;
+	}
+
+	/**
+	 * Cluster a node's rows and build its subtrees. The root's k-means uses every core, and
+	 * then its subtrees are built in parallel, each on one thread.
+	 */
+	private static Node build(final float[] data, final int dims, int[] rows, float[] centre, final int branching, final int depth, boolean parallel)
+	{
+		final Node node = new Node(centre);
+
+		// Too few rows to split usefully; the node becomes a leaf above the full depth
+		if(depth == 0 || rows.length < 2 * branching)
+			return node;
+
+		float[] subset = new float[rows.length * dims];
+
+		for(int i = 0; i < rows.length; i++)
+		{
+			System.arraycopy(data, rows[i] * dims, subset, i * dims, dims);
+		}
+
+		HamerlyKMeans kmeans = new HamerlyKMeans(branching);
+		kmeans.setVerbose(false);
+
+		if(!parallel)
+			kmeans.setThreads(1);
+
+		final float[][] children = kmeans.clusterFloats(new FlatFloatDataSource(Collections.singletonList(subset), dims)).centroids;
+
+		// Split the rows between the children
+		int[] assignment = new int[rows.length];
+		int[] sizes = new int[branching];
+
+		for(int i = 0; i < rows.length; i++)
+		{
+			assignment[i] = nearest(children, data, rows[i] * dims);
+			sizes[assignment[i]]++;
+		}
+
+		final int[][] childRows = new int[branching][];
+
+		for(int c = 0; c < branching; c++)
+		{
+			childRows[c] = new int[sizes[c]];
+			sizes[c] = 0;
+		}
+
+		for(int i = 0; i < rows.length; i++)
+		{
+			childRows[assignment[i]][sizes[assignment[i]]++] = rows[i];
+		}
+
+		node.children = new Node[branching];
+
+		if(parallel)
+		{
+			Parallel.forIndex(0, branching, 1, new Operation<Integer>()
+			{
+				@Override
+				public void perform(Integer c)
+				{
+					node.children[c] = build(data, dims, childRows[c], children[c], branching, depth - 1, false);
+				}
+			});
+		}
+		else
+		{
+			for(int c = 0; c < branching; c++)
+			{
+				node.children[c] = build(data, dims, childRows[c], children[c], branching, depth - 1, false);
+			}
+		}
+
+		return node;
+	}
+
+	private static int nearest(float[][] centroids, float[] data, int offset)
+	{
+		int best = 0;
+		float bestDist = Float.POSITIVE_INFINITY;
+
+		for(int c = 0; c < centroids.length; c++)
+		{
+			float[] centroid = centroids[c];
+			float sum = 0f;
+
+			for(int d = 0; d < centroid.length; d++)
+			{
+				float diff = data[offset + d] - centroid[d];
+				sum += diff * diff;
+			}
+
+			if(sum < bestDist)
+			{
+				bestDist = sum;
+				best = c;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Number the nodes breadth first, so that siblings are adjacent, and number the leaves as
+	 * words in the same order
+	 */
+	private static VocabularyTree flatten(Node root, int dims, int branching, int depth)
+	{
+		int count = 0;
+		ArrayDeque<Node> queue = new ArrayDeque<>();
+		queue.add(root);
+
+		while(!queue.isEmpty())
+		{
+			Node node = queue.poll();
+			count++;
+
+			if(node.children != null)
+				Collections.addAll(queue, node.children);
+		}
+
+		float[] centres = new float[count * dims];
+		int[] firstChild = new int[count];
+		int[] childCount = new int[count];
+		int[] words = new int[count];
+
+		int index = 0;
+		int next = 1;
+		int word = 0;
+		queue.add(root);
+
+		while(!queue.isEmpty())
+		{
+			Node node = queue.poll();
+			System.arraycopy(node.centre, 0, centres, index * dims, dims);
+
+			if(node.children == null)
+			{
+				words[index] = word++;
+			}
+			else
+			{
+				words[index] = -1;
+				firstChild[index] = next;
+				childCount[index] = node.children.length;
+				next += node.children.length;
+				Collections.addAll(queue, node.children);
+			}
+
+			index++;
+		}
+
+		return new VocabularyTree(dims, branching, depth, centres, firstChild, childCount, words);
+	}
+
+	/**
+	 * Draw the descriptors to measure recall with, the same ones each time for the same data
+	 * @param data The descriptors the tree was trained on
+	 * @return Up to {@link #RECALL_SAMPLES} descriptors, drawn with {@link #RECALL_SEED}
+	 */
+	public static <T> List<T> recallSample(DataSource<T> data)
+	{
+		Random random = new Random(RECALL_SEED);
+		int count = Math.min(RECALL_SAMPLES, data.numRows());
+		List<T> sample = new ArrayList<>(count);
+
+		for(int i = 0; i < count; i++)
+		{
+			sample.add(data.getData(random.nextInt(data.numRows())));
+		}
+
+		return sample;
+	}
+
+	/**
+	 * @return Number of visual words
+	 */
+	public int size()
+	{
+		return leaves.length;
+	}
+
+	/**
+	 * @return Length of a descriptor
+	 */
+	public int numDimensions()
+	{
+		return dims;
+	}
+
+	/**
+	 * @return Number of children of each node
+	 */
+	public int getBranching()
+	{
+		return branching;
+	}
+
+	/**
+	 * @return Number of levels below the root
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @return An assigner for float descriptors
+	 */
+	public Floats floats()
+	{
+		return new Floats();
+	}
+
+	/**
+	 * @return An assigner for byte descriptors
+	 */
+	public Bytes bytes()
+	{
+		return new Bytes();
+	}
+
+	/**
+	 * Write the tree to a model file
+	 * @param out The model file writer
+	 */
+	public void write(ModelFile.Writer out) throws IOException
+	{
+		out.writeInt(dims);
+		out.writeInt(branching);
+		out.writeInt(depth);
+		out.writeFloats(centres);
+		out.writeInts(firstChild);
+		out.writeInts(childCount);
+		out.writeInts(words);
+	}
+
+	/**
+	 * Read a tree from a model file
+	 * @param in The model file reader
+	 * @return The tree
+	 */
+	public static VocabularyTree read(ModelFile.Reader in) throws IOException
+	{
+		int dims = in.readInt();
+		int branching = in.readInt();
+		int depth = in.readInt();
+		float[] centres = in.readFloats();
+		int[] firstChild = in.readInts();
+		int[] childCount = in.readInts();
+		int[] words = in.readInts();
+
+		return new VocabularyTree(dims, branching, depth, centres, firstChild, childCount, words);
+	}
+
+	/**
+	 * Squared euclidean distance between a descriptor and a node's centre
+	 */
+	private float distance(float[] vector, int node)
+	{
+		float sum = 0f;
+		int offset = node * dims;
+
+		for(int d = 0; d < dims; d++)
+		{
+			float diff = vector[d] - centres[offset + d];
+			sum += diff * diff;
+		}
+
+		return sum;
+	}
+
+	private float distance(byte[] vector, int node)
+	{
+		float sum = 0f;
+		int offset = node * dims;
+
+		for(int d = 0; d < dims; d++)
+		{
+			float diff = vector[d] - centres[offset + d];
+			sum += diff * diff;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Descend to the leaf reached by taking the nearest child at every level
+	 * @return The leaf's node and its squared distance
+	 */
+	private IntFloatPair descend(float[] vector)
+	{
+		int node = 0;
+		float best = distance(vector, 0);
+
+		while(childCount[node] > 0)
+		{
+			int first = firstChild[node];
+			int end = first + childCount[node];
+			node = first;
+			best = distance(vector, first);
+
+			for(int child = first + 1; child < end; child++)
+			{
+				float dist = distance(vector, child);
+
+				if(dist < best)
+				{
+					best = dist;
+					node = child;
+				}
+			}
+		}
+
+		return new IntFloatPair(node, best);
+	}
+
+	private IntFloatPair descend(byte[] vector)
+	{
+		int node = 0;
+		float best = distance(vector, 0);
+
+		while(childCount[node] > 0)
+		{
+			int first = firstChild[node];
+			int end = first + childCount[node];
+			node = first;
+			best = distance(vector, first);
+
+			for(int child = first + 1; child < end; child++)
+			{
+				float dist = distance(vector, child);
+
+				if(dist < best)
+				{
+					best = dist;
+					node = child;
+				}
+			}
+		}
+
+		return new IntFloatPair(node, best);
+	}
+
+	/**
+	 * Assigns float descriptors to the words of the tree. Distances are euclidean.
+	 */
+	public class Floats implements HardAssigner<float[], float[], IntFloatPair>
+	{
+		@Override
+		public int assign(float[] data)
+		{
+			return words[descend(data).first];
+		}
+
+		@Override
+		public int[] assign(float[][] data)
+		{
+			int[] indices = new int[data.length];
+
+			for(int i = 0; i < data.length; i++)
+			{
+				indices[i] = assign(data[i]);
+			}
+
+			return indices;
+		}
+
+		@Override
+		public IntFloatPair assignDistance(float[] data)
+		{
+			IntFloatPair leaf = descend(data);
+
+			return new IntFloatPair(words[leaf.first], (float) Math.sqrt(leaf.second));
+		}
+
+		@Override
+		public void assignDistance(float[][] data, int[] indices, float[] distances)
+		{
+			for(int i = 0; i < data.length; i++)
+			{
+				IntFloatPair result = assignDistance(data[i]);
+				indices[i] = result.first;
+				distances[i] = result.second;
+			}
+		}
+
+		/**
+		 * Find the nearest word by comparing against every leaf
+		 * @param data A descriptor
+		 * @return The nearest word
+		 */
+		public int exact(float[] data)
+		{
+			int best = 0;
+			float bestDist = Float.POSITIVE_INFINITY;
+
+			for(int word = 0; word < leaves.length; word++)
+			{
+				float dist = distance(data, leaves[word]);
+
+				if(dist < bestDist)
+				{
+					bestDist = dist;
+					best = word;
+				}
+			}
+
+			return best;
+		}
+
+		/**
+		 * Measure how often descending the tree finds the nearest word
+		 * @param samples Descriptors to test with
+		 * @return The fraction of samples assigned to their nearest word
+		 */
+		public double recall(List<float[]> samples)
+		{
+			int found = 0;
+
+			for(float[] sample : samples)
+			{
+				if(assign(sample) == exact(sample))
+					found++;
+			}
+
+			return samples.isEmpty() ? 1 : found / (double) samples.size();
+		}
+
+		@Override
+		public int size()
+		{
+			return leaves.length;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return dims;
+		}
+	}
+
+	/**
+	 * Assigns byte descriptors to the words of the tree. Distances are euclidean.
+	 */
+	public class Bytes implements HardAssigner<byte[], float[], IntFloatPair>
+	{
+		@Override
+		public int assign(byte[] data)
+		{
+			return words[descend(data).first];
+		}
+
+		@Override
+		public int[] assign(byte[][] data)
+		{
+			int[] indices = new int[data.length];
+
+			for(int i = 0; i < data.length; i++)
+			{
+				indices[i] = assign(data[i]);
+			}
+
+			return indices;
+		}
+
+		@Override
+		public IntFloatPair assignDistance(byte[] data)
+		{
+			IntFloatPair leaf = descend(data);
+
+			return new IntFloatPair(words[leaf.first], (float) Math.sqrt(leaf.second));
+		}
+
+		@Override
+		public void assignDistance(byte[][] data, int[] indices, float[] distances)
+		{
+			for(int i = 0; i < data.length; i++)
+			{
+				IntFloatPair result = assignDistance(data[i]);
+				indices[i] = result.first;
+				distances[i] = result.second;
+			}
+		}
+
+		/**
+		 * Find the nearest word by comparing against every leaf
+		 * @param data A descriptor
+		 * @return The nearest word
+		 */
+		public int exact(byte[] data)
+		{
+			int best = 0;
+			float bestDist = Float.POSITIVE_INFINITY;
+
+			for(int word = 0; word < leaves.length; word++)
+			{
+				float dist = distance(data, leaves[word]);
+
+				if(dist < bestDist)
+				{
+					bestDist = dist;
+					best = word;
+				}
+			}
+
+			return best;
+		}
+
+		/**
+		 * Measure how often descending the tree finds the nearest word
+		 * @param samples Descriptors to test with
+		 * @return The fraction of samples assigned to their nearest word
+		 */
+		public double recall(List<byte[]> samples)
+		{
+			int found = 0;
+
+			for(byte[] sample : samples)
+			{
+				if(assign(sample) == exact(sample))
+					found++;
+			}
+
+			return samples.isEmpty() ? 1 : found / (double) samples.size();
+		}
+
+		@Override
+		public int size()
+		{
+			return leaves.length;
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return dims;
+		}
+	}
+
+	/**
+	 * A node while the tree is being built
+	 */
+	private static class Node
+	{
+		final float[] centre;
+		Node[] children;
+
+		Node(float[] centre)
+		{
+			this.centre = centre;
+		}
+	}
+}
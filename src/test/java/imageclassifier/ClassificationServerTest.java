@@ -0,0 +1,310 @@
+package imageclassifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.ml.annotation.Annotated;
+
+import uk.ac.soton.ecs.imageclassifer.ClassificationAlgorithm;
+import uk.ac.soton.ecs.imageclassifer.ClassificationServer;
+import uk.ac.soton.ecs.imageclassifer.ModelFile;
+import uk.ac.soton.ecs.imageclassifer.PrintableClassificationResult;
+
+/**
+ * Exercises the classification server over local HTTP with a stub classifier that labels images
+ * by shape, so no trained model or image set is needed.
+ *
+ * @author Sam Lavers
+ */
+public class ClassificationServerTest
+{
+	private ClassificationServer server;
+
+	@After
+	public void stopServer()
+	{
+		if(server != null)
+			server.stop();
+	}
+
+	@Test
+	public void classifiesAnUpload() throws Exception
+	{
+		server = new ClassificationServer(new ShapeClassifier(), 0);
+		server.start();
+
+		Response response = post(image(40, 20));
+
+		assertEquals(200, response.status);
+		assertTrue(response.body, response.body.contains("\"best\": \"wide\""));
+		assertTrue(response.body, response.body.contains("\"confidence\": 1.0"));
+	}
+
+	@Test
+	public void keepsServingAfterAnError() throws Exception
+	{
+		ShapeClassifier classifier = new ShapeClassifier();
+		server = new ClassificationServer(classifier, 0);
+		server.setBatchSize(2);
+		server.setBatchWindowMillis(500);
+		server.start();
+
+		// The stub throws an Error for square images, failing the batch they are in, but only
+		// the square image's request should fail
+		final byte[] square = image(20, 20);
+		final byte[] wide = image(40, 20);
+		ExecutorService clients = Executors.newFixedThreadPool(2);
+
+		Future<Response> bad = clients.submit(new Callable<Response>()
+		{
+			@Override
+			public Response call() throws Exception
+			{
+				return post(square);
+			}
+		});
+		Future<Response> good = clients.submit(new Callable<Response>()
+		{
+			@Override
+			public Response call() throws Exception
+			{
+				return post(wide);
+			}
+		});
+
+		assertEquals(500, bad.get().status);
+		assertEquals(200, good.get().status);
+		assertTrue(good.get().body, good.get().body.contains("\"best\": \"wide\""));
+		assertEquals("Expected both images in one batch", Collections.singletonList(2), classifier.batchSizes);
+
+		clients.shutdown();
+
+		// And later requests are still served
+		assertEquals(500, post(square).status);
+		assertEquals(200, post(wide).status);
+	}
+
+	@Test
+	public void rejectsWhatIsNotAnImage() throws Exception
+	{
+		server = new ClassificationServer(new ShapeClassifier(), 0);
+		server.start();
+
+		assertEquals(400, post("not an image".getBytes("UTF-8")).status);
+	}
+
+	@Test
+	public void batchesConcurrentRequests() throws Exception
+	{
+		ShapeClassifier classifier = new ShapeClassifier();
+		server = new ClassificationServer(classifier, 0);
+		server.setBatchWindowMillis(200);
+		server.start();
+
+		final byte[] tall = image(10, 30);
+		int requests = 8;
+		ExecutorService clients = Executors.newFixedThreadPool(requests);
+		List<Future<Response>> responses = new ArrayList<>();
+
+		for(int i = 0; i < requests; i++)
+		{
+			responses.add(clients.submit(new Callable<Response>()
+			{
+				@Override
+				public Response call() throws Exception
+				{
+					return post(tall);
+				}
+			}));
+		}
+
+		for(Future<Response> response : responses)
+		{
+			assertEquals(200, response.get().status);
+			assertTrue(response.get().body.contains("\"best\": \"tall\""));
+		}
+
+		clients.shutdown();
+
+		assertTrue("Expected fewer batches than requests: " + classifier.batchSizes, classifier.batchSizes.size() < requests);
+	}
+
+	@Test
+	public void refusesRequestsBeyondTheInFlightLimit() throws Exception
+	{
+		ShapeClassifier classifier = new ShapeClassifier();
+		classifier.release = new CountDownLatch(1);
+
+		server = new ClassificationServer(classifier, 0);
+		server.setMaxInFlight(1);
+		server.setBatchWindowMillis(0);
+		server.start();
+
+		final byte[] wide = image(30, 10);
+		ExecutorService clients = Executors.newSingleThreadExecutor();
+		Future<Response> first = clients.submit(new Callable<Response>()
+		{
+			@Override
+			public Response call() throws Exception
+			{
+				return post(wide);
+			}
+		});
+
+		// Wait for the first request to reach the classifier, where it's held
+		classifier.started.await();
+
+		Response refused = post(wide);
+		assertEquals(503, refused.status);
+
+		classifier.release.countDown();
+		assertEquals(200, first.get().status);
+
+		clients.shutdown();
+	}
+
+	private Response post(byte[] body) throws IOException
+	{
+		URL url = new URL("http://localhost:" + server.getPort() + "/classify");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+
+		try(OutputStream out = connection.getOutputStream())
+		{
+			out.write(body);
+		}
+
+		Response response = new Response();
+		response.status = connection.getResponseCode();
+
+		InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+
+		while((read = in.read(buffer)) > 0)
+		{
+			bytes.write(buffer, 0, read);
+		}
+
+		in.close();
+		response.body = bytes.toString("UTF-8");
+
+		return response;
+	}
+
+	private static byte[] image(int width, int height) throws IOException
+	{
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageUtilities.write(new FImage(width, height), "png", png);
+
+		return png.toByteArray();
+	}
+
+	private static class Response
+	{
+		int status;
+		String body;
+	}
+
+	/**
+	 * Labels images "wide" or "tall", recording the size of each batch it's given. Square images
+	 * make it throw an Error, failing any batch they are in.
+	 */
+	private static class ShapeClassifier implements ClassificationAlgorithm
+	{
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch started = new CountDownLatch(1);
+		// If set, classification waits for this before returning
+		volatile CountDownLatch release;
+
+		@Override
+		public ClassificationResult<String> classify(FImage image)
+		{
+			if(image.width == image.height)
+				throw new AssertionError("Square image");
+
+			PrintableClassificationResult<String> result = new PrintableClassificationResult<>(PrintableClassificationResult.BEST_RESULT);
+			result.put(image.width >= image.height ? "wide" : "tall", 1.0);
+
+			return result;
+		}
+
+		@Override
+		public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, int threads)
+		{
+			return classifyAll(images, null, threads);
+		}
+
+		@Override
+		public List<ClassificationResult<String>> classifyAll(Iterable<FImage> images, ExecutorService pool, int threads)
+		{
+			List<FImage> batch = new ArrayList<>();
+
+			for(FImage image : images)
+			{
+				batch.add(image);
+			}
+
+			batchSizes.add(batch.size());
+			List<ClassificationResult<String>> results = new ArrayList<>();
+
+			for(FImage image : batch)
+			{
+				results.add(classify(image));
+			}
+
+			started.countDown();
+
+			if(release != null)
+			{
+				try
+				{
+					release.await();
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			return results;
+		}
+
+		@Override
+		public void train(List<? extends Annotated<FImage, String>> data)
+		{
+		}
+
+		@Override
+		public void writeModel(ModelFile.Writer out) throws IOException
+		{
+		}
+
+		@Override
+		public void readModel(ModelFile.Reader in) throws IOException
+		{
+		}
+	}
+}
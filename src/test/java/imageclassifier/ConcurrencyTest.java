@@ -0,0 +1,182 @@
+package imageclassifier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.ml.annotation.AnnotatedObject;
+
+import uk.ac.soton.ecs.imageclassifer.*;
+
+/**
+ *
+ * Stress tests concurrent classify() calls on a trained classifier. Every thread classifies
+ * the whole test set, starting at a different image, and each result is checked against a
+ * single-threaded run. Throughput is reported for 1, 2, 4... threads up to the core count.
+ * RandomGuesser is random by design, so its results never match.
+ *
+ * @author Sam Lavers
+ *
+ */
+public class ConcurrencyTest
+{
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length < 3)
+			throw new IllegalArgumentException("Usage: ConcurrencyTest <algorithm class> <num training> <num testing> [rounds]");
+
+		ClassificationAlgorithm alg = (ClassificationAlgorithm) Class.forName("uk.ac.soton.ecs.imageclassifer." + args[0]).getDeclaredConstructor().newInstance();
+		int numTraining = Integer.parseInt(args[1]), numTesting = Integer.parseInt(args[2]);
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+		File trainingFile = new File("imagesets/training");
+
+		VFSGroupDataset<FImage> data = new VFSGroupDataset<>(
+			trainingFile.getAbsolutePath(),
+			ImageUtilities.FIMAGE_READER);
+
+		GroupedRandomSplitter<String, FImage> splits = new GroupedRandomSplitter<>(data, numTraining, 0, numTesting);
+		GroupedDataset<String, ListDataset<FImage>, FImage> testingSet = splits.getTestDataset();
+
+		System.out.println("Training " + args[0] + "...");
+		alg.train(AnnotatedObject.createList(splits.getTrainingDataset()));
+
+		// Decode the test images up front so that only classification is measured
+		List<FImage> images = new ArrayList<>();
+		for(FImage image : testingSet)
+		{
+			images.add(image);
+		}
+
+		List<ClassificationResult<String>> expected = new ArrayList<>();
+		for(FImage image : images)
+		{
+			expected.add(alg.classify(image));
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		double baseline = 0;
+		boolean failed = false;
+
+		System.out.println("Threads\tImages/s\tSpeedup\tMismatches");
+
+		List<Integer> threadCounts = new ArrayList<>();
+		for(int threads = 1; threads < cores; threads *= 2)
+		{
+			threadCounts.add(threads);
+		}
+		threadCounts.add(cores);
+
+		for(int threads : threadCounts)
+		{
+			ConcurrencyTest test = new ConcurrencyTest(alg, images, expected);
+			long start = System.nanoTime();
+			int mismatches = test.run(threads, rounds);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			double throughput = threads * rounds * images.size() / seconds;
+			if(threads == 1)
+				baseline = throughput;
+
+			System.out.printf("%d\t%.1f\t\t%.2f\t%d%n", threads, throughput, throughput / baseline, mismatches);
+
+			failed |= mismatches > 0;
+		}
+
+		if(failed)
+		{
+			System.out.println("Concurrent results differ from single-threaded results");
+			System.exit(1);
+		}
+	}
+
+	private ClassificationAlgorithm alg;
+	private List<FImage> images;
+	private List<ClassificationResult<String>> expected;
+
+	public ConcurrencyTest(ClassificationAlgorithm alg, List<FImage> images, List<ClassificationResult<String>> expected)
+	{
+		this.alg = alg;
+		this.images = images;
+		this.expected = expected;
+	}
+
+	/**
+	 * Classify every image on each thread for a number of rounds
+	 * @return The number of results that didn't match the single-threaded run
+	 */
+	private int run(int threads, final int rounds) throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> futures = new ArrayList<>();
+
+		try
+		{
+			for(int t = 0; t < threads; t++)
+			{
+				// Start each thread at a different image so they are never in lockstep
+				final int offset = t * images.size() / threads;
+
+				futures.add(pool.submit(new Callable<Integer>() {
+
+					@Override
+					public Integer call()
+					{
+						int mismatches = 0;
+
+						for(int r = 0; r < rounds; r++)
+						{
+							for(int i = 0; i < images.size(); i++)
+							{
+								int index = (offset + i) % images.size();
+
+								if(!same(alg.classify(images.get(index)), expected.get(index)))
+									mismatches++;
+							}
+						}
+
+						return mismatches;
+					}
+
+				}));
+			}
+
+			int mismatches = 0;
+			for(Future<Integer> future : futures)
+			{
+				mismatches += future.get();
+			}
+
+			return mismatches;
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	private static boolean same(ClassificationResult<String> a, ClassificationResult<String> b)
+	{
+		if(!a.getPredictedClasses().equals(b.getPredictedClasses()))
+			return false;
+
+		for(String clazz : a.getPredictedClasses())
+		{
+			if(a.getConfidence(clazz) != b.getConfidence(clazz))
+				return false;
+		}
+
+		return true;
+	}
+}
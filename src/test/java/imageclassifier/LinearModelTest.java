@@ -0,0 +1,69 @@
+package imageclassifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+
+import uk.ac.soton.ecs.imageclassifer.LinearModel;
+
+/**
+ * Checks that {@link LinearModel} scores its predictions with the probabilities LiblinearAnnotator
+ * estimated, so that an example no one-vs-rest column claims is still given a positive score.
+ *
+ * @author Sam Lavers
+ */
+public class LinearModelTest
+{
+	@Test
+	public void scoresNegativeDecisionsWithAProbability()
+	{
+		Decisions model = new Decisions(new String[] { "a", "b", "c" }, 3);
+		ScoredAnnotation<String> result = model.annotate(new float[] { -2f, -1f, -3f }).get(0);
+
+		double total = sigmoid(-2) + sigmoid(-1) + sigmoid(-3);
+		assertEquals("b", result.annotation);
+		assertEquals(sigmoid(-1) / total, result.confidence, 1e-6);
+		assertTrue(result.confidence > 0);
+	}
+
+	@Test
+	public void scoresTwoClassesFromOneColumn()
+	{
+		Decisions model = new Decisions(new String[] { "a", "b" }, 1);
+
+		ScoredAnnotation<String> first = model.annotate(new float[] { 0.5f }).get(0);
+		assertEquals("a", first.annotation);
+		assertEquals(sigmoid(0.5), first.confidence, 1e-6);
+
+		ScoredAnnotation<String> second = model.annotate(new float[] { -0.5f }).get(0);
+		assertEquals("b", second.annotation);
+		assertEquals(1 - sigmoid(-0.5), second.confidence, 1e-6);
+	}
+
+	private static double sigmoid(double decision)
+	{
+		return 1 / (1 + Math.exp(-decision));
+	}
+
+	/**
+	 * A model with no weights, annotating decision values directly
+	 */
+	private static class Decisions extends LinearModel
+	{
+		Decisions(String[] classes, int numColumns)
+		{
+			this.classes = classes;
+			this.numColumns = numColumns;
+		}
+
+		@Override
+		public List<ScoredAnnotation<String>> annotate(float[] decision)
+		{
+			return super.annotate(decision);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package imageclassifier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.feature.FloatFV;
+
+import uk.ac.soton.ecs.imageclassifer.LinearModel;
+
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * Checks that updating a trained {@link LinearModel} learns new classes without losing the
+ * ones it was trained on, using well separated synthetic features.
+ *
+ * @author Sam Lavers
+ */
+public class LinearModelUpdateTest
+{
+	private static final int DIMENSIONS = 20;
+
+	private final Random random = new Random(42);
+	private final List<FloatFV> features = new ArrayList<>();
+	private final List<String> annotations = new ArrayList<>();
+
+	@Test
+	public void learnsNewClasses()
+	{
+		add("a", 0, 20);
+		add("b", 1, 20);
+		LinearModel model = LinearModel.train(features, annotations, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+
+		List<FloatFV> initial = new ArrayList<>(features);
+		List<String> initialAnnotations = new ArrayList<>(annotations);
+		features.clear();
+		annotations.clear();
+
+		add("a", 0, 5);
+		add("b", 1, 5);
+		add("c", 2, 20);
+		add("d", 3, 20);
+		LinearModel updated = model.update(features, annotations, 1.0, LinearModel.UPDATE_EPOCHS);
+
+		assertArrayEquals(new String[] { "a", "b", "c", "d" }, updated.getClasses());
+		assertEquals(1.0, updated.accuracy(features, annotations), 0);
+		assertEquals(1.0, updated.accuracy(initial, initialAnnotations), 0);
+		// The model being updated is left as it was
+		assertArrayEquals(new String[] { "a", "b" }, model.getClasses());
+		assertTrue(model.weightChange(updated) > 0);
+	}
+
+	@Test
+	public void keepsAModelThatNeedsNoChange()
+	{
+		add("a", 0, 20);
+		add("b", 1, 20);
+		add("c", 2, 20);
+		LinearModel model = LinearModel.train(features, annotations, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+
+		// Examples the model already scores with a wide margin don't move it
+		List<FloatFV> far = new ArrayList<>();
+		List<String> farAnnotations = new ArrayList<>();
+		FloatFV feature = new FloatFV(DIMENSIONS);
+		feature.values[1] = 100;
+		far.add(feature);
+		farAnnotations.add("b");
+
+		LinearModel updated = model.update(far, farAnnotations, 1.0, LinearModel.UPDATE_EPOCHS);
+
+		assertEquals(0, model.weightChange(updated), 0);
+	}
+
+	/**
+	 * Add noisy examples of a class whose features are concentrated in one dimension
+	 */
+	private void add(String clazz, int dimension, int count)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			FloatFV feature = new FloatFV(DIMENSIONS);
+
+			for(int d = 0; d < DIMENSIONS; d++)
+			{
+				feature.values[d] = 0.1f * random.nextFloat();
+			}
+
+			feature.values[dimension] += 1;
+			features.add(feature);
+			annotations.add(clazz);
+		}
+	}
+}